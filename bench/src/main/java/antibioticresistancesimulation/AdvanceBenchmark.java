@@ -0,0 +1,68 @@
+package antibioticresistancesimulation;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/** The AdvanceBenchmark class compares the transitions of a colony run by
+ * the ParallelEngine one at a time, with updateState(), and TICKS at a time,
+ * with advance(), across grid SIZES and OCCUPANCIES. Both report the
+ * throughput in transitions, so they can be compared directly.
+ *
+ * The engine runs on a single thread, so that the benchmark measures the
+ * work done per transition rather than the number of cores.
+ * The AdvanceBenchmark class contains four variables:
+ * (1) int size: The width and height of the grid.
+ * (2) String occupancy: How full the grid is, see Colonies.
+ * (3) State colony: The colony measured.
+ * (4) byte[] initial: The grid the colony is put back to.
+ */
+
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "--add-modules=jdk.incubator.vector")
+@org.openjdk.jmh.annotations.State(Scope.Thread)
+public class AdvanceBenchmark {
+    /** The number of transitions of each call. */
+    static final int TICKS = 8;
+
+    @Param({"256", "1024", "4096"})
+    int size;
+
+    @Param({Colonies.HALF, Colonies.FULL})
+    String occupancy;
+
+    State colony;
+    byte[] initial;
+
+    @Setup(Level.Trial)
+    public void setUp(){
+        colony = Colonies.create(size, occupancy);
+        colony.setSparse(false);
+        colony.useParallelEngine(new ForkJoinPool(1));
+        initial = colony.grid.level.clone();
+    }
+
+    @Setup(Level.Iteration)
+    public void reset(){
+        Colonies.reset(colony, initial);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(TICKS)
+    public State updateState(){
+        for(int i=0; i<TICKS; i++){
+            colony.updateState();
+        }
+        return colony;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(TICKS)
+    public State advance(){
+        colony.advance(TICKS);
+        return colony;
+    }
+}
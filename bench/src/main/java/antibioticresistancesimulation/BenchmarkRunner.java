@@ -0,0 +1,37 @@
+package antibioticresistancesimulation;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/** The BenchmarkRunner class is the main class of the benchmarks jar. It 
+ * takes the usual JMH options (e.g. a benchmark name pattern, "-p size=1024"
+ * or "-rf json -rff results.json"), and always adds the GC profiler, so that
+ * the allocation rate of every benchmark (gc.alloc.rate.norm, in bytes per 
+ * operation) is reported next to its throughput. The benchmarks run with the
+ * Vector API enabled; "-jvmArgsAppend -Dantibioticresistancesimulation.kernels=scalar"
+ * measures the plain loops of Kernels instead.
+ */
+
+public class BenchmarkRunner {
+
+    public static void main(String[] args) throws RunnerException{
+        CommandLineOptions line;
+        try{
+            line = new CommandLineOptions(args);
+        } catch(CommandLineOptionException ex){
+            System.err.println(ex.getMessage());
+            System.exit(1);
+            return;
+        }
+        Options options = new OptionsBuilder()
+                .parent(line)
+                .addProfiler(GCProfiler.class)
+                .build();
+        new Runner(options).run();
+    }
+}
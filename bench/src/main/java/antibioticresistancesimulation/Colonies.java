@@ -0,0 +1,61 @@
+package antibioticresistancesimulation;
+
+/** The Colonies class builds the colonies the benchmarks run on. Growing a
+ * large colony from a single Cell takes thousands of transitions, so the
+ * half full and saturated colonies are filled directly instead: each position
+ * holds a live Cell with the given probability, its level drawn uniformly.
+ * All colonies are built from a fixed seed, so every run of a benchmark
+ * starts from the same grid.
+ */
+
+public class Colonies {
+    /** The occupancies the benchmarks are run at. */
+    public static final String SEED = "seed";
+    public static final String HALF = "half";
+    public static final String FULL = "full";
+
+    static final long SEED_VALUE = 2019;
+
+    /** Builds a SIZE x SIZE colony of the given OCCUPANCY.
+     * @param size The width and height of the grid.
+     * @param occupancy SEED for a single Cell as left by randomStart(), HALF
+     * for about half of the positions live, FULL for all of them.
+     * @return The colony, using the sequential scan.
+     */
+    public static State create(int size, String occupancy){
+        State colony = new State(size, size);
+        colony.setSeed(SEED_VALUE);
+        colony.randomStart();
+        switch(occupancy){
+            case SEED:
+                return colony;
+            case HALF:
+                fill(colony, 0.5);
+                return colony;
+            case FULL:
+                fill(colony, 1.0);
+                return colony;
+            default:
+                throw new IllegalArgumentException("Unknown occupancy " + occupancy);
+        }
+    }
+
+    /** Puts the grid of COLONY back to INITIAL, without allocating anything,
+     * so that the allocations of a benchmark are not hidden by its set-up.
+     * @param colony The colony.
+     * @param initial A copy of the grid of COLONY, as taken after create().
+     */
+    public static void reset(State colony, byte[] initial){
+        System.arraycopy(initial, 0, colony.grid.level, 0, initial.length);
+        colony.restored();
+    }
+
+    private static void fill(State colony, double probability){
+        SplitMix64 random = new SplitMix64(SEED_VALUE);
+        byte[] level = colony.grid.level;
+        for(int k=0; k<level.length; k++){
+            level[k] = random.nextDouble()<probability ? (byte)(1 + random.nextInt(Grid.LEVELS)) : 0;
+        }
+        colony.restored();
+    }
+}
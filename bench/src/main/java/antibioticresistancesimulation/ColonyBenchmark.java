@@ -0,0 +1,72 @@
+package antibioticresistancesimulation;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/** The ColonyBenchmark class measures the transitions of a colony and what 
+ * the GUI reads from it every frame, across grid SIZES and OCCUPANCIES.
+ * 
+ * The grid of the colony is put back before every iteration. A transition 
+ * changes the colony, so over an iteration a colony started from a single 
+ * seed grows and a half full one fills up; the occupancy is the one each 
+ * iteration starts with.
+ * The ColonyBenchmark class contains five variables:
+ * (1) int size: The width and height of the grid.
+ * (2) String occupancy: How full the grid is, see Colonies.
+ * (3) State colony: The colony measured.
+ * (4) double[][] model: The view exported by exportModel, sized as the
+ * ColonyView of the GUI would size it.
+ * (5) byte[] initial: The grid the colony is put back to.
+ */
+
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "--add-modules=jdk.incubator.vector")
+@org.openjdk.jmh.annotations.State(Scope.Thread)
+public class ColonyBenchmark {
+    /** The largest width and height of the view, as in ColonyView. */
+    static final int VIEW_SIZE = 625;
+
+    @Param({"25", "256", "1024", "4096"})
+    int size;
+
+    @Param({Colonies.SEED, Colonies.HALF, Colonies.FULL})
+    String occupancy;
+
+    State colony;
+    double[][] model;
+    byte[] initial;
+
+    @Setup(Level.Trial)
+    public void setUp(){
+        colony = Colonies.create(size, occupancy);
+        initial = colony.grid.level.clone();
+        int step = (size + VIEW_SIZE - 1) / VIEW_SIZE;
+        int view = (size + step - 1) / step;
+        model = new double[view][view];
+    }
+
+    @Setup(Level.Iteration)
+    public void reset(){
+        Colonies.reset(colony, initial);
+    }
+
+    @Benchmark
+    public State updateState(){
+        colony.updateState();
+        return colony;
+    }
+
+    @Benchmark
+    public double[][] exportModel(){
+        colony.exportModel(model);
+        return model;
+    }
+
+    @Benchmark
+    public double average(){
+        return colony.average();
+    }
+}
@@ -0,0 +1,93 @@
+package antibioticresistancesimulation;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/** The DoseBenchmark class measures the operations that reset or kill off 
+ * most of a colony, across grid SIZES and OCCUPANCIES. As a few doses in a 
+ * row would leave nothing to kill, every call works on a colony of its own:
+ * BATCH colonies are put back to the same grid before each iteration, and
+ * the iteration times BATCH calls in a row, one per colony. Putting them 
+ * back is not measured, and neither is the time JMH takes around each call,
+ * which would otherwise outweigh a dose of a small grid. The scores are the
+ * time of a call, i.e. of the whole batch divided by BATCH. The few calls of
+ * the warm-up iterations are not enough for the JIT to compile the doses of
+ * a small grid, so the colonies are first dosed over WARMUP_CELLS positions
+ * in all.
+ * The DoseBenchmark class contains five variables:
+ * (1) int size: The width and height of the grid.
+ * (2) String occupancy: How full the grid is, see Colonies.
+ * (3) State[] colonies: The colonies measured.
+ * (4) byte[] initial: The grid the colonies are put back to.
+ * (5) int next: The colony the next call works on.
+ */
+
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, batchSize = DoseBenchmark.BATCH)
+@Measurement(iterations = 20, batchSize = DoseBenchmark.BATCH)
+@OperationsPerInvocation(DoseBenchmark.BATCH)
+@Fork(value = 1, jvmArgsAppend = {"--add-modules=jdk.incubator.vector", "-Xmx3g"})
+@org.openjdk.jmh.annotations.State(Scope.Thread)
+public class DoseBenchmark {
+    /** The number of calls timed together, and of colonies they work on. */
+    static final int BATCH = 32;
+    /** The number of positions dosed before the warm-up iterations. */
+    static final long WARMUP_CELLS = 1L << 26;
+
+    @Param({"25", "256", "1024", "4096"})
+    int size;
+
+    @Param({Colonies.SEED, Colonies.HALF, Colonies.FULL})
+    String occupancy;
+
+    State[] colonies;
+    byte[] initial;
+    int next;
+
+    @Setup(Level.Trial)
+    public void setUp(){
+        colonies = new State[BATCH];
+        for(int i=0; i<BATCH; i++){
+            colonies[i] = Colonies.create(size, occupancy);
+        }
+        initial = colonies[0].grid.level.clone();
+        State colony = colonies[0];
+        for(long cells=0; cells<WARMUP_CELLS; cells+=2L*size*size){
+            Colonies.reset(colony, initial);
+            colony.doseAntibio('b');
+            Colonies.reset(colony, initial);
+            colony.doseAntibio('w');
+            colony.randomStart();
+        }
+    }
+
+    @Setup(Level.Iteration)
+    public void reset(){
+        for(State colony : colonies){
+            Colonies.reset(colony, initial);
+        }
+        next = 0;
+    }
+
+    @Benchmark
+    public State doseBlack(){
+        State colony = colonies[next++];
+        colony.doseAntibio('b');
+        return colony;
+    }
+
+    @Benchmark
+    public State doseWhite(){
+        State colony = colonies[next++];
+        colony.doseAntibio('w');
+        return colony;
+    }
+
+    @Benchmark
+    public State randomStart(){
+        State colony = colonies[next++];
+        colony.randomStart();
+        return colony;
+    }
+}
@@ -0,0 +1,73 @@
+package antibioticresistancesimulation;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/** The EventBenchmark class measures the transitions of a colony whose 
+ * births and deaths are published through CellEvents, across grid SIZES and
+ * OCCUPANCIES, to be compared with AdvanceBenchmark.updateState(). A single
+ * subscriber counts the events on its own thread; with BLOCK it holds the
+ * colony back whenever it falls behind, with DROP it never does.
+ *
+ * The colony is run by the ParallelEngine on a single thread, as in the
+ * AdvanceBenchmark.
+ * The EventBenchmark class contains seven variables:
+ * (1) int size: The width and height of the grid.
+ * (2) String occupancy: How full the grid is, see Colonies.
+ * (3) String overflow: What the subscriber does when it falls behind.
+ * (4) State colony: The colony measured.
+ * (5) byte[] initial: The grid the colony is put back to.
+ * (6) CellEvents events: The stream of the colony.
+ * (7) long handled: The number of events the subscriber counted.
+ */
+
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "--add-modules=jdk.incubator.vector")
+@org.openjdk.jmh.annotations.State(Scope.Thread)
+public class EventBenchmark {
+    @Param({"256", "1024"})
+    int size;
+
+    @Param({Colonies.HALF, Colonies.FULL})
+    String occupancy;
+
+    @Param({"block", "drop"})
+    String overflow;
+
+    State colony;
+    byte[] initial;
+    CellEvents events;
+    long handled;
+
+    @Setup(Level.Trial)
+    public void setUp(){
+        colony = Colonies.create(size, occupancy);
+        colony.setSparse(false);
+        colony.useParallelEngine(new ForkJoinPool(1));
+        initial = colony.grid.level.clone();
+        events = new CellEvents();
+        events.subscribe("count", (event, sequence, endOfBatch) -> handled++, 
+                overflow.equals("drop") ? CellEvents.DROP : CellEvents.BLOCK);
+        colony.setEvents(events);
+    }
+
+    @Setup(Level.Iteration)
+    public void reset(){
+        Colonies.reset(colony, initial);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown(){
+        events.close();
+    }
+
+    @Benchmark
+    public State updateState(){
+        colony.updateState();
+        return colony;
+    }
+}
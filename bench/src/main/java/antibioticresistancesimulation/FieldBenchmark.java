@@ -0,0 +1,70 @@
+package antibioticresistancesimulation;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/** The FieldBenchmark class measures the antibiotics given at a spot of a 
+ * colony, across grid SIZES and OCCUPANCIES: a step of the AntibioticField 
+ * on its own, and a whole transition followed by the step, to be compared 
+ * with AdvanceBenchmark.updateState(). The antibiotics cover the whole 
+ * plate and do not decay, so that every step does as much work as it ever 
+ * does, and their concentration is low enough for the colony to last out 
+ * an iteration.
+ *
+ * The colony is run by the ParallelEngine on a single thread, as in the
+ * AdvanceBenchmark.
+ * The FieldBenchmark class contains five variables:
+ * (1) int size: The width and height of the grid.
+ * (2) String occupancy: How full the grid is, see Colonies.
+ * (3) State colony: The colony measured.
+ * (4) byte[] initial: The grid the colony is put back to.
+ * (5) long[] killed: The Cells killed by step(), which are not taken off 
+ * the statistics of the colony.
+ */
+
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "--add-modules=jdk.incubator.vector")
+@org.openjdk.jmh.annotations.State(Scope.Thread)
+public class FieldBenchmark {
+    @Param({"256", "1024", "4096"})
+    int size;
+
+    @Param({Colonies.HALF, Colonies.FULL})
+    String occupancy;
+
+    State colony;
+    byte[] initial;
+    final long[] killed = new long[Grid.LEVELS+1];
+
+    @Setup(Level.Trial)
+    public void setUp(){
+        colony = Colonies.create(size, occupancy);
+        colony.setSparse(false);
+        colony.useParallelEngine(new ForkJoinPool(1));
+        colony.setAntibioticRates(0.2, 0);
+        initial = colony.grid.level.clone();
+    }
+
+    @Setup(Level.Iteration)
+    public void reset(){
+        Colonies.reset(colony, initial);
+        colony.doseAt('b', size/2, size/2, 1e-3, size);
+    }
+
+    @Benchmark
+    public AntibioticField step(){
+        AntibioticField field = colony.getAntibiotics('b');
+        field.step(colony.grid.level, colony.seed, colony.tick, colony.parallel.pool, killed);
+        return field;
+    }
+
+    @Benchmark
+    public State updateState(){
+        colony.updateState();
+        return colony;
+    }
+}
@@ -0,0 +1,52 @@
+package antibioticresistancesimulation;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/** The SpatialBenchmark class measures the SpatialIndex of a colony across
+ * grid SIZES and OCCUPANCIES: working the index out again after the colony
+ * changed, which is done at most once per transition, and a rectangle query
+ * on an index that is up to date, which should not depend on the size of the
+ * grid at all.
+ * The SpatialBenchmark class contains four variables:
+ * (1) int size: The width and height of the grid.
+ * (2) String occupancy: How full the grid is, see Colonies.
+ * (3) State colony: The colony measured.
+ * (4) SpatialIndex index: The index of the colony, with the Cells of a 
+ * GENEXP of at least 0.5 as resistant Cells.
+ */
+
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "--add-modules=jdk.incubator.vector")
+@org.openjdk.jmh.annotations.State(Scope.Thread)
+public class SpatialBenchmark {
+    @Param({"256", "1024", "4096"})
+    int size;
+
+    @Param({Colonies.HALF, Colonies.FULL})
+    String occupancy;
+
+    State colony;
+    SpatialIndex index;
+
+    @Setup(Level.Trial)
+    public void setUp(){
+        colony = Colonies.create(size, occupancy);
+        index = new SpatialIndex(colony, 0.5);
+    }
+
+    @Benchmark
+    public int refresh(){
+        // Pretend the colony changed, without changing it.
+        colony.version++;
+        return index.largestCluster();
+    }
+
+    @Benchmark
+    public double average(){
+        return index.average(size/4, size/4, size/2, size/2);
+    }
+}
@@ -0,0 +1,127 @@
+package antibioticresistancesimulation;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ForkJoinPool;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/** Checks that a colony saved to a Checkpoint and loaded or restored from it
+ * continues exactly as the saved colony does, with either engine.
+ */
+
+class CheckpointTest {
+    static final int WIDTH = 240;
+    static final int HEIGHT = 160;
+    static final ForkJoinPool POOL = new ForkJoinPool(2);
+
+    @TempDir
+    Path dir;
+
+    @AfterAll
+    static void shutdown(){
+        POOL.shutdown();
+    }
+
+    /** Returns a colony seeded with SEED that has been run and dosed for a
+     * while, by the ParallelEngine if PARALLEL is set.
+     */
+    static State colony(long seed, boolean parallel){
+        State colony = new State(WIDTH, HEIGHT);
+        colony.setSeed(seed);
+        colony.setMutationStep(2);
+        if(parallel){
+            colony.useParallelEngine(POOL);
+        }
+        colony.randomStart();
+        colony.advance(120);
+        colony.doseAntibio('b');
+        colony.advance(60);
+        return colony;
+    }
+
+    /** Runs COLONY on, dosing it along the way. */
+    static void continueRun(State colony){
+        colony.advance(70);
+        colony.doseAntibio('w');
+        for(int i=0; i<30; i++){
+            colony.updateState();
+        }
+        colony.doseAntibio('b');
+        colony.advance(50);
+    }
+
+    static void assertSameColony(State expected, State actual){
+        assertArrayEquals(expected.grid.level, actual.grid.level);
+        assertEquals(expected.getTick(), actual.getTick());
+        assertEquals(expected.doses, actual.doses);
+        assertEquals(expected.mutationStep, actual.mutationStep);
+        assertEquals(expected.liveCells(), actual.liveCells());
+        assertEquals(expected.average(), actual.average());
+    }
+
+    @Test
+    void loadedColonyContinues() throws IOException{
+        for(boolean parallel : new boolean[]{false, true}){
+            State saved = colony(4, parallel);
+            Path file = dir.resolve("colony" + parallel);
+            Checkpoint.save(saved, file);
+            State loaded = Checkpoint.load(file);
+            if(parallel){
+                loaded.useParallelEngine(POOL);
+            }
+            assertSameColony(saved, loaded);
+            continueRun(saved);
+            continueRun(loaded);
+            assertTrue(saved.liveCells()>0);
+            assertSameColony(saved, loaded);
+        }
+    }
+
+    @Test
+    void savingALoadedColonyWritesTheSameFile() throws IOException{
+        Path first = dir.resolve("first");
+        Path second = dir.resolve("second");
+        Checkpoint.save(colony(6, false), first);
+        Checkpoint.save(Checkpoint.load(first), second);
+        assertArrayEquals(Files.readAllBytes(first), Files.readAllBytes(second));
+    }
+
+    @Test
+    void restoredColonyContinues() throws IOException{
+        for(boolean parallel : new boolean[]{false, true}){
+            State saved = colony(9, parallel);
+            Path file = dir.resolve("colony" + parallel);
+            Checkpoint.save(saved, file);
+            // A colony that has gone its own way, and keeps its engine.
+            State restored = colony(10, parallel);
+            restored.advance(25);
+            Checkpoint.restore(restored, file);
+            assertSameColony(saved, restored);
+            continueRun(saved);
+            continueRun(restored);
+            assertSameColony(saved, restored);
+        }
+    }
+
+    @Test
+    void restoreRejectsAnotherSize() throws IOException{
+        Path file = dir.resolve("small");
+        Checkpoint.save(colony(2, false), file);
+        State other = new State(WIDTH, HEIGHT+1);
+        other.setSeed(3);
+        other.randomStart();
+        other.advance(40);
+        byte[] level = other.grid.level.clone();
+        assertThrows(IOException.class, () -> Checkpoint.restore(other, file));
+        assertArrayEquals(level, other.grid.level);
+        assertEquals(40, other.getTick());
+    }
+}
@@ -0,0 +1,115 @@
+package antibioticresistancesimulation;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/** Checks that a colony split into strips among several StripWorkers is
+ * exactly the colony a single process runs with the ParallelEngine, by
+ * comparing the Checkpoints both save. The workers run on threads of the
+ * test rather than in processes of their own, connected over local sockets.
+ */
+
+class DistributedRunnerTest {
+    static final int WIDTH = 200;
+    static final int HEIGHT = 150;
+    static final long SEED = 29;
+
+    /** Runs the colony on WORKERS workers of THREADS threads each, mutating
+     * by STEP levels, and saves it to FILE.
+     */
+    static void runDistributed(Path file, int workers, int threads, int step) throws Exception{
+        ExecutorService executor = Executors.newFixedThreadPool(workers);
+        List<Future<?>> served = new ArrayList<>();
+        try(ServerSocket server = new ServerSocket(0)){
+            for(int w=0; w<workers; w++){
+                served.add(executor.submit(() -> {
+                    ForkJoinPool pool = new ForkJoinPool(threads);
+                    try(Socket coordinator = new Socket("localhost", server.getLocalPort())){
+                        new StripWorker(coordinator).serve(pool);
+                    } finally{
+                        pool.shutdown();
+                    }
+                    return null;
+                }));
+            }
+            DistributedRunner runner = new DistributedRunner(server, workers, WIDTH, HEIGHT,
+                    SEED, step);
+            try{
+                runner.randomStart();
+                runner.advance(130);
+                runner.doseAntibio('b');
+                runner.advance(90);
+                runner.doseAntibio('w');
+                runner.advance(80);
+                assertEquals(300, runner.getTick());
+                runner.save(file);
+            } finally{
+                runner.close();
+            }
+            for(Future<?> worker : served){
+                worker.get(30, TimeUnit.SECONDS);
+            }
+        } finally{
+            executor.shutdownNow();
+        }
+    }
+
+    /** Runs the same colony in a single process and saves it to FILE.
+     * @return The colony.
+     */
+    static State runSingle(Path file, int step) throws Exception{
+        ForkJoinPool pool = new ForkJoinPool(2);
+        try{
+            State colony = new State(WIDTH, HEIGHT);
+            colony.setSeed(SEED);
+            colony.setMutationStep(step);
+            colony.useParallelEngine(pool);
+            colony.randomStart();
+            colony.advance(130);
+            colony.doseAntibio('b');
+            colony.advance(90);
+            colony.doseAntibio('w');
+            colony.advance(80);
+            Checkpoint.save(colony, file);
+            return colony;
+        } finally{
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    void sameCheckpointAsASingleProcess(@TempDir Path dir) throws Exception{
+        State colony = runSingle(dir.resolve("single"), 1);
+        assertTrue(colony.liveCells()>0);
+        byte[] expected = Files.readAllBytes(dir.resolve("single"));
+        // Strips of different heights, the first ones a row taller.
+        for(int workers : new int[]{1, 2, 3, 7}){
+            Path file = dir.resolve("workers" + workers);
+            runDistributed(file, workers, workers==2 ? 2 : 1, 1);
+            assertArrayEquals(expected, Files.readAllBytes(file), workers + " workers");
+        }
+    }
+
+    @Test
+    void sameCheckpointWithALargerStep(@TempDir Path dir) throws Exception{
+        runSingle(dir.resolve("single"), 4);
+        runDistributed(dir.resolve("distributed"), 3, 1, 4);
+        assertArrayEquals(Files.readAllBytes(dir.resolve("single")),
+                Files.readAllBytes(dir.resolve("distributed")));
+    }
+}
@@ -0,0 +1,178 @@
+package antibioticresistancesimulation;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/** Checks that the VectorKernels produce exactly the numbers of the plain
+ * Kernels, for lengths that are and are not a multiple of the vector lanes,
+ * and that a whole colony does not depend on which of them is used. The 
+ * tests are skipped if the jdk.incubator.vector module is missing.
+ */
+
+class KernelsTest {
+    static final int[] LENGTHS = {1, 2, 3, 7, 8, 15, 16, 17, 31, 64, 100, 257, 1000};
+
+    final Kernels scalar = new Kernels();
+    Kernels vector;
+    final Random random = new Random(42);
+
+    @BeforeEach
+    void loadVectorKernels(){
+        try{
+            vector = (Kernels) Class.forName("antibioticresistancesimulation.VectorKernels")
+                    .getDeclaredConstructor().newInstance();
+        } catch(ReflectiveOperationException | LinkageError ex){
+            vector = null;
+        }
+        assumeTrue(vector!=null, "The Vector API is not available");
+    }
+
+    @Test
+    void splitMix(){
+        for(int count : LENGTHS){
+            long state = random.nextLong();
+            long[] expected = new long[count];
+            long[] actual = new long[count];
+            scalar.splitMix(state, expected, count);
+            vector.splitMix(state, actual, count);
+            assertArrayEquals(expected, actual, "count " + count);
+        }
+    }
+
+    @Test
+    void positionMix(){
+        for(int count : LENGTHS){
+            long seed = random.nextLong();
+            long tick = random.nextInt(100000);
+            long first = random.nextInt(1 << 30);
+            long[] expected = new long[count];
+            long[] actual = new long[count];
+            scalar.positionMix(seed, tick, first, ParallelEngine.DOSE_STREAM, expected, count);
+            vector.positionMix(seed, tick, first, ParallelEngine.DOSE_STREAM, actual, count);
+            assertArrayEquals(expected, actual, "count " + count);
+        }
+    }
+
+    @Test
+    void shades(){
+        for(int count : LENGTHS){
+            byte[] level = levels(count + 5);
+            double[] expected = new double[count];
+            double[] actual = new double[count];
+            scalar.shades(level, 5, expected, count);
+            vector.shades(level, 5, actual, count);
+            assertArrayEquals(expected, actual, "count " + count);
+        }
+    }
+
+    @Test
+    void diffuse(){
+        for(int width : LENGTHS){
+            if(width<3){
+                continue;
+            }
+            float[] c = new float[3*width];
+            for(int i=0; i<c.length; i++){
+                // Some positions end up below the lowest concentration kept.
+                c[i] = random.nextInt(4)==0 ? 0f : random.nextFloat() * 0.01f;
+            }
+            float[] expected = new float[c.length];
+            float[] actual = new float[c.length];
+            boolean keptExpected = scalar.diffuse(c, expected, width, 0, 2*width, 0.6f, 0.1f,
+                    1e-3f, 1, width-1);
+            boolean keptActual = vector.diffuse(c, actual, width, 0, 2*width, 0.6f, 0.1f,
+                    1e-3f, 1, width-1);
+            assertArrayEquals(expected, actual, "width " + width);
+            assertEquals(keptExpected, keptActual, "width " + width);
+        }
+    }
+
+    @Test
+    void resolve(){
+        for(int width : LENGTHS){
+            for(int row=0; row<3; row++){
+                for(int step : new int[]{1, 3}){
+                    byte[] level = levels(3*width);
+                    int[] above = proposals(width);
+                    int[] proposals = proposals(width);
+                    int[] below = proposals(width);
+                    long seed = random.nextLong();
+                    byte[] expected = level.clone();
+                    byte[] actual = level.clone();
+                    long[] expectedCounts = new long[2];
+                    long[] actualCounts = new long[2];
+                    scalar.resolve(level, expected, row*width, width, row==0, row==2, above,
+                            proposals, below, seed, 7, row*width, step, expectedCounts, 0, width);
+                    vector.resolve(level, actual, row*width, width, row==0, row==2, above,
+                            proposals, below, seed, 7, row*width, step, actualCounts, 0, width);
+                    String where = "width " + width + ", row " + row + ", step " + step;
+                    assertArrayEquals(expected, actual, where);
+                    assertArrayEquals(expectedCounts, actualCounts, where);
+                }
+            }
+        }
+    }
+
+    @Test
+    void sameColony(@TempDir Path dir) throws Exception{
+        for(String engine : new String[]{"--dense", "--parallel"}){
+            byte[] expected = runHeadless(dir.resolve("scalar"), "scalar", engine);
+            byte[] actual = runHeadless(dir.resolve("vector"), "vector", engine);
+            assertArrayEquals(expected, actual, engine);
+        }
+    }
+
+    /** Runs the HeadlessRunner in a new JVM with the KERNELS and ENGINE
+     * options, and returns the checkpoint it saves to FILE.
+     */
+    static byte[] runHeadless(Path file, String kernels, String engine) 
+            throws IOException, InterruptedException{
+        List<String> command = new ArrayList<>();
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        command.add("--add-modules=jdk.incubator.vector");
+        command.add("-Dantibioticresistancesimulation.kernels=" + kernels);
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(HeadlessRunner.class.getName());
+        for(String arg : new String[]{"--size", "400x300", "--ticks", "400", "--seed", "12",
+                "--every", "0", "--doses", "tick 150: dose b; tick 300: dose w", engine, 
+                "--checkpoint", file.toString()}){
+            command.add(arg);
+        }
+        Process process = new ProcessBuilder(command).redirectErrorStream(true)
+                .redirectOutput(ProcessBuilder.Redirect.DISCARD).start();
+        assertEquals(0, process.waitFor(), "exit status with the " + kernels + " kernels");
+        return Files.readAllBytes(file);
+    }
+
+    /** Returns COUNT random levels, about a third of them empty. */
+    byte[] levels(int count){
+        byte[] level = new byte[count];
+        for(int i=0; i<count; i++){
+            level[i] = (byte)(random.nextInt(3)==0 ? 0 : 1 + random.nextInt(Grid.LEVELS));
+        }
+        return level;
+    }
+
+    /** Returns COUNT random proposals, each pointing in one of the four
+     * directions. */
+    int[] proposals(int count){
+        int[] proposals = new int[count];
+        for(int j=0; j<count; j++){
+            proposals[j] = random.nextInt();
+        }
+        return proposals;
+    }
+}
@@ -0,0 +1,64 @@
+package antibioticresistancesimulation;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.ForkJoinPool;
+import org.junit.jupiter.api.Test;
+
+/** Checks that the colony run by the ParallelEngine only depends on the seed,
+ * and not on the number of threads running its tasks. The colony is wide
+ * enough to be split into several tiles and bands.
+ */
+
+class ParallelEngineTest {
+    static final int WIDTH = 2048;
+    static final int HEIGHT = 160;
+
+    /** Runs a colony seeded with SEED on THREADS threads, mutating by STEP
+     * levels, one transition at a time and then several at once, and dosing
+     * it twice along the way.
+     */
+    static State run(int threads, long seed, int step){
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try{
+            State colony = new State(WIDTH, HEIGHT);
+            colony.setSeed(seed);
+            colony.setMutationStep(step);
+            colony.useParallelEngine(pool);
+            colony.randomStart();
+            for(int i=0; i<100; i++){
+                colony.updateState();
+            }
+            colony.advance(150);
+            colony.doseAntibio('b');
+            colony.advance(60);
+            colony.doseAntibio('w');
+            colony.advance(40);
+            return colony;
+        } finally{
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    void sameColonyOnAnyNumberOfThreads(){
+        State one = run(1, 17, 1);
+        assertTrue(one.liveCells()>0);
+        for(int threads : new int[]{2, 3, 4}){
+            State many = run(threads, 17, 1);
+            assertArrayEquals(one.grid.level, many.grid.level, threads + " threads");
+            assertEquals(one.liveCells(), many.liveCells(), threads + " threads");
+            assertEquals(one.average(), many.average(), threads + " threads");
+        }
+    }
+
+    @Test
+    void sameColonyOnAnyNumberOfThreadsWithALargerStep(){
+        State one = run(1, 5, 3);
+        State many = run(4, 5, 3);
+        assertArrayEquals(one.grid.level, many.grid.level);
+        assertEquals(one.liveCells(), many.liveCells());
+    }
+}
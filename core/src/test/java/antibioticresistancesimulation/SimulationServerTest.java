@@ -0,0 +1,181 @@
+package antibioticresistancesimulation;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ForkJoinPool;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/** Checks the HTTP API of the SimulationServer: that the colonies it creates,
+ * steps and doses are the ones a State run the same way holds, including
+ * after they were saved to disk while idle and restored, and that bad
+ * requests are refused.
+ */
+
+class SimulationServerTest {
+    @TempDir
+    Path spill;
+    SimulationServer server;
+    final HttpClient client = HttpClient.newHttpClient();
+
+    @BeforeEach
+    void start() throws IOException{
+        server = new SimulationServer(new InetSocketAddress("127.0.0.1", 0), 2, spill);
+        // The colonies are saved by calling hibernate(), not by the reaper.
+        server.setIdleTimeout(0);
+        server.start();
+    }
+
+    @AfterEach
+    void stop(){
+        server.stop();
+    }
+
+    /** Sends METHOD PATH to the server.
+     * @return The response.
+     */
+    HttpResponse<String> send(String method, String path) throws IOException, InterruptedException{
+        HttpRequest request = HttpRequest.newBuilder(
+                URI.create("http://127.0.0.1:" + server.getPort() + path))
+                .method(method, HttpRequest.BodyPublishers.noBody()).build();
+        return client.send(request, HttpResponse.BodyHandlers.ofString());
+    }
+
+    /** Sends METHOD PATH to the server, and checks that it answers with
+     * STATUS.
+     * @return The body of the response.
+     */
+    String send(String method, String path, int status) throws IOException, InterruptedException{
+        HttpResponse<String> response = send(method, path);
+        assertEquals(status, response.statusCode(), method + " " + path + ": " + response.body());
+        return response.body();
+    }
+
+    /** Returns the number NAME of a JSON object. */
+    static String field(String json, String name){
+        Matcher matcher = Pattern.compile("\"" + name + "\":([-0-9.eE]+|NaN)").matcher(json);
+        assertTrue(matcher.find(), name + " in " + json);
+        return matcher.group(1);
+    }
+
+    /** Checks that the SUMMARY of a session is that of COLONY. */
+    static void assertSummary(State colony, String summary){
+        assertEquals(Long.toString(colony.getTick()), field(summary, "tick"));
+        assertEquals(Long.toString(colony.liveCells()), field(summary, "live"));
+        assertEquals(Long.toString(colony.doses), field(summary, "doses"));
+        assertEquals(colony.average(), Double.parseDouble(field(summary, "average")));
+    }
+
+    /** Returns a colony started as the server starts one of WIDTH x HEIGHT
+     * seeded with SEED and mutating by STEP levels.
+     */
+    static State colony(int width, int height, long seed, int step, ForkJoinPool pool){
+        State colony = new State(width, height);
+        colony.setSeed(seed);
+        colony.setMutationStep(step);
+        if((long) width*height>=SimulationServer.PARALLEL_CELLS){
+            colony.useParallelEngine(pool);
+        }
+        colony.randomStart();
+        return colony;
+    }
+
+    @Test
+    void stepsAndDosesAColony() throws Exception{
+        String created = send("POST", "/sessions?size=120x80&seed=7&step=2", 201);
+        String id = field(created, "id");
+        State colony = colony(120, 80, 7, 2, null);
+        assertSummary(colony, created);
+
+        assertSummary(colony, send("GET", "/sessions/" + id, 200));
+        colony.advance(150);
+        assertSummary(colony, send("POST", "/sessions/" + id + "/step?ticks=150", 200));
+        long live = colony.liveCells();
+        colony.doseAntibio('b');
+        String dosed = send("POST", "/sessions/" + id + "/dose?type=b", 200);
+        assertSummary(colony, dosed);
+        assertEquals(Long.toString(live - colony.liveCells()), field(dosed, "killed"));
+        colony.advance(60);
+        assertSummary(colony, send("POST", "/sessions/" + id + "/step?ticks=60", 200));
+
+        String snapshot = send("GET", "/sessions/" + id + "/snapshot?rows=8&cols=12", 200);
+        assertEquals("8", field(snapshot, "rows"));
+        assertEquals("12", field(snapshot, "cols"));
+        assertTrue(send("GET", "/sessions", 200).contains("\"id\":" + id + ","));
+
+        send("DELETE", "/sessions/" + id, 200);
+        send("GET", "/sessions/" + id, 404);
+    }
+
+    @Test
+    void hibernatedColoniesContinue() throws Exception{
+        ForkJoinPool pool = new ForkJoinPool(2);
+        try{
+            // The large colony runs on the ParallelEngine, the small one on
+            // the sequential scan.
+            for(int size : new int[]{100, 512}){
+                String id = field(send("POST", "/sessions?size=" + size + "&seed=3", 201), "id");
+                State colony = colony(size, size, 3, 1, pool);
+                colony.advance(80);
+                send("POST", "/sessions/" + id + "/step?ticks=80", 200);
+                colony.doseAntibio('w');
+                send("POST", "/sessions/" + id + "/dose?type=w", 200);
+
+                server.hibernate();
+                SimulationServer.Session session = server.find(id);
+                assertNull(session.colony);
+                assertNotNull(session.file);
+                assertTrue(Files.exists(session.file));
+                // The summary is answered without restoring the colony.
+                assertSummary(colony, send("GET", "/sessions/" + id, 200));
+                assertNull(session.colony);
+
+                Path saved = session.file;
+                colony.advance(40);
+                assertSummary(colony, send("POST", "/sessions/" + id + "/step?ticks=40", 200));
+                assertNotNull(session.colony);
+                assertFalse(Files.exists(saved));
+                assertEquals(size>=512, session.colony.parallel!=null);
+            }
+        } finally{
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    void coloniesWithSpotDosesStayInMemory() throws Exception{
+        String id = field(send("POST", "/sessions?size=60&seed=5", 201), "id");
+        send("POST", "/sessions/" + id + "/step?ticks=50", 200);
+        send("POST", "/sessions/" + id + "/dose?type=b&row=30&col=30", 200);
+        server.hibernate();
+        assertNotNull(server.find(id).colony);
+    }
+
+    @Test
+    void refusesBadRequests() throws Exception{
+        String id = field(send("POST", "/sessions?size=30&seed=1", 201), "id");
+        send("GET", "/sessions/12345", 404);
+        send("GET", "/sessions/" + id + "/unknown", 404);
+        send("PUT", "/sessions", 405);
+        send("POST", "/sessions/" + id + "/dose?type=x", 400);
+        send("POST", "/sessions/" + id + "/step?ticks=-1", 400);
+        send("POST", "/sessions?size=10000x10000", 400);
+        send("POST", "/sessions?size=30&step=0", 400);
+    }
+}
@@ -0,0 +1,120 @@
+package antibioticresistancesimulation;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.ForkJoinPool;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.Test;
+
+/** Checks that the shortcuts the engines take do not change the colony:
+ * skipping the empty tiles of the grid, and performing several transitions
+ * at once with advance(). Each is checked with the sequential scan and with
+ * the ParallelEngine.
+ */
+
+class StateTest {
+    static final int WIDTH = 300;
+    static final int HEIGHT = 200;
+    static final ForkJoinPool POOL = new ForkJoinPool(2);
+
+    @AfterAll
+    static void shutdown(){
+        POOL.shutdown();
+    }
+
+    /** Returns a new colony seeded with SEED, run by the ParallelEngine if
+     * PARALLEL is set and skipping the empty tiles if SPARSE is set.
+     */
+    static State colony(long seed, boolean parallel, boolean sparse){
+        State colony = new State(WIDTH, HEIGHT);
+        colony.setSeed(seed);
+        colony.setSparse(sparse);
+        if(parallel){
+            colony.useParallelEngine(POOL);
+        }
+        colony.randomStart();
+        return colony;
+    }
+
+    /** Runs COLONY through TICKS transitions, with advance() if ADVANCE is
+     * set, otherwise one updateState() at a time.
+     */
+    static void run(State colony, long ticks, boolean advance){
+        if(advance){
+            colony.advance(ticks);
+        } else{
+            for(long i=0; i<ticks; i++){
+                colony.updateState();
+            }
+        }
+    }
+
+    /** Runs COLONY from a single Cell until it is dosed, dies back and grows
+     * again, and a field of antibiotics spreads across it.
+     */
+    static void scenario(State colony, boolean advance){
+        run(colony, 40, advance);
+        colony.doseAntibio('b');
+        run(colony, 160, advance);
+        colony.doseAt('w', HEIGHT/2, WIDTH/2);
+        run(colony, 50, advance);
+        colony.doseAntibio('w');
+        run(colony, 150, advance);
+    }
+
+    static void assertSameColony(State expected, State actual){
+        assertArrayEquals(expected.grid.level, actual.grid.level);
+        assertEquals(expected.getTick(), actual.getTick());
+        assertEquals(expected.liveCells(), actual.liveCells());
+        assertEquals(expected.average(), actual.average());
+    }
+
+    @Test
+    void sparseEqualsDense(){
+        for(boolean parallel : new boolean[]{false, true}){
+            State dense = colony(3, parallel, false);
+            State sparse = colony(3, parallel, true);
+            // The colony starts small, so the sparse scan skips most of the
+            // grid for a while.
+            for(int i=0; i<4; i++){
+                run(dense, 25, true);
+                run(sparse, 25, true);
+                assertSameColony(dense, sparse);
+            }
+            scenario(dense, true);
+            scenario(sparse, true);
+            assertTrue(dense.liveCells()>0);
+            assertSameColony(dense, sparse);
+        }
+    }
+
+    @Test
+    void advanceEqualsUpdateState(){
+        for(boolean parallel : new boolean[]{false, true}){
+            for(boolean sparse : new boolean[]{false, true}){
+                State stepped = colony(8, parallel, sparse);
+                State advanced = colony(8, parallel, sparse);
+                scenario(stepped, false);
+                scenario(advanced, true);
+                assertTrue(stepped.liveCells()>0);
+                assertSameColony(stepped, advanced);
+            }
+        }
+    }
+
+    @Test
+    void advanceRunsThroughAnyCount(){
+        // Counts that are not a multiple of the transitions the engine fuses.
+        for(boolean parallel : new boolean[]{false, true}){
+            State stepped = colony(21, parallel, true);
+            State advanced = colony(21, parallel, true);
+            for(long count : new long[]{1, 7, 8, 9, 0, 23, 64, 3}){
+                run(stepped, count, false);
+                run(advanced, count, true);
+                assertSameColony(stepped, advanced);
+            }
+        }
+    }
+}
@@ -0,0 +1,361 @@
+package antibioticresistancesimulation;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/** The AntibioticField class holds the concentration of one type of
+ * antibiotics at every position of a colony, for doses given at a spot of
+ * the plate rather than to the whole colony at once. After every transition,
+ * the antibiotics spread to the neighboring positions and decay, and each
+ * live Cell may be killed by the antibiotics at its position.
+ *
+ * The spreading is an explicit diffusion step over the four neighbors of a
+ * position, the directions daughter Cells are spawned in: each position
+ * passes DIFFUSION of its concentration to each neighbor, and keeps 1-DECAY
+ * of the result. Nothing flows out of the edges of the plate. The step is
+ * stable as long as DIFFUSION is at most 1/4.
+ *
+ * A Cell is killed with the chance a dose of the same type to the whole
+ * colony would kill it with (see State.killed()), times the concentration
+ * at its position, up to a concentration of 1. The random decisions are
+ * derived from the seed, the transition number and the index of the Cell,
+ * as by the ParallelEngine, so the field kills the same Cells whichever
+ * engine runs the colony, and on however many threads. As for the doses, 
+ * the random numbers of a whole row are generated at once by the Kernels, 
+ * and the Cells are killed without a branch.
+ *
+ * Only the rows between TOP and BOTTOM, and the columns between LEFT and
+ * RIGHT, can hold antibiotics; the rest of both buffers is kept at 0. The
+ * rectangle grows by a position in every direction with every step, and
+ * the rows the antibiotics have gone from are dropped from it. Once the
+ * concentration is below MIN_CONCENTRATION everywhere, the field is empty
+ * and costs nothing at all. The rows of the rectangle are split into bands
+ * of BAND_ROWS rows, which are stepped by the tasks of a ForkJoinPool.
+ * The AntibioticField class contains seven variables:
+ * (1) char type: The type of antibiotics, 'b' or 'w'.
+ * (2) int width, int height: The size of the colony.
+ * (3) float[] concentration, float[] nextConcentration: The concentration at
+ * every position, and the buffer the next step is written into.
+ * (4) float diffusion, float decay: The share of its concentration a position
+ * passes to each neighbor, and the share of the antibiotics that decays, in
+ * each step.
+ * (5) int top, int bottom, int left, int right: The rectangle that may hold
+ * antibiotics, BOTTOM and RIGHT excluded; empty if TOP equals BOTTOM.
+ * (6) double[] kills: For each level, the number of 53-bit random numbers
+ * that kill a Cell of that level at a concentration of 1; a Cell is killed
+ * if its random number is below KILLS times the concentration, rounded down.
+ * (7) long[][] bandKilled, int[] bandTop, int[] bandBottom: What each band
+ * found in the last step: the Cells it killed at each level, and its first
+ * and last rows still holding antibiotics.
+ */
+
+public class AntibioticField {
+    /** The concentration below which the antibiotics are gone. */
+    static final float MIN_CONCENTRATION = 1e-4f;
+
+    /** The number of rows stepped by each task. */
+    static final int BAND_ROWS = 64;
+
+    /** The salt of the random stream of the kills of the field. */
+    static final long FIELD_STREAM = 0x6669656C64L;
+
+    /** The random numbers of a row, for each thread. */
+    static final ThreadLocal<long[]> DRAWS = ThreadLocal.withInitial(() -> new long[0]);
+
+    final char type;
+    final int width;
+    final int height;
+    float[] concentration;
+    float[] nextConcentration;
+    float diffusion = 0.2f;
+    float decay = 0.01f;
+    int top;
+    int bottom;
+    int left;
+    int right;
+    final double[] kills = new double[Grid.LEVELS+1];
+    final long[][] bandKilled;
+    final int[] bandTop;
+    final int[] bandBottom;
+
+    /** Creates an empty field of antibiotics of type TYPE over a WIDTH x
+     * HEIGHT colony.
+     * @param type The type of antibiotics, 'b' or 'w'.
+     */
+    public AntibioticField(char type, int width, int height){
+        if(type!='b' && type!='w'){
+            throw new IllegalArgumentException("Unknown type of antibiotics " + type);
+        }
+        Grid.checkSize(width, height);
+        this.type = type;
+        this.width = width;
+        this.height = height;
+        concentration = new float[width*height];
+        nextConcentration = new float[width*height];
+        long[] thresholds = State.thresholdsOf(type);
+        for(int l=1; l<=Grid.LEVELS; l++){
+            kills[l] = (1L << 53) - 1 - thresholds[l];
+        }
+        int bands = (height + BAND_ROWS - 1) / BAND_ROWS;
+        bandKilled = new long[bands][Grid.LEVELS+1];
+        bandTop = new int[bands];
+        bandBottom = new int[bands];
+    }
+
+    /** Sets how fast the antibiotics spread and decay.
+     * @param diffusion The share of its concentration a position passes to
+     * each of its neighbors in each step, between 0 and 0.25.
+     * @param decay The share of the antibiotics that decays in each step,
+     * between 0 and 1.
+     */
+    public void setRates(double diffusion, double decay){
+        checkRates(diffusion, decay);
+        this.diffusion = (float) diffusion;
+        this.decay = (float) decay;
+    }
+
+    /** Checks the rates of setRates().
+     * @throws IllegalArgumentException If they are out of range.
+     */
+    static void checkRates(double diffusion, double decay){
+        if(!(diffusion>=0 && diffusion<=0.25)){
+            throw new IllegalArgumentException("The diffusion must be between 0 and 0.25, got "
+                    + diffusion);
+        }
+        if(!(decay>=0 && decay<=1)){
+            throw new IllegalArgumentException("The decay must be between 0 and 1, got " + decay);
+        }
+    }
+
+    /** Returns whether the field holds no antibiotics.
+     * @return True if the concentration is 0 everywhere.
+     */
+    public boolean isEmpty(){
+        return top==bottom;
+    }
+
+    /** Returns the concentration of the antibiotics at a position.
+     * @param row Row index of the position
+     * @param col Col index of the position
+     * @return The concentration, 1 killing as many Cells as a dose to the
+     * whole colony.
+     */
+    public double getConcentration(int row, int col){
+        return concentration[row*width + col];
+    }
+
+    /** Adds AMOUNT of antibiotics to every position within RADIUS of ROW,
+     * COL.
+     * @param row Row index of the center of the spot
+     * @param col Col index of the center of the spot
+     * @param amount The concentration added.
+     * @param radius The radius of the spot, in positions.
+     */
+    public void dose(int row, int col, double amount, int radius){
+        if(row<0 || row>=height || col<0 || col>=width){
+            throw new IllegalArgumentException("The position " + row + "," + col
+                    + " is not within the " + width + "x" + height + " grid");
+        }
+        int rowFrom = Math.max(row - radius, 0);
+        int rowTo = Math.min(row + radius + 1, height);
+        int colFrom = Math.max(col - radius, 0);
+        int colTo = Math.min(col + radius + 1, width);
+        for(int i=rowFrom; i<rowTo; i++){
+            for(int j=colFrom; j<colTo; j++){
+                int di = i - row;
+                int dj = j - col;
+                if(di*di + dj*dj <= radius*radius){
+                    concentration[i*width + j] += (float) amount;
+                }
+            }
+        }
+        if(isEmpty()){
+            top = rowFrom;
+            bottom = rowTo;
+            left = colFrom;
+            right = colTo;
+        } else{
+            top = Math.min(top, rowFrom);
+            bottom = Math.max(bottom, rowTo);
+            left = Math.min(left, colFrom);
+            right = Math.max(right, colTo);
+        }
+    }
+
+    /** Removes all the antibiotics. */
+    public void clear(){
+        Arrays.fill(concentration, 0f);
+        Arrays.fill(nextConcentration, 0f);
+        top = 0;
+        bottom = 0;
+        left = 0;
+        right = 0;
+    }
+
+    /** Lets the antibiotics spread and decay for one step, and kills the
+     * live Cells of LEVEL they reach.
+     * @param level The levels of the colony, as in the Grid.
+     * @param seed The seed of the random decisions.
+     * @param tick The number of the transition the step follows.
+     * @param pool The pool running the bands, or null to run them on the
+     * calling thread.
+     * @param killed Counts the Cells killed at each level.
+     */
+    public void step(byte[] level, long seed, long tick, ForkJoinPool pool, long[] killed){
+        if(isEmpty()){
+            return;
+        }
+        // The antibiotics reach one position further in every direction.
+        int from = Math.max(top - 1, 0);
+        int to = Math.min(bottom + 1, height);
+        left = Math.max(left - 1, 0);
+        right = Math.min(right + 1, width);
+        int firstBand = from / BAND_ROWS;
+        int lastBand = (to - 1) / BAND_ROWS + 1;
+        if(pool==null || lastBand - firstBand < 2){
+            stepBands(level, seed, tick, from, to, firstBand, lastBand);
+        } else{
+            pool.invoke(new BandTask(level, seed, tick, from, to, firstBand, lastBand));
+        }
+
+        // The rows outside the rectangle are 0 in both buffers, those left
+        // out of it are cleared in the buffer the next step is written into.
+        int newTop = to;
+        int newBottom = from;
+        for(int b=firstBand; b<lastBand; b++){
+            long[] counts = bandKilled[b];
+            for(int l=1; l<counts.length; l++){
+                killed[l] += counts[l];
+                counts[l] = 0;
+            }
+            if(bandTop[b]<bandBottom[b]){
+                newTop = Math.min(newTop, bandTop[b]);
+                newBottom = Math.max(newBottom, bandBottom[b]);
+            }
+        }
+        float[] c = concentration;
+        concentration = nextConcentration;
+        nextConcentration = c;
+        if(newTop>=newBottom){
+            // The step left nothing in the new buffer either.
+            Arrays.fill(c, from*width, to*width, 0f);
+            top = 0;
+            bottom = 0;
+            left = 0;
+            right = 0;
+            return;
+        }
+        Arrays.fill(c, from*width, newTop*width, 0f);
+        Arrays.fill(c, newBottom*width, to*width, 0f);
+        top = newTop;
+        bottom = newBottom;
+    }
+
+    /** Steps row ROW of the field into the next buffer, over the columns
+     * between LEFT and RIGHT, and kills the live Cells the antibiotics reach.
+     * @return Whether any antibiotics are left in the row.
+     */
+    boolean stepRow(int row, byte[] level, long seed, long tick, long[] draws, long[] killed){
+        float[] c = concentration;
+        float[] next = nextConcentration;
+        int k = row*width;
+        // Nothing flows through the edges: a missing neighbor is the
+        // position itself.
+        int up = row>0 ? k - width : k;
+        int down = row<height-1 ? k + width : k;
+        float keep = 1 - decay;
+        float a = keep*(1 - 4*diffusion);
+        float b = keep*diffusion;
+        float min = MIN_CONCENTRATION;
+        boolean kept = false;
+        if(left==0){
+            float v = a*c[k] + b*(c[up] + c[down] + c[k] + c[k+1]);
+            kept = v>=min;
+            next[k] = kept ? v : 0f;
+        }
+        Kernels kernels = Kernels.get();
+        kept |= kernels.diffuse(c, next, k, up, down, a, b, min, 
+                Math.max(left, 1), Math.min(right, width-1));
+        if(right==width){
+            int e = k + width - 1;
+            float v = a*c[e] + b*(c[up+width-1] + c[down+width-1] + c[e-1] + c[e]);
+            kept |= v>=min;
+            next[e] = v<min ? 0f : v;
+        }
+        if(!kept){
+            return false;
+        }
+        kernels.positionMix(seed, tick, k + left, FIELD_STREAM, draws, right - left);
+        for(int j=k+left; j<k+right; j++){
+            int l = level[j];
+            // The limit is 0 for empty positions, and where the antibiotics
+            // are gone, so no random number is below it.
+            long limit = (long)(Math.min(next[j], 1f)*kills[l]);
+            int dies = (int)(((draws[j-k-left] >>> 11) - limit) >>> 63);
+            killed[l] += dies;
+            level[j] = (byte)(l & (dies - 1));
+        }
+        return true;
+    }
+
+    /** Steps the rows ROWFROM to ROWTO of the bands FROM to TO, and records
+     * what each band found.
+     */
+    void stepBands(byte[] level, long seed, long tick, int rowFrom, int rowTo, int from, int to){
+        long[] draws = DRAWS.get();
+        if(draws.length<width){
+            draws = new long[width];
+            DRAWS.set(draws);
+        }
+        for(int band=from; band<to; band++){
+            int first = Math.max(band*BAND_ROWS, rowFrom);
+            int last = Math.min((band+1)*BAND_ROWS, rowTo);
+            long[] killed = bandKilled[band];
+            int bandFirst = last;
+            int bandLast = first;
+            for(int i=first; i<last; i++){
+                if(stepRow(i, level, seed, tick, draws, killed)){
+                    bandFirst = Math.min(bandFirst, i);
+                    bandLast = i+1;
+                }
+            }
+            bandTop[band] = bandFirst;
+            bandBottom[band] = bandLast;
+        }
+    }
+
+    /** A task stepping the bands FROM to TO, and the rows ROWFROM to ROWTO
+     * within them, splitting itself in half until a single band is left.
+     */
+    private class BandTask extends RecursiveAction {
+        final byte[] level;
+        final long seed;
+        final long tick;
+        final int rowFrom;
+        final int rowTo;
+        final int from;
+        final int to;
+
+        BandTask(byte[] level, long seed, long tick, int rowFrom, int rowTo, int from, int to){
+            this.level = level;
+            this.seed = seed;
+            this.tick = tick;
+            this.rowFrom = rowFrom;
+            this.rowTo = rowTo;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute(){
+            if(to-from > 1){
+                int mid = (from + to) >>> 1;
+                invokeAll(new BandTask(level, seed, tick, rowFrom, rowTo, from, mid),
+                        new BandTask(level, seed, tick, rowFrom, rowTo, mid, to));
+                return;
+            }
+            stepBands(level, seed, tick, rowFrom, rowTo, from, to);
+        }
+    }
+}
@@ -2,36 +2,113 @@ package antibioticresistancesimulation;
 
 import java.awt.*;
 import java.awt.event.*;
-import java.util.Enumeration;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import javax.management.JMException;
 import javax.swing.*;
-import javax.swing.table.AbstractTableModel;
-import javax.swing.table.DefaultTableCellRenderer;
-import javax.swing.table.TableColumn;
 
 /** The AntibiotiResistanceSimulation class builds the GUI of the 
  * simulation and contains the main class of the project. 
- * The AntibioticResistanceSimulation class contains four variables:
+ * The AntibioticResistanceSimulation class contains seven variables:
  * (1) State colony: An State object to represent our bacteria colony.
- * (2) double[][] population: A 2-D array containing the model that represents
- * bacteria colony to be used by the graphics builder. 
- * (3) JLabel averageLabel: A label to print the average gene expression level 
- * of the colony.
- * (4) JFrame frame: Base frame of our GUI. 
+ * (2) SimulationLoop loop: The loop running the COLONY on its own thread. The
+ * GUI never touches the COLONY directly, it submits commands to the LOOP and 
+ * shows the snapshots the LOOP publishes.
+ * (3) ColonyView view: The panel the bacteria colony is painted in. 
+ * (4) long shown: The sequence number of the snapshot on the screen.
+ * (5) JLabel averageLabel: A label to print the average gene expression level 
+ * of the colony and its variance.
+ * (6) HistogramView histogram: A chart of the distribution of the gene 
+ * expression levels of the colony.
+ * (7) JFrame frame: Base frame of our GUI. 
  */
 
 public class AntibioticResistanceSimulation extends JFrame {
     
-double[][] population  = new double[25][25];
-State colony = new State();
+/** The number of frames per second the GUI samples the snapshots at. */
+static final int FRAMES_PER_SECOND = 60;
+
+State colony;
+SimulationLoop loop;
+ColonyView view;
+long shown;
 JLabel averageLabel = new JLabel();
+HistogramView histogram = new HistogramView();
 JFrame frame;
 
 
+    /** Starts the simulation. The size of the colony can optionally be given
+     * as arguments: either a single dimension for a square grid, or a width
+     * followed by a height. The default is a 25x25 grid. A third argument 
+     * sets the number of transitions per second (default 2, 0 to run as fast
+     * as possible). 
+     * The arguments may be preceded by "--record FILE" to record every 
+     * transition to FILE, or replaced by "--replay FILE" to replay such a 
+     * recording in a ReplayViewer.
+     */
     public static void main(String[] args) {
-        new AntibioticResistanceSimulation();
+        int width = 25;
+        int height = 25;
+        double ticksPerSecond = 2;
+        Path record = null;
+        int first = 0;
+        if(args.length>=2 && args[0].equals("--replay")){
+            Path file = Paths.get(args[1]);
+            EventQueue.invokeLater(() -> {
+                try {
+                    new ReplayViewer(file);
+                } catch (IOException ex) {
+                    System.err.println(ex.getMessage());
+                    System.exit(1);
+                }
+            });
+            return;
+        }
+        if(args.length>=2 && args[0].equals("--record")){
+            record = Paths.get(args[1]);
+            first = 2;
+        }
+        if(args.length>=first+1){
+            width = Integer.parseInt(args[first]);
+            height = width;
+        }
+        if(args.length>=first+2){
+            height = Integer.parseInt(args[first+1]);
+        }
+        if(args.length>=first+3){
+            ticksPerSecond = Double.parseDouble(args[first+2]);
+        }
+        TrajectoryRecorder recorder = null;
+        if(record!=null){
+            try {
+                recorder = new TrajectoryRecorder(record, width, height, 100);
+            } catch (IOException ex) {
+                System.err.println(ex.getMessage());
+                System.exit(1);
+            }
+        }
+        new AntibioticResistanceSimulation(width, height, ticksPerSecond, recorder);
     }
 
     public AntibioticResistanceSimulation() {
+        this(25, 25, 2, null);
+    }
+
+    /** Builds the GUI for a new WIDTH x HEIGHT colony updated TICKSPERSECOND
+     * times per second, recording every transition with RECORDER unless it
+     * is null.
+     */
+    public AntibioticResistanceSimulation(int width, int height, double ticksPerSecond, 
+            TrajectoryRecorder recorder) {
+        colony = new State(width, height);
+        try {
+            colony.getMetrics().register("gui");
+        } catch (JMException ex) {
+            System.err.println("The metrics cannot be published: " + ex.getMessage());
+        }
+        
         EventQueue.invokeLater(new Runnable() {
             @Override
             public void run() {
@@ -41,22 +118,40 @@ JFrame frame;
                     ex.printStackTrace();
                 }
                 
-                /* Initialize the POPULATION tabel model to contain 1 in all of 
-                its cells. This paints all of the JTabel cells to apper white
-                upon start of the application.
+                /* The view starts out painted white, and is only ever 
+                repainted where the colony changes. 
                 */
-                for(int i=0; i<25; i++){
-                    for(int j=0; j<25; j++){
-                        population[i][j] = 1;
-                    }
-                }
+                view = new ColonyView(width, height);
                 
                 // Basic set-up for the main frame of GUI. 
                 frame = new JFrame("AntibioticResistanceSimulation");
                 frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
+                // Stop the loop before exiting, so that the recording is
+                // written out completely.
+                frame.addWindowListener(new WindowAdapter() {
+                    @Override
+                    public void windowClosing(WindowEvent e) {
+                        try {
+                            loop.stop();
+                        } catch (InterruptedException ex) {
+                            Thread.currentThread().interrupt();
+                        }
+                    }
+                });
                 frame.setResizable(false);
                 frame.setBackground(new java.awt.Color(0, 0, 0));
-                frame.add(new TestPane(population));
+                frame.add(view);
+                
+                // Clicking the colony doses it at that spot, with antibiotic
+                // solution ① for the left button and ② for the others.
+                view.setToolTipText("Click to dose antibiotics ① here, right-click for ②");
+                view.addMouseListener(new MouseAdapter() {
+                    @Override
+                    public void mousePressed(MouseEvent e) {
+                        char type = SwingUtilities.isLeftMouseButton(e) ? 'b' : 'w';
+                        loop.doseAt(type, view.rowAt(e.getY()), view.colAt(e.getX()));
+                    }
+                });
                 
                 
                 // Creating JButtons for Restart and dosing different antibiotic
@@ -65,157 +160,128 @@ JFrame frame;
                 restartButton.setText("RESTART");
                 restartButton.addActionListener(new java.awt.event.ActionListener() {
                     public void actionPerformed(java.awt.event.ActionEvent evt) {
-                        colony.randomStart();
-                        population=colony.exportModel();
+                        loop.restart();
                     }
                 });
                 JButton doseBlackButton = new javax.swing.JButton();
                 doseBlackButton.setText("DOSE ANTIBIOTICS ①");
                 doseBlackButton.addActionListener(new java.awt.event.ActionListener() {
                     public void actionPerformed(java.awt.event.ActionEvent evt) {
-                        colony.doseAntibio('b');
+                        loop.dose('b');
                     }
                 });  
                 JButton doseWhiteButton = new javax.swing.JButton();
                 doseWhiteButton.setText("DOSE ANTIBIOTICS ②");
                 doseWhiteButton.addActionListener(new java.awt.event.ActionListener() {
                     public void actionPerformed(java.awt.event.ActionEvent evt) {
-                        colony.doseAntibio('w');
+                        loop.dose('w');
                     }
                 });   
                 
-                // Position all the buttons and the averageLabel onto the bottom
-                // of the frame.
+                // Creating JButtons to save the colony to a checkpoint and to
+                // restore it from one. Both are done by the LOOP, in between
+                // two transitions.
+                JButton saveButton = new javax.swing.JButton();
+                saveButton.setText("SAVE");
+                saveButton.addActionListener(new java.awt.event.ActionListener() {
+                    public void actionPerformed(java.awt.event.ActionEvent evt) {
+                        Path file = chooseFile(true);
+                        if(file!=null){
+                            loop.submit(c -> {
+                                try {
+                                    Checkpoint.save(c, file);
+                                } catch (IOException ex) {
+                                    showError(ex);
+                                }
+                            });
+                        }
+                    }
+                });
+                JButton loadButton = new javax.swing.JButton();
+                loadButton.setText("LOAD");
+                loadButton.addActionListener(new java.awt.event.ActionListener() {
+                    public void actionPerformed(java.awt.event.ActionEvent evt) {
+                        Path file = chooseFile(false);
+                        if(file!=null){
+                            loop.submit(c -> {
+                                try {
+                                    Checkpoint.restore(c, file);
+                                } catch (IOException ex) {
+                                    showError(ex);
+                                }
+                            });
+                        }
+                    }
+                });
+                
+                // Position all the buttons, the averageLabel and the histogram
+                // onto the bottom of the frame.
                 JPanel bottomPanel = new JPanel();
                 bottomPanel.add(restartButton);
                 bottomPanel.add(doseBlackButton);
                 bottomPanel.add(doseWhiteButton);
+                bottomPanel.add(saveButton);
+                bottomPanel.add(loadButton);
                 bottomPanel.add(averageLabel);
+                bottomPanel.add(histogram);
                 frame.add(bottomPanel, BorderLayout.PAGE_END);
                 
                 frame.pack();
 
-                // Timer object used to update the state of the colony every 
-                // second.
-                Timer timer = new Timer(1000, new AntibioticResistanceSimulation.TimerListener());
-                timer.start();
-                
-                // Provoke the start of the simulation.
+                // Provoke the start of the simulation on its own thread.
                 colony.randomStart();
-                population = colony.exportModel();
+                loop = new SimulationLoop(colony, view.getModelRows(), 
+                        view.getModelCols(), ticksPerSecond);
+                if(recorder!=null){
+                    loop.setRecorder(recorder);
+                }
+                loop.start();
+                
+                // Timer object used to show the latest snapshot of the colony
+                // FRAMES_PER_SECOND times per second.
+                Timer timer = new Timer(1000/FRAMES_PER_SECOND, new AntibioticResistanceSimulation.TimerListener());
+                timer.start();
                 
                 frame.setVisible(true);
             }
         });
     }
     
+    /** Asks for a checkpoint file to save to or to load from.
+     * @return The file chosen, or null if none was.
+     */
+    private Path chooseFile(boolean save) {
+        JFileChooser chooser = new JFileChooser(new File("."));
+        int option = save ? chooser.showSaveDialog(frame) : chooser.showOpenDialog(frame);
+        return option==JFileChooser.APPROVE_OPTION ? chooser.getSelectedFile().toPath() : null;
+    }
+    
+    /** Reports a failed save or load. May be called from any thread. */
+    private void showError(IOException ex) {
+        EventQueue.invokeLater(() -> JOptionPane.showMessageDialog(frame, 
+                ex.getMessage(), "Checkpoint", JOptionPane.ERROR_MESSAGE));
+    }
+    
         /** The TimerListener class contains the actions to be performed
-         * at each second of the simulation. The action listener first 
-         * updates the state of the COLONY using updateState(), updates the
-         * table model POPULATION by exporting COLONY as an appropriate form 
-         * using exportModel(), updates the text displayed by averageLabel using
-         * average(), then creates and adds a new TestPane based on the updated
-         * POPULATION table model to update the graphics displayed on the screen.
+         * at each frame of the GUI. The action listener takes the latest 
+         * snapshot published by the LOOP and, if it was not shown yet, paints
+         * the changes into the VIEW, then updates the text displayed by 
+         * averageLabel and the histogram.
          * 
          */
         private class TimerListener implements ActionListener {
             @Override
             public void actionPerformed(ActionEvent e){
-                // The updateState() is called twice each second to speed up 
-                // the demonstrated process.
-                for(int i=0; i<2; i++){
-                    colony.updateState();
+                Snapshot snapshot = loop.latest();
+                if(snapshot.getSequence()==shown){
+                    return;
                 }
-                population  = colony.exportModel();
-                averageLabel.setText("Average: " + colony.average());
-                frame.add(new TestPane(population));
-                frame.pack();
-            }
-        }
-
-        /** The following code of TestPane, PaintTableCellRenderer, 
-         * AsciiTableModel classes were written by MadProgrammer. The code
-         * was modified only to fit the dimensions of the colony, and to detect
-         * the current state of the bacteria colony as the basis of the table 
-         * model, instead of the original smilely graphics.
-         * 
-         * The function of the code is to paint the background of each cell of 
-         * the JTabel based on the value contained by that cell. In our case, 
-         * the higher the gene expression of a bacteria cell, the darker the 
-         * JTabel cell appears on the screen.
-         * 
-         * @Author MadProgrammer
-         * URL: https://stackoverflow.com/questions/30552644/how-do-i-color-individual-cells-of-a-jtable-based-on-the-value-in-the-cell
-         */
-    
-        public class TestPane extends JPanel {
-        public TestPane(double[][] state) {
-            AntibioticResistanceSimulation.AsciiTableModel model = new AntibioticResistanceSimulation.AsciiTableModel();
-            model.setData(state);
-
-            JTable table = new JTable(model);
-            table.setRowHeight(25);
-            Enumeration<TableColumn> columns = table.getColumnModel().getColumns();
-            while (columns.hasMoreElements()) {
-                TableColumn col = columns.nextElement();
-                col.setWidth(25);
-                col.setPreferredWidth(25);
-                col.setMinWidth(25);
-                col.setMaxWidth(25);
-            }
-            table.setRowHeight(25);
-            table.setAutoResizeMode(JTable.AUTO_RESIZE_OFF);
-            table.setDefaultRenderer(Object.class, new PaintTableCellRenderer());
-
-            setLayout(new BorderLayout());
-            add(new JScrollPane(table));
-        }
-
-        @Override
-        public Dimension getPreferredSize() {
-            return new Dimension(630, 660);
-        }
-    }
-
-        public class PaintTableCellRenderer extends DefaultTableCellRenderer {
-        @Override
-        public Component getTableCellRendererComponent(JTable table, Object value, boolean isSelected, boolean hasFocus, int row, int column) {
-            super.getTableCellRendererComponent(table, "", isSelected, hasFocus, row, column);
-            if (value instanceof Double) {
-                double distance = (double) value;
-                int part = (int) (255 * distance);
-                Color color = new Color(part, part, part);
-                setBackground(color);
-            } else {
-                setBackground(Color.WHITE);
+                shown = snapshot.getSequence();
+                view.update(snapshot.getModel());
+                ColonyStatistics statistics = snapshot.getStatistics();
+                averageLabel.setText(String.format("Average: %.3f  Variance: %.4f", 
+                        snapshot.getAverage(), statistics.getVariance()));
+                histogram.update(statistics);
             }
-            return this;
-        }
-    }
-        public class AsciiTableModel extends AbstractTableModel {
-        private double[][] data;
-        public AsciiTableModel() {
-            data = new double[25][25];
-        }
-        
-        public void setData(double[][] value) {
-            data = value;
-            fireTableDataChanged();
-        }
-
-        @Override
-        public int getRowCount() {
-            return 25;
-        }
-
-        @Override
-        public int getColumnCount() {
-            return 25;
-        }
-
-        @Override
-        public Object getValueAt(int rowIndex, int columnIndex) {
-            return data[rowIndex][columnIndex];
         }
-    }
 }
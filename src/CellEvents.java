@@ -0,0 +1,533 @@
+package antibioticresistancesimulation;
+
+import java.lang.invoke.VarHandle;
+import java.util.Arrays;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+/** The CellEvents class streams what happens to the Cells of a colony to
+ * consumers running on their own threads, e.g. to track lineages, export a
+ * run or chart it live: the birth of every daughter Cell, whether its GENEXP
+ * mutated or not, and the death of every Cell killed by antibiotics. A State
+ * only records the events while a stream is set (see State.setEvents()) and
+ * has at least one subscriber, or while it keeps its Lineage; otherwise its
+ * transitions and doses run exactly as without it, and allocate nothing.
+ *
+ * The events are packed into longs and passed on through a ring of CAPACITY
+ * preallocated slots, in the manner of the LMAX Disruptor: the thread
+ * running the colony is the only producer, and each subscriber reads the
+ * ring on its own thread, at its own pace, keeping the SEQUENCE of the next
+ * event it will handle. Nothing is locked or allocated per event. The colony
+ * records the events into a Buffer of BATCH events, which it publishes 
+ * whenever it fills up and once the transition or dose is over, a single 
+ * volatile store of CURSOR making a whole batch visible to the subscribers.
+ * The ParallelEngine records them into a Buffer per tile or band, and only
+ * runs a few of them per thread before they are published, so however large
+ * the colony, the events waiting to be published take a bounded amount of
+ * memory and the subscribers hold the colony back as soon as they fall 
+ * behind.
+ *
+ * Each subscriber chooses what happens when it falls a whole ring behind. A
+ * BLOCK subscriber holds the colony back until it catches up, so it sees
+ * every event. A DROP subscriber never holds the colony back: the events it
+ * has not read yet are overwritten, and it skips ahead to the oldest event
+ * left, which shows as a gap in the sequence numbers it is handed and is
+ * counted by its Subscription.
+ *
+ * Every transition starts with a TICK event and every dose to the whole
+ * colony with a DOSE event. The events in between come in the order the
+ * engine produced them: row by row, except that the ParallelEngine goes 
+ * tile by tile, row by row within each tile, for doses and while its 
+ * Frontier tracks a small colony. The Cells killed by the antibiotics given
+ * at a spot come after the births of the transition. Given the same seed and
+ * engine, the same events come in the same order on however many threads.
+ * An event holds its KIND in its lowest three bits, and:
+ * (1) TICK: The number of the transition, as getTick() returns it once the
+ * transition is over, in place of the position (see position()).
+ * (2) DOSE: The type of antibiotics (see type()).
+ * (3) BIRTH, MUTATION: The position of the daughter Cell, its level and the
+ * level of its parent (see level() and parentLevel()), which differ for a
+ * MUTATION, the direction it was placed in by its parent (see parent()),
+ * and the level of the Cell it replaced, or 0 (see replaced()).
+ * (4) DEATH: The position and level of a Cell killed by antibiotics, their
+ * type, and whether they were given at a spot (see spot()).
+ * The CellEvents class contains three variables:
+ * (1) long[] ring: The slots of the events, indexed by sequence modulo its
+ * length, CAPACITY.
+ * (2) Sequence cursor, Sequence claim: The number of events published, and
+ * the number the producer has started writing, which DROP subscribers check
+ * their slot against after reading it.
+ * (3) Subscription[] subscribers: The subscribers, replaced as a whole when
+ * one comes or goes.
+ */
+
+public class CellEvents implements AutoCloseable {
+    /** The default number of slots of the ring. */
+    public static final int CAPACITY = 1 << 16;
+
+    /** The number of events the colony records before it publishes them. */
+    static final int BATCH = CAPACITY/4;
+
+    /** What a subscriber does when it falls a whole ring behind. */
+    public static final int BLOCK = 0;
+    public static final int DROP = 1;
+
+    // The kinds of events.
+    public static final int TICK = 0;
+    public static final int DOSE = 1;
+    public static final int BIRTH = 2;
+    public static final int MUTATION = 3;
+    public static final int DEATH = 4;
+
+    // The bits of an event, above the kind.
+    static final int LEVEL_SHIFT = 3;
+    static final int PARENT_SHIFT = 8;
+    static final int REPLACED_SHIFT = 16;
+    static final int DIRECTION_SHIFT = 21;
+    static final long SPOT = 1L << 23;
+    static final int POSITION_SHIFT = 24;
+
+    /** The number of times an idle subscriber checks for new events before
+     * it sleeps, and how long it, or a blocked producer, then sleeps for. */
+    static final int SPINS = 100;
+    static final long PARK_NANOS = 50_000;
+
+    final long[] ring;
+    final int mask;
+    final Sequence cursor = new Sequence();
+    final Sequence claim = new Sequence();
+    volatile Subscription[] subscribers = new Subscription[0];
+
+    /** Creates a stream with a ring of CAPACITY slots. */
+    public CellEvents(){
+        this(CAPACITY);
+    }
+
+    /** Creates a stream.
+     * @param capacity The number of slots of the ring, a power of 2.
+     */
+    public CellEvents(int capacity){
+        if(capacity<2 || Integer.bitCount(capacity)!=1){
+            throw new IllegalArgumentException("The capacity must be a power of 2, got " + capacity);
+        }
+        ring = new long[capacity];
+        mask = capacity - 1;
+    }
+
+    /** Starts a subscriber, which is handed every event published from now
+     * on, in order, on a thread of its own.
+     * @param name The name of the subscriber, used for its thread.
+     * @param handler The handler of the events.
+     * @param overflow What to do when the subscriber falls a whole ring
+     * behind, BLOCK or DROP.
+     * @return The subscription, which stops the subscriber when closed.
+     */
+    public synchronized Subscription subscribe(String name, Handler handler, int overflow){
+        if(overflow!=BLOCK && overflow!=DROP){
+            throw new IllegalArgumentException("Unknown overflow " + overflow);
+        }
+        // Starting after the events being written, which are not held back
+        // by this subscriber yet.
+        Subscription subscription = new Subscription(name, handler, overflow==DROP, claim.get());
+        Subscription[] list = Arrays.copyOf(subscribers, subscribers.length + 1);
+        list[list.length - 1] = subscription;
+        subscribers = list;
+        subscription.thread.start();
+        return subscription;
+    }
+
+    /** Takes a subscriber off the list, once its thread is over. */
+    synchronized void remove(Subscription subscription){
+        Subscription[] list = subscribers;
+        for(int i=0; i<list.length; i++){
+            if(list[i]==subscription){
+                Subscription[] shorter = Arrays.copyOf(list, list.length - 1);
+                System.arraycopy(list, i + 1, shorter, i, list.length - i - 1);
+                subscribers = shorter;
+                return;
+            }
+        }
+    }
+
+    /** Returns whether anyone subscribes to the events.
+     * @return True if there is a subscriber.
+     */
+    public boolean isActive(){
+        return subscribers.length>0;
+    }
+
+    /** Returns the number of events published so far.
+     * @return The sequence of the next event.
+     */
+    public long getPublished(){
+        return cursor.get();
+    }
+
+    /** Stops all the subscribers once they handled the events published so
+     * far.
+     */
+    @Override
+    public void close(){
+        for(Subscription subscription : subscribers){
+            subscription.close();
+        }
+    }
+
+    /** Publishes the events recorded in BUFFER, and empties it. Only the
+     * thread running the colony may publish. If a BLOCK subscriber is a
+     * whole ring behind, waits until it has made room.
+     */
+    void publish(Buffer buffer){
+        long[] events = buffer.events;
+        int count = buffer.size;
+        int capacity = ring.length;
+        long next = cursor.get();
+        int from = 0;
+        while(from<count){
+            long limit = next + capacity;
+            for(Subscription subscription : subscribers){
+                if(!subscription.drop){
+                    limit = Math.min(limit, subscription.sequence.get() + capacity);
+                }
+            }
+            if(limit<=next){
+                LockSupport.parkNanos(this, PARK_NANOS);
+                continue;
+            }
+            int n = (int) Math.min(limit - next, count - from);
+            // The claim must be seen before any of the slots it overwrites.
+            claim.set(next + n);
+            VarHandle.storeStoreFence();
+            int slot = (int) next & mask;
+            int first = Math.min(n, capacity - slot);
+            System.arraycopy(events, from, ring, slot, first);
+            System.arraycopy(events, from + first, ring, 0, n - first);
+            next += n;
+            from += n;
+            cursor.set(next);
+            for(Subscription subscription : subscribers){
+                if(subscription.sleeping){
+                    LockSupport.unpark(subscription.thread);
+                }
+            }
+        }
+        buffer.size = 0;
+    }
+
+    /** Returns a TICK event.
+     * @param tick The number of the transition.
+     */
+    static long tick(long tick){
+        return tick << POSITION_SHIFT | TICK;
+    }
+
+    /** Returns a DOSE event.
+     * @param type The type of antibiotics.
+     */
+    static long dose(char type){
+        return (long) type << PARENT_SHIFT | DOSE;
+    }
+
+    /** Returns a BIRTH or MUTATION event.
+     * @param position The index of the daughter Cell in the colony.
+     * @param direction The direction its parent placed it in, see Neighbors.
+     * @param parent The level of the parent.
+     * @param level The level of the daughter Cell.
+     * @param replaced The level of the Cell it replaced, or 0.
+     */
+    static long birth(long position, int direction, int parent, int level, int replaced){
+        return position << POSITION_SHIFT | (long) direction << DIRECTION_SHIFT
+                | replaced << REPLACED_SHIFT | parent << PARENT_SHIFT | level << LEVEL_SHIFT
+                | (parent==level ? BIRTH : MUTATION);
+    }
+
+    /** Returns a DEATH event.
+     * @param position The index of the Cell in the colony.
+     * @param level The level of the Cell.
+     * @param type The type of antibiotics.
+     * @param spot Whether they were given at a spot.
+     */
+    static long death(long position, int level, char type, boolean spot){
+        return position << POSITION_SHIFT | (spot ? SPOT : 0) | (long) type << PARENT_SHIFT
+                | level << LEVEL_SHIFT | DEATH;
+    }
+
+    /** Returns the kind of an event.
+     * @param event The event.
+     * @return TICK, DOSE, BIRTH, MUTATION or DEATH.
+     */
+    public static int kind(long event){
+        return (int) event & 7;
+    }
+
+    /** Returns the index in the colony of the Cell of an event, row*width +
+     * col, or the number of the transition of a TICK event.
+     * @param event The event.
+     * @return The position.
+     */
+    public static long position(long event){
+        return event >>> POSITION_SHIFT;
+    }
+
+    /** Returns the level of the Cell born or killed, as stored in the Grid.
+     * @param event A BIRTH, MUTATION or DEATH event.
+     * @return The level, between 1 and Grid.LEVELS.
+     */
+    public static int level(long event){
+        return (int) (event >>> LEVEL_SHIFT) & 31;
+    }
+
+    /** Returns the level of the parent of a daughter Cell.
+     * @param event A BIRTH or MUTATION event.
+     * @return The level, between 1 and Grid.LEVELS.
+     */
+    public static int parentLevel(long event){
+        return (int) (event >>> PARENT_SHIFT) & 31;
+    }
+
+    /** Returns the level of the Cell a daughter Cell replaced.
+     * @param event A BIRTH or MUTATION event.
+     * @return The level, or 0 if the position was empty.
+     */
+    public static int replaced(long event){
+        return (int) (event >>> REPLACED_SHIFT) & 31;
+    }
+
+    /** Returns the position of the parent of a daughter Cell.
+     * @param event A BIRTH or MUTATION event.
+     * @param width The width of the colony.
+     * @return The index of the parent in the colony.
+     */
+    public static long parent(long event, int width){
+        int d = (int) (event >>> DIRECTION_SHIFT) & 3;
+        return position(event) - Neighbors.ROW_STEPS[d]*(long) width - Neighbors.COL_STEPS[d];
+    }
+
+    /** Returns the type of antibiotics of an event.
+     * @param event A DOSE or DEATH event.
+     * @return 'b' or 'w'.
+     */
+    public static char type(long event){
+        return (char) ((event >>> PARENT_SHIFT) & 0xFF);
+    }
+
+    /** Returns whether a Cell was killed by antibiotics given at a spot,
+     * rather than by a dose to the whole colony.
+     * @param event A DEATH event.
+     * @return True if given at a spot.
+     */
+    public static boolean spot(long event){
+        return (event & SPOT)!=0;
+    }
+
+    /** The handler of the events of a subscriber. */
+    public interface Handler {
+        /** Handles an event. Runs on the thread of the subscriber. A
+         * RuntimeException stops the subscriber, see
+         * Subscription.getFailure().
+         * @param event The event, see CellEvents.kind().
+         * @param sequence The number of the event, one more than that of the
+         * previous one unless events were dropped.
+         * @param endOfBatch Whether it is the last event published so far,
+         * e.g. to flush what the handler writes.
+         */
+        void onEvent(long event, long sequence, boolean endOfBatch);
+    }
+
+    /** A subscriber of the events, handling them on its own thread.
+     * The Subscription class contains six variables:
+     * (1) Handler handler: The handler of the events.
+     * (2) boolean drop: Whether events are dropped rather than the colony
+     * held back when the subscriber falls a whole ring behind.
+     * (3) Sequence sequence: The sequence of the next event to handle.
+     * (4) long stop: The sequence the subscriber stops at, once closed.
+     * (5) long dropped: The number of events skipped.
+     * (6) RuntimeException failure: What the handler threw, if anything.
+     */
+    public class Subscription implements AutoCloseable {
+        final Handler handler;
+        final boolean drop;
+        final Sequence sequence = new Sequence();
+        final Thread thread;
+        volatile long stop = Long.MAX_VALUE;
+        volatile boolean sleeping;
+        volatile long dropped;
+        volatile RuntimeException failure;
+
+        Subscription(String name, Handler handler, boolean drop, long start){
+            this.handler = handler;
+            this.drop = drop;
+            sequence.set(start);
+            thread = new Thread(this::consume, "events-" + name);
+            thread.setDaemon(true);
+        }
+
+        /** Hands the published events to the handler until STOP. */
+        private void consume(){
+            long[] slots = ring;
+            long position = sequence.get();
+            // The handler is handed at most a quarter of the ring at a time,
+            // so that a blocked producer gets room as early as possible.
+            int batch = Math.max(slots.length/4, 1);
+            int idle = 0;
+            try{
+                while(position<stop){
+                    long available = Math.min(cursor.get(), stop);
+                    if(position>=available){
+                        if(++idle<SPINS){
+                            Thread.onSpinWait();
+                            continue;
+                        }
+                        sleeping = true;
+                        if(cursor.get()==available && position<stop){
+                            LockSupport.parkNanos(this, PARK_NANOS);
+                        }
+                        sleeping = false;
+                        continue;
+                    }
+                    idle = 0;
+                    long end = Math.min(available, position + batch);
+                    while(position<end){
+                        long event = slots[(int) position & mask];
+                        if(drop){
+                            // The slot is only valid if the producer had not
+                            // started overwriting it once it was read.
+                            VarHandle.loadLoadFence();
+                            long oldest = claim.get() - slots.length;
+                            if(position<oldest){
+                                dropped += oldest - position;
+                                position = oldest;
+                                continue;
+                            }
+                        }
+                        handler.onEvent(event, position, position + 1==available);
+                        position++;
+                    }
+                    sequence.set(position);
+                }
+            } catch(RuntimeException ex){
+                failure = ex;
+            } finally{
+                remove(this);
+            }
+        }
+
+        /** Returns the number of events handled so far, or skipped.
+         * @return The sequence of the next event to handle.
+         */
+        public long getSequence(){
+            return sequence.get();
+        }
+
+        /** Returns the number of events a DROP subscriber skipped as it fell
+         * behind.
+         * @return The number of events dropped.
+         */
+        public long getDropped(){
+            return dropped;
+        }
+
+        /** Returns what stopped the subscriber, if its handler threw.
+         * @return The exception, or null.
+         */
+        public RuntimeException getFailure(){
+            return failure;
+        }
+
+        /** Stops the subscriber once it handled the events published so far,
+         * and waits for it, unless called by its own handler.
+         */
+        @Override
+        public void close(){
+            stop = Math.min(stop, cursor.get());
+            LockSupport.unpark(thread);
+            if(Thread.currentThread()==thread){
+                return;
+            }
+            try{
+                thread.join();
+            } catch(InterruptedException ex){
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /** The events of a transition or dose recorded before they are
+     * published. Also holds a copy of the positions being dosed, from which
+     * the Cells killed are found.
+     * The Buffer class contains three variables:
+     * (1) long[] events, int size: The events recorded.
+     * (2) Consumer full: What the events are handed to when EVENTS is full,
+     * which empties the Buffer, or null to grow EVENTS instead.
+     * (3) byte[] before: The copy of the positions being dosed.
+     */
+    static class Buffer {
+        long[] events;
+        int size;
+        final Consumer<Buffer> full;
+        byte[] before = new byte[0];
+
+        /** Creates a Buffer that grows as needed, e.g. for a tile, which 
+         * records at most one event per position. */
+        Buffer(){
+            this(1024, null);
+        }
+
+        /** Creates a Buffer of CAPACITY events, handed to FULL whenever it
+         * fills up. */
+        Buffer(int capacity, Consumer<Buffer> full){
+            events = new long[capacity];
+            this.full = full;
+        }
+
+        void add(long event){
+            if(size==events.length){
+                if(full!=null){
+                    full.accept(this);
+                } else{
+                    events = Arrays.copyOf(events, 2*size);
+                }
+            }
+            events[size++] = event;
+        }
+
+        /** Copies positions FROM to TO-1 of LEVEL, before they are dosed. */
+        void snapshot(byte[] level, int from, int to){
+            if(before.length<to - from){
+                before = new byte[to - from];
+            }
+            System.arraycopy(level, from, before, 0, to - from);
+        }
+
+        /** Records the death of the Cells of positions FROM to TO-1 of LEVEL
+         * that were alive at the last snapshot(). OFFSET is added to the
+         * positions to make them indices of the colony.
+         */
+        void addDeaths(byte[] level, int from, int to, long offset, char type, boolean spot){
+            byte[] copy = before;
+            for(int k=from; k<to; k++){
+                int l = copy[k - from];
+                if(l!=0 && level[k]==0){
+                    add(death(k + offset, l, type, spot));
+                }
+            }
+        }
+    }
+
+    /** A sequence read and written by different threads, padded so that it
+     * does not share a cache line with anything else written often.
+     */
+    static final class Sequence {
+        long p1, p2, p3, p4, p5, p6, p7;
+        volatile long value;
+        long q1, q2, q3, q4, q5, q6, q7;
+
+        long get(){
+            return value;
+        }
+
+        void set(long value){
+            this.value = value;
+        }
+    }
+}
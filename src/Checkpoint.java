@@ -0,0 +1,171 @@
+package antibioticresistancesimulation;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/** The Checkpoint class saves a colony to a binary file and restores it, so
+ * that a long run can be stopped and picked up again later. A restored colony
+ * continues exactly as the saved one would have, as the file holds the state
+ * of its random decisions along with its grid.
+ *
+ * The file starts with a HEADER_SIZE byte header (all numbers big-endian):
+ * (1) int MAGIC and int VERSION.
+ * (2) int width, int height: The size of the grid.
+ * (3) long seed, long tick, long doses: As in State.
+ * (4) int mutationStep: As in State.
+ * (5) long random: The state of the SplitMix64 of the sequential scan.
+ * It is followed by the level of every position of the grid, one byte each,
+ * row by row, as stored by the Grid. The file is written and read through
+ * memory mappings of at most CHUNK bytes, so that even grids of several GB
+ * are copied straight between the file and the arrays of the grid.
+ */
+
+public class Checkpoint {
+    static final int MAGIC = 0x41525343; // "ARSC"
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 64;
+    static final int CHUNK = 1 << 30;
+
+    /** Saves COLONY to FILE, replacing it if it exists.
+     * @param colony The colony to save. Its random decisions must be made by
+     * a SplitMix64, as they are by default.
+     * @param file The file to write.
+     * @throws IOException If the file cannot be written.
+     */
+    public static void save(State colony, Path file) throws IOException{
+        if(!(colony.random instanceof SplitMix64)){
+            throw new IOException("Only colonies using a SplitMix64 can be saved, not a "
+                    + colony.random.getClass().getSimpleName());
+        }
+        Grid grid = colony.grid;
+        try(FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ,
+                StandardOpenOption.WRITE)){
+            writeHeader(channel, grid.width, grid.height, colony.seed, colony.tick, 
+                    colony.doses, colony.mutationStep, ((SplitMix64) colony.random).state);
+            writeLevels(channel, grid.level, 0, grid.level.length, 0);
+        }
+    }
+
+    /** Writes the header of a checkpoint to the start of CHANNEL. */
+    static void writeHeader(FileChannel channel, int width, int height, long seed, long tick,
+            long doses, int mutationStep, long random) throws IOException{
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC).putInt(VERSION)
+                .putInt(width).putInt(height)
+                .putLong(seed).putLong(tick).putLong(doses)
+                .putInt(mutationStep)
+                .putLong(random);
+        header.clear();
+        channel.write(header, 0);
+    }
+
+    /** Writes LENGTH levels of LEVEL, starting at FROM, to CHANNEL as the 
+     * levels of the grid starting at position POSITION.
+     */
+    static void writeLevels(FileChannel channel, byte[] level, int from, int length, 
+            long position) throws IOException{
+        for(long done=0; done<length; done+=CHUNK){
+            int count = (int) Math.min(CHUNK, length - done);
+            MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_WRITE,
+                    HEADER_SIZE + position + done, count);
+            map.put(level, from + (int) done, count);
+            map.force();
+        }
+    }
+
+    /** Loads a colony saved by save().
+     * @param file The file to read.
+     * @return A new State continuing the saved colony, using the sequential
+     * scan.
+     * @throws IOException If the file cannot be read or is not a checkpoint.
+     */
+    public static State load(Path file) throws IOException{
+        try(FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)){
+            ByteBuffer header = readHeader(channel, file);
+            State colony;
+            try{
+                colony = new State(header.getInt(8), header.getInt(12));
+            } catch(IllegalArgumentException ex){
+                throw new IOException(file + ": " + ex.getMessage(), ex);
+            }
+            readLevels(channel, colony.grid.level, file);
+            setState(colony, header);
+            return colony;
+        }
+    }
+
+    /** Replaces the colony of COLONY with the one saved in FILE. The engine
+     * COLONY uses is kept.
+     * @param colony The colony to overwrite. It must have the same size as the
+     * saved one.
+     * @param file The file to read.
+     * @throws IOException If the file cannot be read, is not a checkpoint or
+     * holds a colony of another size. COLONY is left as it was.
+     */
+    public static void restore(State colony, Path file) throws IOException{
+        try(FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)){
+            ByteBuffer header = readHeader(channel, file);
+            int width = header.getInt(8);
+            int height = header.getInt(12);
+            if(width!=colony.getWidth() || height!=colony.getHeight()){
+                throw new IOException(file + " holds a " + width + "x" + height
+                        + " colony, not a " + colony.getWidth() + "x" + colony.getHeight() + " one");
+            }
+            byte[] level = new byte[width*height];
+            readLevels(channel, level, file);
+            System.arraycopy(level, 0, colony.grid.level, 0, level.length);
+            setState(colony, header);
+        }
+    }
+
+    private static ByteBuffer readHeader(FileChannel channel, Path file) throws IOException{
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        while(header.hasRemaining()){
+            if(channel.read(header, header.position())<0){
+                break;
+            }
+        }
+        if(header.hasRemaining() || header.getInt(0)!=MAGIC){
+            throw new IOException(file + " is not a colony checkpoint");
+        }
+        if(header.getInt(4)!=VERSION){
+            throw new IOException(file + " is a checkpoint of version " + header.getInt(4)
+                    + ", only version " + VERSION + " is supported");
+        }
+        long size = (long) header.getInt(8)*header.getInt(12);
+        if(channel.size()!=HEADER_SIZE + size){
+            throw new IOException(file + " is truncated");
+        }
+        if(header.getInt(40)<1 || header.getInt(40)>=Grid.LEVELS){
+            throw new IOException(file + " holds an invalid mutation step");
+        }
+        return header;
+    }
+
+    private static void readLevels(FileChannel channel, byte[] level, Path file) throws IOException{
+        for(long from=0; from<level.length; from+=CHUNK){
+            int length = (int) Math.min(CHUNK, level.length - from);
+            channel.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE + from, length)
+                    .get(level, (int) from, length);
+        }
+        for(int k=0; k<level.length; k++){
+            if(level[k]<0 || level[k]>Grid.LEVELS){
+                throw new IOException(file + " holds an invalid level at position " + k);
+            }
+        }
+    }
+
+    private static void setState(State colony, ByteBuffer header){
+        colony.seed = header.getLong(16);
+        colony.tick = header.getLong(24);
+        colony.doses = header.getLong(32);
+        colony.setMutationStep(header.getInt(40));
+        colony.random = new SplitMix64(header.getLong(44));
+        colony.restored();
+    }
+}
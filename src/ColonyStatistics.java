@@ -0,0 +1,202 @@
+package antibioticresistancesimulation;
+
+/** The ColonyStatistics class keeps running aggregates of the live Cells of a
+ * colony. Instead of rescanning the grid whenever a statistic is needed, the
+ * aggregates are updated as Cells are born, die or are replaced, so reading
+ * them costs nothing no matter how large the colony is.
+ *
+ * The aggregates are kept over the levels the Grid stores the GENEXP of the
+ * Cells as, in integers, so they never accumulate rounding errors no matter
+ * how many Cells are added and removed.
+ * The ColonyStatistics class contains five variables:
+ * (1) long live: The number of live Cells.
+ * (2) long sum: The sum of the levels of the live Cells.
+ * (3) long sumSquares: The sum of the squared levels of the live Cells.
+ * (4) long[] histogram: The number of live Cells at each GENEXP level. There
+ * are BINS levels, bin i holding the Cells with a GENEXP of 0.1+0.05*i, i.e.
+ * the Cells of level i+1 of the Grid.
+ * (5) long born, long removed: The number of Cells added and removed since
+ * the last reset, which the Metrics take the births and deaths of each 
+ * transition and dose from.
+ */
+
+public class ColonyStatistics {
+    /** The number of GENEXP levels between 0.1 and 1.0. */
+    public static final int BINS = Grid.LEVELS;
+
+    long live;
+    long sum;
+    long sumSquares;
+    final long[] histogram = new long[BINS];
+    long born;
+    long removed;
+
+    /** Returns the histogram bin of a GENEXP.
+     * @param gene The gene expression level of a live Cell.
+     * @return The bin holding the GENEXP, between 0 and BINS-1.
+     */
+    public static int bin(double gene){
+        return Math.max(Grid.level(gene), 1) - 1;
+    }
+
+    /** Returns the GENEXP of the Cells in a histogram bin.
+     * @param bin The bin, between 0 and BINS-1.
+     * @return The gene expression level of the bin.
+     */
+    public static double binValue(int bin){
+        return Grid.gene(bin+1);
+    }
+
+    /** Records a new live Cell.
+     * @param level The level of the Cell, between 1 and Grid.LEVELS.
+     */
+    void add(int level){
+        live++;
+        sum += level;
+        sumSquares += level*level;
+        histogram[level-1]++;
+        born++;
+    }
+
+    /** Records the death or replacement of a live Cell.
+     * @param level The level of the Cell, between 1 and Grid.LEVELS.
+     */
+    void remove(int level){
+        live--;
+        sum -= level;
+        sumSquares -= level*level;
+        histogram[level-1]--;
+        removed++;
+    }
+
+    /** Records the death of COUNT live Cells of the same level.
+     * @param level The level of the Cells, between 1 and Grid.LEVELS.
+     * @param count The number of Cells.
+     */
+    void remove(int level, long count){
+        live -= count;
+        sum -= level*count;
+        sumSquares -= level*level*count;
+        histogram[level-1] -= count;
+        removed += count;
+    }
+
+    /** Records the Cells counted by KILLED, then resets KILLED.
+     * @param killed The number of Cells killed at each level, indexed by 
+     * level; index 0 is ignored.
+     */
+    void removeKilled(long[] killed){
+        for(int l=1; l<killed.length; l++){
+            if(killed[l]!=0){
+                remove(l, killed[l]);
+                killed[l] = 0;
+            }
+        }
+        killed[0] = 0;
+    }
+
+    /** Records the changes of a part of the colony counted as a whole, 
+     * e.g. over several transitions.
+     * @param delta The change of the number of live Cells at each level, 
+     * indexed by level; index 0 is ignored.
+     * @param born The number of Cells added.
+     * @param removed The number of Cells removed.
+     */
+    void change(long[] delta, long born, long removed){
+        for(int l=1; l<delta.length; l++){
+            live += delta[l];
+            sum += l*delta[l];
+            sumSquares += l*l*delta[l];
+            histogram[l-1] += delta[l];
+        }
+        this.born += born;
+        this.removed += removed;
+    }
+
+    /** Forgets all the recorded Cells. */
+    void reset(){
+        live = 0;
+        sum = 0;
+        sumSquares = 0;
+        for(int i=0; i<BINS; i++){
+            histogram[i] = 0;
+        }
+        born = 0;
+        removed = 0;
+    }
+
+    /** Adds the changes recorded in DELTA, then resets DELTA so it can
+     * record the next changes.
+     * @param delta The changes recorded by another ColonyStatistics, e.g. the
+     * one of a single tile.
+     */
+    void merge(ColonyStatistics delta){
+        live += delta.live;
+        sum += delta.sum;
+        sumSquares += delta.sumSquares;
+        for(int i=0; i<BINS; i++){
+            histogram[i] += delta.histogram[i];
+        }
+        born += delta.born;
+        removed += delta.removed;
+        delta.reset();
+    }
+
+    /** Makes this a copy of OTHER, without allocating anything.
+     * @param other The statistics to copy.
+     */
+    void copyFrom(ColonyStatistics other){
+        live = other.live;
+        sum = other.sum;
+        sumSquares = other.sumSquares;
+        System.arraycopy(other.histogram, 0, histogram, 0, BINS);
+        born = other.born;
+        removed = other.removed;
+    }
+
+    /** Sets the statistics to those of a colony with the given number of
+     * live Cells in each bin, e.g. as saved in a recording.
+     * @param counts The number of live Cells in each bin.
+     */
+    void setCounts(long[] counts){
+        reset();
+        for(int b=0; b<BINS; b++){
+            long level = b+1;
+            live += counts[b];
+            sum += counts[b]*level;
+            sumSquares += counts[b]*level*level;
+            histogram[b] = counts[b];
+        }
+    }
+
+    public long getLive(){
+        return live;
+    }
+
+    /** Returns the average GENEXP of the live Cells.
+     * @return The mean, or 0 if there are no live Cells.
+     */
+    public double getMean(){
+        // The GENEXP of a Cell of level l is (l+1)/20.
+        return live==0 ? 0.0 : (sum + live)/(20.0*live);
+    }
+
+    /** Returns the variance of the GENEXP of the live Cells.
+     * @return The population variance, or 0 if there are no live Cells.
+     */
+    public double getVariance(){
+        if(live==0){
+            return 0.0;
+        }
+        double mean = (double) sum/live;
+        return Math.max(0.0, (double) sumSquares/live - mean*mean)/400;
+    }
+
+    /** Returns the number of live Cells in a histogram bin.
+     * @param bin The bin, between 0 and BINS-1.
+     * @return The number of live Cells with a GENEXP of binValue(BIN).
+     */
+    public long getCount(int bin){
+        return histogram[bin];
+    }
+}
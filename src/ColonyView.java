@@ -0,0 +1,159 @@
+package antibioticresistancesimulation;
+
+import java.awt.Dimension;
+import java.awt.Graphics;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.Arrays;
+import javax.swing.JPanel;
+
+/** The ColonyView class paints the bacteria colony. The higher the gene
+ * expression of a bacteria cell, the darker its position appears on the
+ * screen, and positions without a live cell are painted white.
+ * 
+ * The colony is painted into a single BufferedImage that is reused for the 
+ * whole run. Each pixel of the image shows one position of the model exported
+ * by State.exportModel(double[][]); large colonies are sampled down to at 
+ * most VIEW_SIZE pixels in each direction, and small ones are scaled up when
+ * the image is drawn. The color of each position is looked up in a 
+ * precomputed grayscale PALETTE and written directly into the int raster of
+ * the image.
+ * 
+ * On every update, only the pixels whose color changed are rewritten, and 
+ * only the rectangle around them is repainted. rowAt() and colAt() map a 
+ * point of the view back to the position of the colony shown there.
+ */
+
+public class ColonyView extends JPanel {
+    private static final long serialVersionUID = 1L;
+
+    /** The largest width and height, in pixels, the colony is painted in. */
+    static final int VIEW_SIZE = 625;
+
+    /** The color of each value of the model, which has three decimal places,
+     * as it appeared in the original JTable: the gray level is 255*VALUE.
+     */
+    static final int[] PALETTE = new int[1001];
+    static {
+        for(int i=0; i<PALETTE.length; i++){
+            int part = (int)(255 * (i/1000.0));
+            PALETTE[i] = part<<16 | part<<8 | part;
+        }
+    }
+
+    final int scale;
+    final BufferedImage image;
+    final int[] pixels;
+    final int colonyWidth;
+    final int colonyHeight;
+
+    public ColonyView(int colonyWidth, int colonyHeight){
+        this.colonyWidth = colonyWidth;
+        this.colonyHeight = colonyHeight;
+        // Show every STEP-th position of large colonies, and draw each
+        // position SCALE pixels wide for small ones.
+        int size = Math.max(colonyWidth, colonyHeight);
+        int step = (size + VIEW_SIZE - 1) / VIEW_SIZE;
+        int imageWidth = (colonyWidth + step - 1) / step;
+        int imageHeight = (colonyHeight + step - 1) / step;
+        scale = Math.max(1, VIEW_SIZE / Math.max(imageWidth, imageHeight));
+
+        image = new BufferedImage(imageWidth, imageHeight, BufferedImage.TYPE_INT_RGB);
+        pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+        Arrays.fill(pixels, PALETTE[1000]);
+        setOpaque(true);
+    }
+
+    /** Returns the number of rows of the model shown by this view.
+     * @return The height of the image.
+     */
+    public int getModelRows(){
+        return image.getHeight();
+    }
+
+    /** Returns the number of columns of the model shown by this view.
+     * @return The width of the image.
+     */
+    public int getModelCols(){
+        return image.getWidth();
+    }
+
+    /** Returns the row of the colony shown at height Y of the view, as 
+     * sampled by State.exportModel().
+     * @param y A vertical coordinate within the view, in pixels.
+     * @return The row of the colony, between 0 and its height-1.
+     */
+    public int rowAt(int y){
+        int row = Math.max(0, Math.min(y / scale, image.getHeight() - 1));
+        return (int)((long)row*colonyHeight/image.getHeight());
+    }
+
+    /** Returns the column of the colony shown at X of the view, as sampled
+     * by State.exportModel().
+     * @param x A horizontal coordinate within the view, in pixels.
+     * @return The column of the colony, between 0 and its width-1.
+     */
+    public int colAt(int x){
+        int col = Math.max(0, Math.min(x / scale, image.getWidth() - 1));
+        return (int)((long)col*colonyWidth/image.getWidth());
+    }
+
+    /** Paints MODEL into the image, and repaints the part of the view that 
+     * changed. Must be called on the Event Dispatch Thread.
+     * @param model A model of getModelRows() x getModelCols() positions.
+     */
+    public void update(double[][] model){
+        int imageWidth = image.getWidth();
+        int imageHeight = image.getHeight();
+        int minRow = imageHeight, maxRow = -1, minCol = imageWidth, maxCol = -1;
+
+        for(int i=0; i<imageHeight; i++){
+            double[] row = model[i];
+            int p = i*imageWidth;
+            int rowMin = imageWidth, rowMax = -1;
+            for(int j=0; j<imageWidth; j++, p++){
+                int color = PALETTE[(int)Math.round(row[j]*1000)];
+                if(pixels[p]!=color){
+                    pixels[p] = color;
+                    rowMin = Math.min(rowMin, j);
+                    rowMax = j;
+                }
+            }
+            if(rowMax>=0){
+                minRow = Math.min(minRow, i);
+                maxRow = i;
+                minCol = Math.min(minCol, rowMin);
+                maxCol = Math.max(maxCol, rowMax);
+            }
+        }
+        if(maxRow>=0){
+            repaint(minCol*scale, minRow*scale, 
+                    (maxCol-minCol+1)*scale, (maxRow-minRow+1)*scale);
+        }
+    }
+
+    @Override
+    protected void paintComponent(Graphics g){
+        // Only copy the part of the image inside the area being repainted.
+        Rectangle clip = g.getClipBounds();
+        if(clip==null){
+            clip = new Rectangle(0, 0, getWidth(), getHeight());
+        }
+        g.setColor(getBackground());
+        g.fillRect(clip.x, clip.y, clip.width, clip.height);
+        int x1 = Math.max(0, clip.x / scale);
+        int y1 = Math.max(0, clip.y / scale);
+        int x2 = Math.min(image.getWidth(), (clip.x + clip.width + scale - 1) / scale);
+        int y2 = Math.min(image.getHeight(), (clip.y + clip.height + scale - 1) / scale);
+        if(x1<x2 && y1<y2){
+            g.drawImage(image, x1*scale, y1*scale, x2*scale, y2*scale, 
+                    x1, y1, x2, y2, null);
+        }
+    }
+
+    @Override
+    public Dimension getPreferredSize(){
+        return new Dimension(image.getWidth()*scale, image.getHeight()*scale);
+    }
+}
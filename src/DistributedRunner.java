@@ -0,0 +1,421 @@
+package antibioticresistancesimulation;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/** The DistributedRunner class runs a colony split into strips of rows, each
+ * owned by a StripWorker running in a process of its own, so that a colony
+ * can use the cores and the memory of several JVMs. Like the HeadlessRunner,
+ * it never touches AWT or Swing.
+ *
+ * The DistributedRunner is the coordinator: it starts the workers as local
+ * processes (or waits for WORKERS workers started by hand, e.g. on other
+ * machines), hands each of them its strip and tells them where their
+ * neighbors are. It then drives the transitions, applies the doses of the
+ * DoseSchedule to every strip, and adds up the statistics the workers
+ * return to write the same summaries as the HeadlessRunner. Between two
+ * summaries or doses, the workers run without waiting for the coordinator,
+ * only exchanging their boundary rows with each other.
+ *
+ * The strips are updated with the ParallelEngine, whose random decisions
+ * only depend on the seed and the positions of the Cells. A colony run by
+ * any number of workers is therefore exactly the colony the HeadlessRunner
+ * runs with --parallel and the same seed, and the Checkpoint saved at the end
+ * is the same file.
+ * The DistributedRunner class contains four variables:
+ * (1) int width, int height: The size of the colony.
+ * (2) long seed, int mutationStep: The seed of the random decisions, and
+ * the number of levels a mutation moves the GENEXP of a daughter Cell by.
+ * (3) Worker[] workers: The connections to the workers, from the top strip
+ * to the bottom one.
+ * (4) ColonyStatistics statistics: The statistics of the whole colony, as
+ * of the last command.
+ */
+
+public class DistributedRunner {
+
+    static final String USAGE =
+            "Usage: DistributedRunner [options]\n"
+            + "  --size W[xH]        size of the colony (default 25x25)\n"
+            + "  --ticks N           number of transitions to run (default 1000)\n"
+            + "  --seed S            seed of the random decisions (default: random)\n"
+            + "  --schedule FILE     dose schedule, see DoseSchedule\n"
+            + "  --doses TEXT        dose schedule given inline, e.g. \"tick 500: dose b\"\n"
+            + "  --every K           write a summary every K ticks (default 1, 0 for none)\n"
+            + "  --step L            mutation step, in levels of 0.05 genexp (default 1)\n"
+            + "  --histogram         add the number of live cells at each genexp level\n"
+            + "  --workers N         number of worker processes (default 2)\n"
+            + "  --threads T         threads of each worker (default 1)\n"
+            + "  --port P            port the workers connect to (default: any free port)\n"
+            + "  --no-spawn          wait for workers started by hand with\n"
+            + "                      StripWorker HOST PORT [THREADS] instead of starting them\n"
+            + "  --checkpoint FILE   save the colony to a checkpoint at the end\n";
+
+    final int width;
+    final int height;
+    final long seed;
+    final int mutationStep;
+    final Worker[] workers;
+    final ColonyStatistics statistics = new ColonyStatistics();
+    final ColonyStatistics strip = new ColonyStatistics();
+    long tick;
+    long doses;
+
+    /** Accepts WORKERS workers on SERVER and hands each of them its strip of
+     * a WIDTH x HEIGHT colony, mutating by MUTATIONSTEP levels (see 
+     * State.setMutationStep()).
+     * @throws IOException If a worker cannot be reached.
+     */
+    public DistributedRunner(ServerSocket server, int workers, int width, int height, long seed,
+            int mutationStep) throws IOException{
+        if(workers<1 || workers>height){
+            throw new IllegalArgumentException("The number of workers must be between 1 and "
+                    + height + ", got " + workers);
+        }
+        if(mutationStep<1 || mutationStep>=Grid.LEVELS){
+            throw new IllegalArgumentException("The mutation step must be between 1 and "
+                    + (Grid.LEVELS-1) + " levels, got " + mutationStep);
+        }
+        this.width = width;
+        this.height = height;
+        this.seed = seed;
+        this.mutationStep = mutationStep;
+        this.workers = new Worker[workers];
+        for(int w=0; w<workers; w++){
+            this.workers[w] = new Worker(server.accept());
+        }
+        // The first HEIGHT%WORKERS strips get one more row than the others.
+        int firstRow = 0;
+        for(int w=0; w<workers; w++){
+            int rows = height/workers + (w < height%workers ? 1 : 0);
+            Worker worker = this.workers[w];
+            Worker below = w+1<workers ? this.workers[w+1] : null;
+            worker.firstRow = firstRow;
+            worker.rows = rows;
+            worker.out.writeByte(StripWorker.INIT);
+            worker.out.writeInt(width);
+            worker.out.writeInt(height);
+            worker.out.writeInt(firstRow);
+            worker.out.writeInt(rows);
+            worker.out.writeLong(seed);
+            worker.out.writeInt(mutationStep);
+            worker.out.writeUTF(below==null ? "" : below.host);
+            worker.out.writeInt(below==null ? -1 : below.haloPort);
+            worker.out.writeBoolean(w>0);
+            firstRow += rows;
+        }
+        collect();
+    }
+
+    public static void main(String[] args) {
+        int width = 25;
+        int height = 25;
+        long ticks = 1000;
+        long every = 1;
+        long seed = System.nanoTime();
+        int step = 1;
+        int workers = 2;
+        int threads = 1;
+        int port = 0;
+        boolean spawn = true;
+        boolean histogram = false;
+        Path checkpoint = null;
+        DoseSchedule schedule = new DoseSchedule();
+
+        try{
+            for(int i=0; i<args.length; i++){
+                switch(args[i]){
+                    case "--size":
+                        String[] size = args[++i].split("x");
+                        width = Integer.parseInt(size[0]);
+                        height = size.length>1 ? Integer.parseInt(size[1]) : width;
+                        break;
+                    case "--ticks":
+                        ticks = Long.parseLong(args[++i]);
+                        break;
+                    case "--seed":
+                        seed = Long.parseLong(args[++i]);
+                        break;
+                    case "--schedule":
+                        schedule = DoseSchedule.read(Paths.get(args[++i]));
+                        break;
+                    case "--doses":
+                        schedule = DoseSchedule.parse(args[++i]);
+                        break;
+                    case "--every":
+                        every = Long.parseLong(args[++i]);
+                        break;
+                    case "--histogram":
+                        histogram = true;
+                        break;
+                    case "--step":
+                        step = Integer.parseInt(args[++i]);
+                        break;
+                    case "--workers":
+                        workers = Integer.parseInt(args[++i]);
+                        break;
+                    case "--threads":
+                        threads = Integer.parseInt(args[++i]);
+                        break;
+                    case "--port":
+                        port = Integer.parseInt(args[++i]);
+                        break;
+                    case "--no-spawn":
+                        spawn = false;
+                        break;
+                    case "--checkpoint":
+                        checkpoint = Paths.get(args[++i]);
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown option " + args[i]);
+                }
+            }
+            Grid.checkSize(width, height);
+            if(step<1 || step>=Grid.LEVELS){
+                throw new IllegalArgumentException("The mutation step must be between 1 and "
+                        + (Grid.LEVELS-1) + " levels, got " + step);
+            }
+        } catch(IOException | IllegalArgumentException | ArrayIndexOutOfBoundsException ex){
+            System.err.println(ex.getMessage());
+            System.err.print(USAGE);
+            System.exit(2);
+            return;
+        }
+
+        List<Process> processes = new ArrayList<>();
+        DistributedRunner runner = null;
+        PrintStream out = new PrintStream(new BufferedOutputStream(System.out, 1<<16), false);
+        long elapsed;
+        try(ServerSocket server = new ServerSocket(port)){
+            if(spawn){
+                for(int w=0; w<workers; w++){
+                    processes.add(spawn(server.getLocalPort(), threads));
+                }
+            } else{
+                System.err.println("Waiting for " + workers + " workers on port "
+                        + server.getLocalPort());
+            }
+            runner = new DistributedRunner(server, workers, width, height, seed, step);
+            runner.randomStart();
+            elapsed = runner.run(schedule, ticks, every, histogram, out);
+            out.flush();
+            if(checkpoint!=null){
+                runner.save(checkpoint);
+            }
+        } catch(IOException | IllegalArgumentException ex){
+            out.flush();
+            System.err.println(ex.getMessage());
+            for(Process process : processes){
+                process.destroy();
+            }
+            System.exit(1);
+            return;
+        } finally{
+            if(runner!=null){
+                runner.close();
+            }
+        }
+
+        System.err.printf("%d ticks of a %dx%d colony on %d workers in %.3f s: %.1f ticks/s%n",
+                ticks, width, height, workers, elapsed/1e9, ticks/(elapsed/1e9));
+    }
+
+    /** Starts a StripWorker in a new local JVM, with the class path and
+     * modules of this one.
+     * @param port The port of the coordinator.
+     * @param threads The number of threads of the worker.
+     * @return The process of the worker.
+     * @throws IOException If the JVM cannot be started.
+     */
+    static Process spawn(int port, int threads) throws IOException{
+        List<String> command = new ArrayList<>();
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        if(ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent()){
+            command.add("--add-modules=jdk.incubator.vector");
+        }
+        for(String name : System.getProperties().stringPropertyNames()){
+            if(name.startsWith("antibioticresistancesimulation.")){
+                command.add("-D" + name + "=" + System.getProperty(name));
+            }
+        }
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(StripWorker.class.getName());
+        command.add("localhost");
+        command.add(Integer.toString(port));
+        command.add(Integer.toString(threads));
+        return new ProcessBuilder(command).inheritIO().start();
+    }
+
+    /** Triggers the start of the simulation by spawning a Cell with GENEXP
+     * 0.1 at the same random position as State.randomStart() does for a
+     * State seeded with SEED.
+     */
+    public void randomStart() throws IOException{
+        SplitMix64 random = new SplitMix64(seed);
+        int row = random.nextInt(height);
+        int col = random.nextInt(width);
+        for(Worker worker : workers){
+            worker.out.writeByte(StripWorker.START);
+            worker.out.writeInt(row);
+            worker.out.writeInt(col);
+        }
+        tick = 0;
+        doses = 0;
+        collect();
+    }
+
+    /** Runs the colony for TICKS transitions, applying the doses of SCHEDULE
+     * and writing a summary to OUT every EVERY ticks, as
+     * HeadlessRunner.run() does.
+     * @return The time taken, in nanoseconds.
+     * @throws IOException If a worker cannot be reached.
+     */
+    long run(DoseSchedule schedule, long ticks, long every, boolean histogram, PrintStream out)
+            throws IOException{
+        long start = System.nanoTime();
+        long end = tick + ticks;
+        if(every>0){
+            HeadlessRunner.printHeader(histogram, null, out);
+        }
+        while(tick<end){
+            String due = schedule.dueAt(tick);
+            for(int i=0; i<due.length(); i++){
+                doseAntibio(due.charAt(i));
+            }
+            // Run up to the next summary or dose in one go.
+            long count = Math.min(end, schedule.nextDose(tick+1)) - tick;
+            if(every>0){
+                count = Math.min(count, every - tick%every);
+            }
+            advance((int) Math.min(count, Integer.MAX_VALUE));
+            if(every>0 && tick%every==0){
+                HeadlessRunner.printSummary(tick, statistics, doses, histogram, null, out);
+            }
+        }
+        return System.nanoTime() - start;
+    }
+
+    /** Performs COUNT transitions of the colony. */
+    public void advance(int count) throws IOException{
+        for(Worker worker : workers){
+            worker.out.writeByte(StripWorker.ADVANCE);
+            worker.out.writeLong(tick);
+            worker.out.writeInt(count);
+        }
+        tick += count;
+        collect();
+    }
+
+    /** Doses every strip of the colony with an antibiotic solution of type
+     * TYPE.
+     */
+    public void doseAntibio(char type) throws IOException{
+        for(Worker worker : workers){
+            worker.out.writeByte(StripWorker.DOSE);
+            worker.out.writeChar(type);
+            worker.out.writeLong(doses);
+        }
+        doses++;
+        collect();
+    }
+
+    /** Saves the colony to FILE in the format of a Checkpoint, gathering the
+     * strips one worker at a time. The state of the sequential scan is the
+     * one a State seeded with SEED has after randomStart().
+     * @throws IOException If the file cannot be written.
+     */
+    public void save(Path file) throws IOException{
+        try(FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ,
+                StandardOpenOption.WRITE)){
+            Checkpoint.writeHeader(channel, width, height, seed, tick, doses, mutationStep,
+                    seed + 2*SplitMix64.GAMMA);
+            byte[] level = new byte[0];
+            for(Worker worker : workers){
+                worker.out.writeByte(StripWorker.GATHER);
+                worker.out.flush();
+                int size = worker.rows*width;
+                if(level.length<size){
+                    level = new byte[size];
+                }
+                worker.in.readFully(level, 0, size);
+                StripWorker.readStatistics(strip, worker.in);
+                Checkpoint.writeLevels(channel, level, 0, size, (long) worker.firstRow*width);
+            }
+        }
+    }
+
+    public ColonyStatistics getStatistics(){
+        return statistics;
+    }
+
+    public long getTick(){
+        return tick;
+    }
+
+    /** Sends the pending commands to every worker, then waits for all of
+     * them and adds up the statistics they answer with.
+     */
+    private void collect() throws IOException{
+        for(Worker worker : workers){
+            worker.out.flush();
+        }
+        statistics.reset();
+        for(Worker worker : workers){
+            StripWorker.readStatistics(strip, worker.in);
+            statistics.merge(strip);
+        }
+    }
+
+    /** Tells the workers to quit and closes the connections. */
+    public void close(){
+        for(Worker worker : workers){
+            if(worker==null){
+                continue;
+            }
+            try{
+                worker.out.writeByte(StripWorker.QUIT);
+                worker.out.flush();
+                worker.socket.close();
+            } catch(IOException ex){
+                // The worker is gone already.
+            }
+        }
+    }
+
+    /** The connection to a StripWorker and the strip it owns. */
+    static class Worker {
+        final Socket socket;
+        final DataInputStream in;
+        final DataOutputStream out;
+        final String host;
+        final int haloPort;
+        int firstRow;
+        int rows;
+
+        Worker(Socket socket) throws IOException{
+            this.socket = socket;
+            socket.setTcpNoDelay(true);
+            in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 1<<16));
+            out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 1<<16));
+            if(in.readByte()!=StripWorker.HELLO){
+                throw new IOException("Unexpected greeting from " + socket.getInetAddress());
+            }
+            haloPort = in.readInt();
+            host = socket.getInetAddress().getHostAddress();
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package antibioticresistancesimulation;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/** The DoseEvent class is the Java Flight Recorder event committed for every
+ * dose of antibiotics applied to a colony. Its duration is the time the dose
+ * took.
+ */
+
+@Name("antibioticresistancesimulation.Dose")
+@Label("Dose")
+@Category("Antibiotic Resistance Simulation")
+@Description("A dose of antibiotics applied to a bacteria colony")
+public class DoseEvent extends Event {
+    @Label("Type")
+    @Description("The type of antibiotic solution, b or w")
+    char type;
+
+    @Label("Tick")
+    @Description("The number of transitions since the colony was started")
+    long tick;
+
+    @Label("Killed")
+    @Description("The number of Cells killed by the dose")
+    long killed;
+
+    @Label("Live Cells")
+    @Description("The number of live Cells left after the dose")
+    long live;
+
+    @Label("Mean Genexp")
+    @Description("The average gene expression level of the live Cells left")
+    double mean;
+}
@@ -0,0 +1,205 @@
+package antibioticresistancesimulation;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/** The DoseSchedule class holds a scripted sequence of antibiotic doses, so
+ * that a colony can be dosed without anyone clicking the buttons of the GUI.
+ * A schedule is written as a list of entries, one per line or separated by
+ * semicolons, each of the form:
+ * (1) "tick T: dose X" to apply antibiotic solution X once, at tick T.
+ * (2) "every N ticks [from A] [until B]: dose X" to apply solution X at ticks
+ * A, A+N, A+2N, ... up to and including B. A defaults to N, B to forever.
+ * X is 'b' or 'w', as for State.doseAntibio(). Text following a '#' is a 
+ * comment. Doses scheduled at tick T are applied once the colony has gone
+ * through T transitions, before the next one; doses due at the same tick are
+ * applied in the order they are listed.
+ */
+
+public class DoseSchedule {
+    final List<Entry> entries = new ArrayList<>();
+
+    /** Parses a schedule.
+     * @param text The entries of the schedule.
+     * @return The parsed schedule.
+     * @throws IllegalArgumentException If an entry cannot be understood.
+     */
+    public static DoseSchedule parse(String text){
+        DoseSchedule schedule = new DoseSchedule();
+        String[] lines = text.split("\\r?\\n");
+        for(int i=0; i<lines.length; i++){
+            String line = lines[i];
+            int comment = line.indexOf('#');
+            if(comment>=0){
+                line = line.substring(0, comment);
+            }
+            for(String entry : line.split(";")){
+                entry = entry.trim();
+                if(!entry.isEmpty()){
+                    try{
+                        schedule.entries.add(parseEntry(entry));
+                    } catch(IllegalArgumentException ex){
+                        throw new IllegalArgumentException("Line " + (i+1) + ": "
+                                + ex.getMessage(), ex);
+                    }
+                }
+            }
+        }
+        return schedule;
+    }
+
+    /** Reads and parses a schedule file.
+     * @param file The file containing the entries of the schedule.
+     * @return The parsed schedule.
+     * @throws IOException If the file cannot be read.
+     */
+    public static DoseSchedule read(Path file) throws IOException{
+        return parse(new String(Files.readAllBytes(file), "UTF-8"));
+    }
+
+    private static Entry parseEntry(String entry){
+        int colon = entry.indexOf(':');
+        if(colon<0){
+            throw new IllegalArgumentException("Missing ':' in \"" + entry + "\"");
+        }
+        String[] when = entry.substring(0, colon).trim().split("\\s+");
+        String[] what = entry.substring(colon+1).trim().split("\\s+");
+        if(what.length!=2 || !what[0].equals("dose") || what[1].length()!=1
+                || (what[1].charAt(0)!='b' && what[1].charAt(0)!='w')){
+            throw new IllegalArgumentException("Expected \"dose b\" or \"dose w\" in \""
+                    + entry + "\"");
+        }
+        char type = what[1].charAt(0);
+
+        if(when.length==2 && when[0].equals("tick")){
+            long tick = number(when[1], entry);
+            return new Entry(tick, 0, tick, type);
+        }
+        if(when.length>=3 && when[0].equals("every") && when[2].equals("ticks")){
+            long interval = number(when[1], entry);
+            if(interval<=0){
+                throw new IllegalArgumentException("The interval must be positive in \""
+                        + entry + "\"");
+            }
+            long from = interval;
+            long until = Long.MAX_VALUE;
+            for(int i=3; i<when.length; i+=2){
+                if(i+1>=when.length){
+                    throw new IllegalArgumentException("Missing tick after \"" 
+                            + when[i] + "\" in \"" + entry + "\"");
+                }
+                if(when[i].equals("from")){
+                    from = number(when[i+1], entry);
+                } else if(when[i].equals("until")){
+                    until = number(when[i+1], entry);
+                } else{
+                    throw new IllegalArgumentException("Unexpected \"" + when[i]
+                            + "\" in \"" + entry + "\"");
+                }
+            }
+            return new Entry(from, interval, until, type);
+        }
+        throw new IllegalArgumentException("Expected \"tick T\" or \"every N ticks\" in \""
+                + entry + "\"");
+    }
+
+    private static long number(String text, String entry){
+        try{
+            long value = Long.parseLong(text);
+            if(value<0){
+                throw new NumberFormatException();
+            }
+            return value;
+        } catch(NumberFormatException ex){
+            throw new IllegalArgumentException("\"" + text + "\" is not a tick number in \""
+                    + entry + "\"");
+        }
+    }
+
+    /** Applies the doses scheduled at TICK to COLONY.
+     * @param colony The colony to dose.
+     * @param tick The number of transitions the colony has gone through.
+     * @return The number of doses applied.
+     */
+    public int apply(State colony, long tick){
+        int applied = 0;
+        for(Entry entry : entries){
+            if(entry.isDue(tick)){
+                colony.doseAntibio(entry.type);
+                applied++;
+            }
+        }
+        return applied;
+    }
+
+    /** Returns the types of the doses scheduled at TICK, e.g. for a colony 
+     * that is not held by a single State.
+     * @param tick The number of transitions the colony has gone through.
+     * @return The type of each dose due, in the order they are applied; empty
+     * if there is none.
+     */
+    public String dueAt(long tick){
+        StringBuilder types = new StringBuilder();
+        for(Entry entry : entries){
+            if(entry.isDue(tick)){
+                types.append(entry.type);
+            }
+        }
+        return types.toString();
+    }
+
+    /** Finds the first tick at or after TICK that has a dose scheduled.
+     * @param tick The tick to start looking from.
+     * @return The tick of the next dose, or Long.MAX_VALUE if there is none.
+     */
+    public long nextDose(long tick){
+        long next = Long.MAX_VALUE;
+        for(Entry entry : entries){
+            next = Math.min(next, entry.nextDose(tick));
+        }
+        return next;
+    }
+
+    public boolean isEmpty(){
+        return entries.isEmpty();
+    }
+
+    /** A single entry of the schedule: a dose of TYPE at ticks FROM, 
+     * FROM+INTERVAL, ... up to UNTIL. An INTERVAL of 0 means a single dose.
+     */
+    static class Entry {
+        final long from;
+        final long interval;
+        final long until;
+        final char type;
+
+        Entry(long from, long interval, long until, char type){
+            this.from = from;
+            this.interval = interval;
+            this.until = until;
+            this.type = type;
+        }
+
+        boolean isDue(long tick){
+            if(tick<from || tick>until){
+                return false;
+            }
+            return interval==0 ? tick==from : (tick-from)%interval==0;
+        }
+
+        long nextDose(long tick){
+            if(tick<=from){
+                return from<=until ? from : Long.MAX_VALUE;
+            }
+            if(interval==0){
+                return Long.MAX_VALUE;
+            }
+            long steps = (tick-from+interval-1)/interval;
+            long next = from + steps*interval;
+            return next<=until && next>=from ? next : Long.MAX_VALUE;
+        }
+    }
+}
@@ -0,0 +1,445 @@
+package antibioticresistancesimulation;
+
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/** The EnsembleRunner class runs many independent colonies to answer
+ * questions about the odds of a dosing strategy, such as how likely it is to
+ * wipe a colony out, or how long it takes the colony to become resistant.
+ * Like the HeadlessRunner, it never touches AWT or Swing.
+ *
+ * A Setting is one combination of the swept parameters: size of the grid,
+ * mutation step and dose schedule. For every Setting, RUNS colonies are
+ * started with randomStart() and run for TICKS transitions, spread over all
+ * the cores. As soon as all the colonies of a Setting are done, a summary
+ * line is written to the standard output: how many colonies died out and
+ * when, when their average GENEXP first reached TARGET, and the distribution
+ * of their final average GENEXP. If requested, the mean trajectory of the
+ * colonies of each Setting is written to a separate file.
+ *
+ * Only a few numbers are kept per colony, and the trajectories are summed up
+ * as the colonies run, so the memory used does not grow with the number of
+ * ticks times the number of colonies. Colony R of every Setting is seeded
+ * with the same seed, derived from the master seed, so that the Settings are
+ * compared on the same random draws and an ensemble is reproducible whatever
+ * the number of threads.
+ */
+
+public class EnsembleRunner {
+
+    static final String USAGE =
+            "Usage: EnsembleRunner [options]\n"
+            + "  --size LIST         sizes of the colonies, e.g. 50,100x80 (default 50)\n"
+            + "  --types LIST        dose type sequences, e.g. b,w,bw (default: no doses)\n"
+            + "  --interval LIST     ticks between doses of the sequences (default 50)\n"
+            + "  --doses TEXT        a dose schedule to add to the sweep, see DoseSchedule\n"
+            + "  --schedule FILE     a dose schedule file to add to the sweep\n"
+            + "  --step LIST         mutation steps, in levels of 0.05 genexp (default 1)\n"
+            + "  --runs N            number of colonies per setting (default 100)\n"
+            + "  --ticks N           number of transitions per colony (default 1000)\n"
+            + "  --seed S            master seed (default: random)\n"
+            + "  --target G          average genexp to time the colonies to (default 0.9)\n"
+            + "  --trajectory FILE   write the mean trajectory of each setting to FILE\n"
+            + "  --every K           sample the trajectories every K ticks (default 10)\n"
+            + "  --threads T         number of threads (default: all cores)\n";
+
+    static final String HEADER = "setting,width,height,step,doses,runs,extinct,extinctionRate,"
+            + "extinctionP50,extinctionP90,reached,reachedP10,reachedP50,reachedP90,"
+            + "averageP10,averageP50,averageP90";
+
+    final List<Setting> settings;
+    final int runs;
+    final long ticks;
+    final long seed;
+    final double target;
+    final long every;
+
+    public EnsembleRunner(List<Setting> settings, int runs, long ticks, long seed,
+            double target, long every){
+        this.settings = settings;
+        this.runs = runs;
+        this.ticks = ticks;
+        this.seed = seed;
+        this.target = target;
+        this.every = every;
+    }
+
+    public static void main(String[] args) {
+        List<int[]> sizes = new ArrayList<>();
+        List<String> types = new ArrayList<>();
+        List<Long> intervals = new ArrayList<>();
+        Set<String> schedules = new LinkedHashSet<>();
+        List<Integer> steps = new ArrayList<>();
+        int runs = 100;
+        long ticks = 1000;
+        long seed = System.nanoTime();
+        double target = 0.9;
+        String trajectory = null;
+        long every = 10;
+        int threads = Runtime.getRuntime().availableProcessors();
+        List<Setting> settings = new ArrayList<>();
+
+        try{
+            for(int i=0; i<args.length; i++){
+                switch(args[i]){
+                    case "--size":
+                        for(String size : args[++i].split(",")){
+                            String[] side = size.split("x");
+                            int width = Integer.parseInt(side[0]);
+                            sizes.add(new int[]{width, side.length>1 ? Integer.parseInt(side[1]) : width});
+                        }
+                        break;
+                    case "--types":
+                        types.addAll(Arrays.asList(args[++i].split(",")));
+                        break;
+                    case "--interval":
+                        for(String interval : args[++i].split(",")){
+                            intervals.add(Long.parseLong(interval));
+                        }
+                        break;
+                    case "--doses":
+                        DoseSchedule.parse(args[++i]);
+                        schedules.add(args[i]);
+                        break;
+                    case "--schedule":
+                        String text = new String(Files.readAllBytes(Paths.get(args[++i])), "UTF-8");
+                        DoseSchedule.parse(text);
+                        schedules.add(text);
+                        break;
+                    case "--step":
+                        for(String step : args[++i].split(",")){
+                            steps.add(Integer.parseInt(step));
+                        }
+                        break;
+                    case "--runs":
+                        runs = Integer.parseInt(args[++i]);
+                        break;
+                    case "--ticks":
+                        ticks = Long.parseLong(args[++i]);
+                        break;
+                    case "--seed":
+                        seed = Long.parseLong(args[++i]);
+                        break;
+                    case "--target":
+                        target = Double.parseDouble(args[++i]);
+                        break;
+                    case "--trajectory":
+                        trajectory = args[++i];
+                        break;
+                    case "--every":
+                        every = Long.parseLong(args[++i]);
+                        break;
+                    case "--threads":
+                        threads = Integer.parseInt(args[++i]);
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown option " + args[i]);
+                }
+            }
+            if(sizes.isEmpty()){
+                sizes.add(new int[]{50, 50});
+            }
+            if(intervals.isEmpty()){
+                intervals.add(50L);
+            }
+            if(steps.isEmpty()){
+                steps.add(1);
+            }
+            for(String sequence : types){
+                for(long interval : intervals){
+                    schedules.add(alternating(sequence, interval));
+                }
+            }
+            if(schedules.isEmpty()){
+                schedules.add("");
+            }
+            if(runs<1 || ticks<0 || every<1){
+                throw new IllegalArgumentException("--runs and --every must be positive");
+            }
+            for(int[] size : sizes){
+                for(int step : steps){
+                    for(String schedule : schedules){
+                        settings.add(new Setting(settings.size()+1, size[0], size[1], step, schedule));
+                    }
+                }
+            }
+        } catch(IOException | IllegalArgumentException | ArrayIndexOutOfBoundsException ex){
+            System.err.println(ex.getMessage());
+            System.err.print(USAGE);
+            System.exit(2);
+            return;
+        }
+
+        PrintStream out = new PrintStream(new BufferedOutputStream(System.out, 1<<16), false);
+        PrintStream trajectories = null;
+        try{
+            if(trajectory!=null){
+                trajectories = new PrintStream(new BufferedOutputStream(
+                        new FileOutputStream(trajectory), 1<<16), false, "UTF-8");
+            }
+        } catch(IOException ex){
+            System.err.println("Cannot write " + trajectory + ": " + ex.getMessage());
+            System.exit(1);
+            return;
+        }
+
+        long start = System.nanoTime();
+        EnsembleRunner ensemble = new EnsembleRunner(settings, runs, ticks, seed, target, every);
+        ensemble.run(new ForkJoinPool(threads), out, trajectories);
+        long elapsed = System.nanoTime() - start;
+        out.flush();
+        if(trajectories!=null){
+            trajectories.close();
+        }
+
+        System.err.printf("%d colonies of %d ticks in %.3f s%n",
+                (long) settings.size()*runs, ticks, elapsed/1e9);
+    }
+
+    /** Builds the schedule of a dose type SEQUENCE repeated forever, one dose
+     * every INTERVAL ticks: "bw" with an interval of 10 doses b at tick 10,
+     * w at tick 20, b at tick 30 and so on. "none" stands for no doses.
+     * @return The text of the schedule.
+     */
+    static String alternating(String sequence, long interval){
+        if(sequence.equals("none")){
+            return "";
+        }
+        if(interval<1){
+            throw new IllegalArgumentException("The dose interval must be positive, got " + interval);
+        }
+        StringBuilder text = new StringBuilder();
+        for(int i=0; i<sequence.length(); i++){
+            if(i>0){
+                text.append("; ");
+            }
+            text.append("every ").append(interval*sequence.length()).append(" ticks from ")
+                    .append(interval*(i+1)).append(": dose ").append(sequence.charAt(i));
+        }
+        DoseSchedule.parse(text.toString());
+        return text.toString();
+    }
+
+    /** Runs all the colonies of every Setting on POOL, writing the summary of
+     * each Setting to OUT and its mean trajectory to TRAJECTORIES, if not
+     * null, as soon as it is done.
+     */
+    public void run(ForkJoinPool pool, PrintStream out, PrintStream trajectories){
+        out.println(HEADER);
+        if(trajectories!=null){
+            trajectories.println("setting,tick,survival,meanLive,meanAverage");
+        }
+        for(Setting setting : settings){
+            Summary summary = new Summary(setting, runs, (int)(ticks/every) + 1);
+            pool.invoke(new RunTask(summary, 0, runs));
+            summary.print(out);
+            out.flush();
+            if(trajectories!=null){
+                summary.printTrajectory(trajectories, every);
+                trajectories.flush();
+            }
+        }
+    }
+
+    /** Returns the seed of colony RUN of every Setting. */
+    long seedOf(int run){
+        return SplitMix64.mix(seed + SplitMix64.GAMMA*(run+1));
+    }
+
+    /** Runs colony RUN of the Setting of SUMMARY, recording its outcome in
+     * SUMMARY and adding its trajectory to the sums LIVE, AVERAGE and ALIVE.
+     */
+    void runColony(Summary summary, int run, double[] live, double[] average, long[] alive){
+        Setting setting = summary.setting;
+        State colony = new State(setting.width, setting.height);
+        colony.setSeed(seedOf(run));
+        colony.setMutationStep(setting.step);
+        colony.randomStart();
+        ColonyStatistics statistics = colony.getStatistics();
+
+        long died = -1;
+        long reached = statistics.getMean()>=target ? 0 : -1;
+        sample(statistics, 0, live, average, alive);
+        while(colony.getTick()<ticks){
+            setting.schedule.apply(colony, colony.getTick());
+            if(statistics.getLive()==0){
+                // Cells only ever die of antibiotics, so an extinct colony
+                // stays extinct.
+                died = colony.getTick();
+                break;
+            }
+            colony.updateState();
+            long tick = colony.getTick();
+            if(reached<0 && statistics.getMean()>=target){
+                reached = tick;
+            }
+            if(tick%every==0){
+                sample(statistics, (int)(tick/every), live, average, alive);
+            }
+        }
+        summary.extinction[run] = died;
+        summary.reached[run] = reached;
+        summary.average[run] = statistics.getMean();
+    }
+
+    private static void sample(ColonyStatistics statistics, int s, double[] live,
+            double[] average, long[] alive){
+        if(statistics.getLive()>0){
+            live[s] += statistics.getLive();
+            average[s] += statistics.getMean();
+            alive[s]++;
+        }
+    }
+
+    /** The Setting class holds one combination of the swept parameters. The
+     * colonies of a Setting are checked up front, so that a Setting that 
+     * cannot be run is reported before any colony is started.
+     */
+    public static class Setting {
+        final int number;
+        final int width;
+        final int height;
+        final int step;
+        final String doses;
+        final DoseSchedule schedule;
+
+        public Setting(int number, int width, int height, int step, String doses){
+            this.number = number;
+            this.width = width;
+            this.height = height;
+            this.step = step;
+            this.doses = doses.trim().replaceAll("\\s*\\r?\\n\\s*", "; ");
+            schedule = DoseSchedule.parse(doses);
+            Grid.checkSize(width, height);
+            if(step<1 || step>=Grid.LEVELS){
+                throw new IllegalArgumentException("The mutation step must be between 1 and "
+                        + (Grid.LEVELS-1) + " levels, got " + step);
+            }
+        }
+    }
+
+    /** The Summary class collects the outcome of the colonies of a Setting.
+     * The Summary class contains three variables:
+     * (1) long[] extinction, long[] reached: For each colony, the tick it
+     * died out at and the tick its average GENEXP first reached TARGET at,
+     * or -1 if it never did.
+     * (2) double[] average: For each colony, its average GENEXP at the end.
+     * (3) double[] live, double[] meanAverage, long[] alive: The sums, over
+     * the colonies still alive, of the live Cells and of the average GENEXP
+     * at each sampled tick, and the number of those colonies.
+     */
+    static class Summary {
+        final Setting setting;
+        final long[] extinction;
+        final long[] reached;
+        final double[] average;
+        final double[] live;
+        final double[] meanAverage;
+        final long[] alive;
+
+        Summary(Setting setting, int runs, int samples){
+            this.setting = setting;
+            extinction = new long[runs];
+            reached = new long[runs];
+            average = new double[runs];
+            live = new double[samples];
+            meanAverage = new double[samples];
+            alive = new long[samples];
+        }
+
+        /** Adds the trajectory sums of some of the colonies. */
+        synchronized void merge(double[] live, double[] average, long[] alive){
+            for(int s=0; s<alive.length; s++){
+                this.live[s] += live[s];
+                meanAverage[s] += average[s];
+                this.alive[s] += alive[s];
+            }
+        }
+
+        void print(PrintStream out){
+            long[] died = sorted(extinction);
+            long[] hit = sorted(reached);
+            double[] averages = average.clone();
+            Arrays.sort(averages);
+            out.printf(Locale.ROOT, "%d,%d,%d,%d,\"%s\",%d,%d,%.4f,%s,%s,%d,%s,%s,%s,%.3f,%.3f,%.3f%n",
+                    setting.number, setting.width, setting.height, setting.step,
+                    setting.doses.replace("\"", "\"\""), extinction.length, died.length,
+                    (double) died.length/extinction.length,
+                    percentile(died, 0.5), percentile(died, 0.9), hit.length,
+                    percentile(hit, 0.1), percentile(hit, 0.5), percentile(hit, 0.9),
+                    averages[(int)Math.ceil(0.1*averages.length)-1],
+                    averages[(int)Math.ceil(0.5*averages.length)-1],
+                    averages[(int)Math.ceil(0.9*averages.length)-1]);
+        }
+
+        void printTrajectory(PrintStream out, long every){
+            int runs = extinction.length;
+            for(int s=0; s<alive.length; s++){
+                out.printf(Locale.ROOT, "%d,%d,%.4f,%.1f,%.4f%n", setting.number, s*every,
+                        (double) alive[s]/runs, alive[s]==0 ? 0.0 : live[s]/alive[s],
+                        alive[s]==0 ? 0.0 : meanAverage[s]/alive[s]);
+            }
+        }
+
+        /** Returns the VALUES that are not -1, sorted. */
+        private static long[] sorted(long[] values){
+            long[] sorted = Arrays.stream(values).filter(v -> v>=0).toArray();
+            Arrays.sort(sorted);
+            return sorted;
+        }
+
+        /** Returns the nearest-rank P percentile of SORTED, or an empty
+         * string if there are no values.
+         */
+        private static String percentile(long[] sorted, double p){
+            if(sorted.length==0){
+                return "";
+            }
+            return Long.toString(sorted[(int)Math.ceil(p*sorted.length)-1]);
+        }
+    }
+
+    /** A task running the colonies FROM to TO of a Setting, splitting itself
+     * in half until a single colony is left.
+     */
+    private class RunTask extends RecursiveAction {
+        final Summary summary;
+        final int from;
+        final int to;
+
+        RunTask(Summary summary, int from, int to){
+            this.summary = summary;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute(){
+            if(to-from > 1){
+                int mid = (from + to) >>> 1;
+                invokeAll(new RunTask(summary, from, mid), new RunTask(summary, mid, to));
+                return;
+            }
+            int samples = summary.alive.length;
+            double[] live = new double[samples];
+            double[] average = new double[samples];
+            long[] alive = new long[samples];
+            for(int run=from; run<to; run++){
+                runColony(summary, run, live, average, alive);
+            }
+            summary.merge(live, average, alive);
+        }
+    }
+}
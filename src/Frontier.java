@@ -0,0 +1,185 @@
+package antibioticresistancesimulation;
+
+import java.util.Arrays;
+
+/** The Frontier class keeps track of which parts of a Grid hold live Cells,
+ * so that the engines can skip the empty regions of a sparse colony. The grid
+ * is split into tiles of 2^ROWSHIFT rows by 2^COLSHIFT columns, and a tile is
+ * marked as occupied if it may hold a live Cell. As a daughter Cell is only
+ * ever placed next to its parent, the Cells of the next state can only appear
+ * in the occupied tiles and the tiles around them.
+ * The Frontier class contains seven variables:
+ * (1) int rowShift, int colShift: The height and width of a tile, as powers
+ * of two.
+ * (2) int tileRows, int tileCols: The number of tiles along each side of the
+ * grid.
+ * (3) boolean[] occupied: The tiles of the current state of the grid that may
+ * hold live Cells.
+ * (4) boolean[] nextOccupied: The tiles of the next state buffers of the grid
+ * that may hold anything but empty positions. Before a transition, these are
+ * the leftovers of the state before the current one, which have to be cleared
+ * before the buffers are reused; during a transition, the tiles the next state
+ * is written into.
+ * (5) int count: The number of occupied tiles.
+ * (6) boolean saturated: Whether so many tiles are occupied that tracking them
+ * costs more than it saves. While SATURATED, the engines scan the whole grid
+ * and the occupied tiles are not kept up to date.
+ * (7) int[] columns: The first column of each occupied tile of a row of
+ * tiles, filled by the sequential scan as it goes down the grid.
+ */
+
+public class Frontier {
+    /** The share of occupied tiles above which the whole grid is scanned. */
+    static final double SATURATION = 0.5;
+
+    final Grid grid;
+    final int rowShift;
+    final int colShift;
+    final int tileRows;
+    final int tileCols;
+    boolean[] occupied;
+    boolean[] nextOccupied;
+    int count;
+    boolean saturated;
+    final int[] columns;
+
+    /** Creates a Frontier over GRID with tiles of TILEHEIGHT x TILEWIDTH
+     * positions, both powers of two. The tiles are worked out from the
+     * current state of GRID.
+     */
+    public Frontier(Grid grid, int tileHeight, int tileWidth){
+        this.grid = grid;
+        rowShift = Integer.numberOfTrailingZeros(tileHeight);
+        colShift = Integer.numberOfTrailingZeros(tileWidth);
+        tileRows = (grid.height + tileHeight - 1) >> rowShift;
+        tileCols = (grid.width + tileWidth - 1) >> colShift;
+        occupied = new boolean[tileRows*tileCols];
+        nextOccupied = new boolean[tileRows*tileCols];
+        columns = new int[tileCols];
+        rebuild();
+    }
+
+    /** Works out the occupied tiles by scanning the current state of the
+     * whole grid. The content of the next state buffers is unknown, so all of
+     * it will be cleared before it is reused.
+     */
+    public void rebuild(){
+        byte[] level = grid.level;
+        Arrays.fill(occupied, false);
+        int tileWidth = 1 << colShift;
+        for(int i=0; i<grid.height; i++){
+            int tileRow = (i >> rowShift)*tileCols;
+            for(int tileCol=0; tileCol<tileCols; tileCol++){
+                // A tile already known to be occupied needs no more looking 
+                // at, so a full grid is only read one position per tile row.
+                if(occupied[tileRow + tileCol]){
+                    continue;
+                }
+                int from = i*grid.width + tileCol*tileWidth;
+                int to = Math.min(from + tileWidth, (i+1)*grid.width);
+                for(int k=from; k<to; k++){
+                    if(level[k]!=0){
+                        occupied[tileRow + tileCol] = true;
+                        break;
+                    }
+                }
+            }
+        }
+        Arrays.fill(nextOccupied, true);
+        recount();
+    }
+
+    /** Marks the tiles of an emptied grid with a single live Cell at ROW,
+     * COL.
+     */
+    public void start(int row, int col){
+        Arrays.fill(occupied, false);
+        Arrays.fill(nextOccupied, false);
+        occupied[tile(row, col)] = true;
+        recount();
+    }
+
+    /** Returns the tile of position ROW, COL. */
+    int tile(int row, int col){
+        return (row >> rowShift)*tileCols + (col >> colShift);
+    }
+
+    /** Records that position ROW, COL of the next state holds a live Cell.
+     */
+    void mark(int row, int col){
+        nextOccupied[(row >> rowShift)*tileCols + (col >> colShift)] = true;
+    }
+
+    /** Returns whether tile T or any of the four tiles around it is
+     * occupied, i.e. whether the next state of tile T may hold live Cells.
+     */
+    boolean isNear(int t){
+        int col = t % tileCols;
+        return occupied[t]
+                || (t>=tileCols && occupied[t-tileCols])
+                || (t+tileCols<occupied.length && occupied[t+tileCols])
+                || (col>0 && occupied[t-1])
+                || (col<tileCols-1 && occupied[t+1]);
+    }
+
+    /** Empties tile T of the next state buffers of the grid if it holds any
+     * leftovers, and marks it as empty.
+     */
+    void clearNext(int t){
+        if(!nextOccupied[t]){
+            return;
+        }
+        int width = grid.width;
+        int rowStart = (t / tileCols) << rowShift;
+        int colStart = (t % tileCols) << colShift;
+        int rowEnd = Math.min(rowStart + (1 << rowShift), grid.height);
+        int colEnd = Math.min(colStart + (1 << colShift), width);
+        for(int i=rowStart; i<rowEnd; i++){
+            Arrays.fill(grid.nextLevel, i*width + colStart, i*width + colEnd, (byte) 0);
+        }
+        nextOccupied[t] = false;
+    }
+
+    /** Empties every tile of the next state buffers holding leftovers. */
+    void clearNext(){
+        for(int t=0; t<nextOccupied.length; t++){
+            clearNext(t);
+        }
+    }
+
+    /** Makes the tiles of the next state the occupied tiles, following a
+     * swap() of the grid. The tiles occupied so far now describe the
+     * leftovers in the next state buffers.
+     */
+    void swap(){
+        boolean[] o = occupied;
+        occupied = nextOccupied;
+        nextOccupied = o;
+        recount();
+    }
+
+    private void recount(){
+        count = 0;
+        for(boolean o : occupied){
+            if(o){
+                count++;
+            }
+        }
+        saturated = count > SATURATION*occupied.length;
+    }
+
+    /** Returns the number of tiles that may hold live Cells.
+     * @return The number of occupied tiles.
+     */
+    public int getCount(){
+        return count;
+    }
+
+    /** Returns whether the colony has grown over so much of the grid that
+     * the engines scan all of it.
+     * @return True if the occupied tiles are not tracked.
+     */
+    public boolean isSaturated(){
+        return saturated;
+    }
+}
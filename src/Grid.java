@@ -0,0 +1,128 @@
+package antibioticresistancesimulation;
+
+import java.util.Arrays;
+
+/** The Grid class stores the bacteria colony as flat primitive arrays
+ * instead of a 2-D array of Cell objects. Position (row, col) of the colony
+ * is stored at index row*width+col of each array, so the memory used grows
+ * linearly with the number of positions and carries no per-row or per-cell
+ * object overhead.
+ * 
+ * Mutations only ever move the GENEXP of a Cell in steps of 0.05 between 0.1
+ * and 1.0, so a Cell can only have one of LEVELS gene expression levels. Each
+ * position is stored as a single byte: 0 for a position without a live Cell,
+ * or the level of its Cell, from 1 for a GENEXP of 0.1 to LEVELS for 1.0.
+ * The Grid class contains three variables:
+ * (1) int width, int height: The number of columns and rows of the grid.
+ * (2) byte[] level: The level of every position of the current state of the
+ * colony.
+ * (3) byte[] nextLevel: The buffer the next state of the colony is written 
+ * into during a transition.
+ *
+ * Once a transition is complete, the two buffers are swapped, so that no new
+ * arrays are allocated while the simulation is running.
+ */
+
+public class Grid {
+    /** The largest number of positions a single flat array can hold. */
+    public static final int MAX_SIZE = Integer.MAX_VALUE - 8;
+
+    /** The number of gene expression levels a live Cell can have. */
+    public static final int LEVELS = 19;
+
+    /** The GENEXP of each level, GENES[0] standing for an empty position. */
+    static final double[] GENES = new double[LEVELS+1];
+    static {
+        for(int l=1; l<=LEVELS; l++){
+            GENES[l] = (l+1)/20.0;
+        }
+    }
+
+    final int width;
+    final int height;
+    byte[] level;
+    byte[] nextLevel;
+
+    public Grid(int width, int height){
+        checkSize(width, height);
+        this.width = width;
+        this.height = height;
+        level = new byte[width*height];
+        nextLevel = new byte[width*height];
+    }
+
+    /** Checks that a grid of WIDTH x HEIGHT positions can be created.
+     * @throws IllegalArgumentException If the grid is smaller than 2x2 or 
+     * larger than MAX_SIZE positions.
+     */
+    public static void checkSize(int width, int height){
+        if(width<2 || height<2){
+            throw new IllegalArgumentException("The grid must be at least 2x2, got "
+                    + width + "x" + height);
+        }
+        if((long) width*height > MAX_SIZE){
+            throw new IllegalArgumentException("A " + width + "x" + height
+                    + " grid does not fit into a single array");
+        }
+    }
+
+    /** Returns the GENEXP of a level.
+     * @param level A level between 0 and LEVELS.
+     * @return The gene expression level of the Cells of that level, or 0 for
+     * an empty position.
+     */
+    public static double gene(int level){
+        return GENES[level];
+    }
+
+    /** Returns the level closest to a GENEXP.
+     * @param gene A gene expression level.
+     * @return 0 if GENE is not positive, otherwise the level between 1 and 
+     * LEVELS closest to GENE.
+     */
+    public static int level(double gene){
+        if(gene<=0){
+            return 0;
+        }
+        int level = (int)Math.round(gene*20) - 1;
+        return level<1 ? 1 : (level>LEVELS ? LEVELS : level);
+    }
+
+    /** Returns the number of positions of the grid.
+     * @return WIDTH times HEIGHT.
+     */
+    public int size(){
+        return level.length;
+    }
+
+    /** Returns the flat index of position ROW, COL.
+     * @param row Row index of the position
+     * @param col Col index of the position
+     * @return The index of the position within the arrays of the grid.
+     */
+    public int index(int row, int col){
+        return row*width + col;
+    }
+
+    /** Empties both the current and the next state of the colony.
+     */
+    public void clear(){
+        Arrays.fill(level, (byte) 0);
+        Arrays.fill(nextLevel, (byte) 0);
+    }
+
+    /** Marks every position of the next state as empty.
+     */
+    public void clearNext(){
+        Arrays.fill(nextLevel, (byte) 0);
+    }
+
+    /** Makes the next state the current state of the colony. The buffers of
+     * the old current state are reused to hold the following next state.
+     */
+    public void swap(){
+        byte[] l = level;
+        level = nextLevel;
+        nextLevel = l;
+    }
+}
@@ -0,0 +1,292 @@
+package antibioticresistancesimulation;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Locale;
+import java.util.concurrent.ForkJoinPool;
+import javax.management.JMException;
+
+/** The HeadlessRunner class runs the simulation without the GUI, as fast as
+ * the CPU allows. It never touches AWT or Swing, so it can be run on machines
+ * without a display.
+ * 
+ * The colony is started with randomStart(), or restored from a Checkpoint, 
+ * then updated for the requested number of ticks while the doses of a 
+ * DoseSchedule are applied. Every transition can be recorded with a 
+ * TrajectoryRecorder, and the colony saved to a Checkpoint at the end. Every 
+ * EVERY ticks, a summary line "tick,live,average,doses,variance" is written
+ * to the standard output, optionally followed by the number of clusters of
+ * resistant Cells and the size of the largest (see SpatialIndex), and by the
+ * number of live Cells at each GENEXP level. Once the run is over, the 
+ * throughput in ticks per second is written to the standard error, so that
+ * it can be tracked from run to run without mixing it up with the 
+ * summaries.
+ */
+
+public class HeadlessRunner {
+
+    static final String USAGE = 
+            "Usage: HeadlessRunner [options]\n"
+            + "  --size W[xH]        size of the colony (default 25x25)\n"
+            + "  --ticks N           number of transitions to run (default 1000)\n"
+            + "  --seed S            seed of the random decisions (default: random)\n"
+            + "  --schedule FILE     dose schedule, see DoseSchedule\n"
+            + "  --doses TEXT        dose schedule given inline, e.g. \"tick 500: dose b\"\n"
+            + "  --every K           write a summary every K ticks (default 1, 0 for none)\n"
+            + "  --step L            mutation step, in levels of 0.05 genexp (default 1)\n"
+            + "  --histogram         add the number of live cells at each genexp level\n"
+            + "  --clusters G        add the number of clusters of cells with a genexp of\n"
+            + "                      at least G, and the size of the largest\n"
+            + "  --parallel [T]      use the ParallelEngine with T threads (default: all cores)\n"
+            + "  --dense             scan the whole grid even while the colony is small\n"
+            + "  --restore FILE      continue the colony saved in a checkpoint instead\n"
+            + "                      of starting a new one (--size and --seed are ignored)\n"
+            + "  --checkpoint FILE   save the colony to a checkpoint at the end\n"
+            + "  --record FILE       record every transition, for replay in the GUI\n"
+            + "  --keyframes K       frames between full frames of the recording (default 100)\n"
+            + "  --jmx               publish the metrics of the colony through JMX\n";
+
+    public static void main(String[] args) {
+        int width = 25;
+        int height = 25;
+        long ticks = 1000;
+        long every = 1;
+        Long seed = null;
+        Integer step = null;
+        int threads = -1;
+        boolean histogram = false;
+        double clusters = 0;
+        boolean dense = false;
+        Path restore = null;
+        Path checkpoint = null;
+        Path record = null;
+        int keyframes = 100;
+        boolean jmx = false;
+        DoseSchedule schedule = new DoseSchedule();
+
+        try{
+            for(int i=0; i<args.length; i++){
+                switch(args[i]){
+                    case "--size":
+                        String[] size = args[++i].split("x");
+                        width = Integer.parseInt(size[0]);
+                        height = size.length>1 ? Integer.parseInt(size[1]) : width;
+                        break;
+                    case "--ticks":
+                        ticks = Long.parseLong(args[++i]);
+                        break;
+                    case "--seed":
+                        seed = Long.parseLong(args[++i]);
+                        break;
+                    case "--step":
+                        step = Integer.parseInt(args[++i]);
+                        break;
+                    case "--schedule":
+                        schedule = DoseSchedule.read(Paths.get(args[++i]));
+                        break;
+                    case "--doses":
+                        schedule = DoseSchedule.parse(args[++i]);
+                        break;
+                    case "--every":
+                        every = Long.parseLong(args[++i]);
+                        break;
+                    case "--histogram":
+                        histogram = true;
+                        break;
+                    case "--clusters":
+                        clusters = Double.parseDouble(args[++i]);
+                        break;
+                    case "--dense":
+                        dense = true;
+                        break;
+                    case "--jmx":
+                        jmx = true;
+                        break;
+                    case "--restore":
+                        restore = Paths.get(args[++i]);
+                        break;
+                    case "--checkpoint":
+                        checkpoint = Paths.get(args[++i]);
+                        break;
+                    case "--record":
+                        record = Paths.get(args[++i]);
+                        break;
+                    case "--keyframes":
+                        keyframes = Integer.parseInt(args[++i]);
+                        break;
+                    case "--parallel":
+                        threads = Runtime.getRuntime().availableProcessors();
+                        if(i+1<args.length && !args[i+1].startsWith("--")){
+                            threads = Integer.parseInt(args[++i]);
+                        }
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown option " + args[i]);
+                }
+            }
+        } catch(IOException | IllegalArgumentException | ArrayIndexOutOfBoundsException ex){
+            System.err.println(ex.getMessage());
+            System.err.print(USAGE);
+            System.exit(2);
+            return;
+        }
+
+        State colony;
+        TrajectoryRecorder recorder = null;
+        try{
+            if(restore!=null){
+                colony = Checkpoint.load(restore);
+                width = colony.getWidth();
+                height = colony.getHeight();
+            } else{
+                colony = new State(width, height);
+                if(seed!=null){
+                    colony.setSeed(seed);
+                }
+                colony.randomStart();
+            }
+            if(step!=null){
+                colony.setMutationStep(step);
+            }
+            if(record!=null){
+                recorder = new TrajectoryRecorder(record, width, height, keyframes);
+            }
+        } catch(IOException | IllegalArgumentException ex){
+            System.err.println(ex.getMessage());
+            System.exit(1);
+            return;
+        }
+        if(dense){
+            colony.setSparse(false);
+        }
+        if(jmx){
+            try{
+                colony.getMetrics().register("headless");
+            } catch(JMException ex){
+                System.err.println("The metrics cannot be published: " + ex.getMessage());
+            }
+        }
+        if(threads>0){
+            colony.useParallelEngine(new ForkJoinPool(threads));
+        }
+        SpatialIndex index = null;
+        if(clusters>0){
+            try{
+                index = new SpatialIndex(colony, clusters);
+            } catch(IllegalArgumentException ex){
+                System.err.println(ex.getMessage());
+                System.exit(2);
+                return;
+            }
+        }
+
+        PrintStream out = new PrintStream(new BufferedOutputStream(System.out, 1<<16), false);
+        long elapsed;
+        try{
+            elapsed = run(colony, schedule, ticks, every, histogram, index, recorder, out);
+            out.flush();
+            if(recorder!=null){
+                recorder.close();
+            }
+            if(checkpoint!=null){
+                Checkpoint.save(colony, checkpoint);
+            }
+        } catch(IOException ex){
+            out.flush();
+            System.err.println(ex.getMessage());
+            System.exit(1);
+            return;
+        }
+
+        System.err.printf("%d ticks of a %dx%d colony in %.3f s: %.1f ticks/s%n",
+                ticks, width, height, elapsed/1e9, ticks/(elapsed/1e9));
+    }
+
+    /** Runs COLONY for TICKS transitions, applying the doses of SCHEDULE and
+     * writing a summary to OUT every EVERY ticks. If INDEX is not null, each
+     * summary also holds the clusters of the resistant Cells it finds, and if
+     * HISTOGRAM is set, the number of live Cells at each GENEXP level. If 
+     * RECORDER is not null, the colony is recorded before the first and after
+     * every transition. Otherwise the transitions between a summary or dose 
+     * and the next are performed together by State.advance(). The doses are
+     * counted on from those COLONY already had, e.g. when it was restored
+     * from a Checkpoint.
+     * @return The time taken, in nanoseconds.
+     * @throws IOException If the recording fails.
+     */
+    static long run(State colony, DoseSchedule schedule, long ticks, long every, 
+            boolean histogram, SpatialIndex index, TrajectoryRecorder recorder, PrintStream out)
+            throws IOException{
+        ColonyStatistics statistics = colony.getStatistics();
+        long doses = colony.doses;
+        long start = System.nanoTime();
+
+        if(recorder!=null){
+            recorder.record(colony);
+        }
+        if(every>0){
+            printHeader(histogram, index, out);
+        }
+        for(long t=0; t<ticks; ){
+            doses += schedule.apply(colony, colony.getTick());
+            long count = recorder!=null ? 1 : ticks - t;
+            if(every>0){
+                count = Math.min(count, every - colony.getTick()%every);
+            }
+            t += colony.advance(count, schedule);
+            if(recorder!=null){
+                recorder.record(colony);
+            }
+            if(every>0 && colony.getTick()%every==0){
+                printSummary(colony.getTick(), statistics, doses, histogram, index, out);
+            }
+        }
+        return System.nanoTime() - start;
+    }
+
+    /** Writes the header of the summaries to OUT. */
+    static void printHeader(boolean histogram, SpatialIndex index, PrintStream out){
+        out.print("tick,live,average,doses,variance");
+        if(index!=null){
+            out.print(",clusters,largest");
+        }
+        if(histogram){
+            for(int b=0; b<ColonyStatistics.BINS; b++){
+                out.printf(Locale.ROOT, ",g%.2f", ColonyStatistics.binValue(b));
+            }
+        }
+        out.println();
+    }
+
+    /** Writes the summary of a colony at TICK to OUT. The average is rounded
+     * as by State.average().
+     */
+    static void printSummary(long tick, ColonyStatistics statistics, long doses, 
+            boolean histogram, SpatialIndex index, PrintStream out){
+        out.print(tick);
+        out.print(',');
+        out.print(statistics.getLive());
+        out.print(',');
+        out.print(Math.floor(statistics.getMean()*1000)/1000);
+        out.print(',');
+        out.print(doses);
+        out.print(',');
+        out.print(statistics.getVariance());
+        if(index!=null){
+            out.print(',');
+            out.print(index.clusters());
+            out.print(',');
+            out.print(index.largestCluster());
+        }
+        if(histogram){
+            for(int b=0; b<ColonyStatistics.BINS; b++){
+                out.print(',');
+                out.print(statistics.getCount(b));
+            }
+        }
+        out.println();
+    }
+}
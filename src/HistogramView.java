@@ -0,0 +1,70 @@
+package antibioticresistancesimulation;
+
+import java.awt.Color;
+import java.awt.Dimension;
+import java.awt.Graphics;
+import javax.swing.JPanel;
+
+/** The HistogramView class draws the distribution of the GENEXP of the live
+ * Cells of the colony as a bar chart, one bar per GENEXP level from 0.1 on
+ * the left to 1.0 on the right. Each bar is painted in the shade the Cells of
+ * its level have in the ColonyView, and its height is proportional to the
+ * number of those Cells relative to the most common level.
+ * The HistogramView class contains one variable:
+ * (1) long[] counts: The number of live Cells at each GENEXP level, as of the
+ * last update.
+ */
+
+public class HistogramView extends JPanel {
+    private static final long serialVersionUID = 1L;
+
+    /** The width of a bar and the height of the chart, in pixels. */
+    static final int BAR_WIDTH = 8;
+    static final int CHART_HEIGHT = 32;
+
+    final long[] counts = new long[ColonyStatistics.BINS];
+
+    /** Copies the distribution of STATISTICS and repaints the chart if it
+     * changed.
+     * @param statistics The statistics of the colony.
+     */
+    public void update(ColonyStatistics statistics){
+        boolean changed = false;
+        for(int b=0; b<counts.length; b++){
+            long count = statistics.getCount(b);
+            if(counts[b]!=count){
+                counts[b] = count;
+                changed = true;
+            }
+        }
+        if(changed){
+            repaint();
+        }
+    }
+
+    @Override
+    protected void paintComponent(Graphics g){
+        super.paintComponent(g);
+        long max = 0;
+        for(long count : counts){
+            max = Math.max(max, count);
+        }
+        if(max==0){
+            return;
+        }
+        int base = getHeight() - 1;
+        for(int b=0; b<counts.length; b++){
+            int bar = (int)Math.ceil((double)counts[b]*(CHART_HEIGHT-1)/max);
+            double shade = 1.0 - ColonyStatistics.binValue(b);
+            g.setColor(new Color(ColonyView.PALETTE[(int)Math.round(shade*1000)]));
+            g.fillRect(b*BAR_WIDTH, base-bar, BAR_WIDTH-1, bar);
+        }
+        g.setColor(Color.GRAY);
+        g.drawLine(0, base, counts.length*BAR_WIDTH, base);
+    }
+
+    @Override
+    public Dimension getPreferredSize(){
+        return new Dimension(counts.length*BAR_WIDTH, CHART_HEIGHT);
+    }
+}
@@ -0,0 +1,237 @@
+package antibioticresistancesimulation;
+
+/** The Kernels class holds the loops that map every position of the grid
+ * independently of the others: generating the random numbers of a dose,
+ * resolving the proposals made into each position by ParallelEngine.advance(),
+ * exporting the shade of each position and spreading the antibiotics of an
+ * AntibioticField. This class implements them with 
+ * plain loops; VectorKernels overrides them with the JDK Vector API, and is
+ * used instead when the jdk.incubator.vector module is available, i.e. when
+ * the JVM is started with --add-modules jdk.incubator.vector. Setting the 
+ * system property antibioticresistancesimulation.kernels to "scalar" forces
+ * the plain loops.
+ *
+ * Both implementations produce exactly the same numbers, so the colony does 
+ * not depend on which one is used.
+ */
+
+public class Kernels {
+    /** The kernels used by the State and the ParallelEngine. */
+    static final Kernels INSTANCE = select();
+
+    private static Kernels select(){
+        if("scalar".equals(System.getProperty("antibioticresistancesimulation.kernels"))){
+            return new Kernels();
+        }
+        try{
+            // Loading VectorKernels fails if the incubator module is missing.
+            return (Kernels) Class.forName("antibioticresistancesimulation.VectorKernels")
+                    .getDeclaredConstructor().newInstance();
+        } catch(ReflectiveOperationException | LinkageError ex){
+            return new Kernels();
+        }
+    }
+
+    /** Returns the kernels in use.
+     * @return A VectorKernels if the Vector API is available, otherwise the
+     * plain Kernels.
+     */
+    public static Kernels get(){
+        return INSTANCE;
+    }
+
+    /** Returns a short name of the implementation, e.g. for benchmarks.
+     * @return "scalar" or "vector".
+     */
+    public String getName(){
+        return "scalar";
+    }
+
+    /** Fills OUT with the next COUNT numbers of a SplitMix64 whose state is 
+     * STATE, without advancing it.
+     * @param state The state of the SplitMix64.
+     * @param out The array to fill, from index 0.
+     * @param count The number of values.
+     */
+    void splitMix(long state, long[] out, int count){
+        for(int i=0; i<count; i++){
+            state += SplitMix64.GAMMA;
+            out[i] = SplitMix64.mix(state);
+        }
+    }
+
+    /** Fills OUT with the random numbers ParallelEngine.mix() derives for 
+     * positions FIRST to FIRST+COUNT-1.
+     * @param seed The seed of the colony.
+     * @param tick The transition or dose number.
+     * @param first The index of the first position.
+     * @param stream The decision being made.
+     * @param out The array to fill, from index 0.
+     * @param count The number of positions.
+     */
+    void positionMix(long seed, long tick, long first, long stream, long[] out, int count){
+        for(int i=0; i<count; i++){
+            out[i] = ParallelEngine.mix(seed, tick, first + i, stream);
+        }
+    }
+
+    /** Resolves columns FROM to TO-1 of a row into NEXTLEVEL, as 
+     * ParallelEngine.resolve() does, from the proposals the Cells of the row 
+     * and of the rows above and below it made for transition TICK. The loop
+     * has no data dependent branches, as in a crowded colony every test is a
+     * coin toss: the valid proposals are ranked by their priority alone, 
+     * which is enough as two neighbors never make the same proposal, their 
+     * directions differing.
+     * @param level The levels the row is read from.
+     * @param nextLevel The levels the row is written to.
+     * @param base The index of column 0 of the row in LEVEL and NEXTLEVEL.
+     * @param width The width of the colony.
+     * @param top Whether the row is the first of the colony.
+     * @param bottom Whether the row is the last of the colony.
+     * @param above The proposals of the row above, by column.
+     * @param proposals The proposals of the row.
+     * @param below The proposals of the row below.
+     * @param seed The seed of the colony.
+     * @param tick The number of the transition.
+     * @param first The index in the colony of column 0 of the row.
+     * @param step The mutation step, in levels.
+     * @param counts Counts the daughter Cells placed in [0] and the live
+     * Cells they replaced in [1].
+     * @param from The first column.
+     * @param to The column after the last one.
+     */
+    void resolve(byte[] level, byte[] nextLevel, int base, int width, boolean top, 
+            boolean bottom, int[] above, int[] proposals, int[] below, long seed, long tick,
+            long first, int step, long[] counts, int from, int to){
+        long born = 0;
+        long replaced = 0;
+        for(int j=from; j<to; j++){
+            int k = base + j;
+            int up = top ? 0 : level[k-width];
+            int down = bottom ? 0 : level[k+width];
+            int left = j==0 ? 0 : level[k-1];
+            int right = j==width-1 ? 0 : level[k+1];
+            int fromLeft = proposals[Math.max(j-1, 0)];
+            int fromRight = proposals[Math.min(j+1, width-1)];
+
+            int validUp = valid(up, above[j], Neighbors.DOWN);
+            int validDown = valid(down, below[j], Neighbors.UP);
+            int validLeft = valid(left, fromLeft, Neighbors.RIGHT);
+            int validRight = valid(right, fromRight, Neighbors.LEFT);
+            int best = Math.max(
+                    Math.max(rank(validUp, above[j]), rank(validDown, below[j])),
+                    Math.max(rank(validLeft, fromLeft), rank(validRight, fromRight)));
+            int has = validUp | validDown | validLeft | validRight;
+
+            // The direction of the winning proposal tells where its parent 
+            // is: UP from below, DOWN from above, LEFT from the right and
+            // RIGHT from the left. Without a proposal, the position is its 
+            // own parent, and the daughter worked out for it is discarded.
+            int direction = best & 3;
+            int offset = (1 - 2*(direction & 1)) * (1 + (width-1)*(1 - (direction >> 1)));
+            offset &= -has;
+            int outcome = ParallelEngine.pick(ParallelEngine.mix(seed, tick, first + j + offset,
+                    ParallelEngine.MUTATION_STREAM), 3);
+            // As in State.mutate(): up, down or no change.
+            int change = (step - 2*step*outcome) & ((outcome >> 1) - 1);
+            int daughter = Math.min(Math.max(level[k + offset] + change, 1), Grid.LEVELS);
+            int current = level[k];
+            nextLevel[k] = (byte)(current + ((daughter - current) & -has));
+            born += has;
+            replaced += has & ((current | -current) >>> 31);
+        }
+        counts[0] += born;
+        counts[1] += replaced;
+    }
+
+    /** Returns 1 if a neighbor of level PRESENT, 0 if there is none, placed
+     * its daughter Cell into the position with proposal P, which it reaches 
+     * in DIRECTION, otherwise 0.
+     */
+    static int valid(int present, int p, int direction){
+        return ((present | -present) >>> 31) & ((((p & 3) ^ direction) - 1) >>> 31);
+    }
+
+    /** Returns P if VALID is 1, otherwise the lowest priority. */
+    static int rank(int valid, int p){
+        return (p & -valid) | (Integer.MIN_VALUE & (valid - 1));
+    }
+
+    /** Writes the shade of positions FROM to FROM+COUNT-1 of LEVEL into OUT.
+     * @param level The levels of a grid.
+     * @param from The index of the first position.
+     * @param out The array to fill, from index 0.
+     * @param count The number of positions.
+     */
+    void shades(byte[] level, int from, double[] out, int count){
+        double[] shades = State.SHADES;
+        for(int i=0; i<count; i++){
+            out[i] = shades[level[from + i]];
+        }
+    }
+
+    /** Works out the concentrations of columns FROM to TO-1 of a row of an 
+     * AntibioticField after a step: A times the concentration of the 
+     * position plus B times the sum of those of its four neighbors, or 0 if
+     * that is below MIN. Columns FROM-1 and TO must be within the row.
+     * @param c The concentrations before the step.
+     * @param next The concentrations after the step.
+     * @param k The index of column 0 of the row.
+     * @param up The index of column 0 of the row above.
+     * @param down The index of column 0 of the row below.
+     * @param a The share of its concentration a position keeps.
+     * @param b The share of the concentration of each neighbor it gets.
+     * @param min The lowest concentration kept.
+     * @param from The first column.
+     * @param to The column after the last one.
+     * @return Whether any of the columns kept some antibiotics.
+     */
+    boolean diffuse(float[] c, float[] next, int k, int up, int down, float a, float b, 
+            float min, int from, int to){
+        boolean kept = false;
+        for(int j=from; j<to; j++){
+            float v = a*c[k+j] + b*(c[up+j] + c[down+j] + c[k+j-1] + c[k+j+1]);
+            kept |= v>=min;
+            next[k+j] = v<min ? 0f : v;
+        }
+        return kept;
+    }
+
+    /** Kills the live Cells of positions FROM to TO whose random number is 
+     * above the threshold of their level. The live Cells take their random 
+     * numbers from DRAWS in order, starting at index DRAWN, and the empty 
+     * positions take none, so that a dose uses exactly the numbers of the 
+     * sequence a Cell-by-Cell loop would. The loop has no data dependent 
+     * branches, as whether a Cell dies is as good as random.
+     * @param killed Counts the Cells killed at each level.
+     * @return The index of the first random number not used.
+     */
+    static int killLive(byte[] level, int from, int to, long[] thresholds, 
+            long[] draws, int drawn, long[] killed){
+        for(int k=from; k<to; k++){
+            int l = level[k];
+            // The thresholds are below 2^53, and that of level 0 is 
+            // Long.MAX_VALUE, so the sign of the difference is the verdict.
+            int dies = (int)((thresholds[l] - (draws[drawn] >>> 11)) >>> 63);
+            drawn += (-l) >>> 31;
+            killed[l] += dies;
+            level[k] = (byte)(l & (dies - 1));
+        }
+        return drawn;
+    }
+
+    /** Kills the live Cells of positions FROM to TO whose random number is 
+     * above the threshold of their level, the Cell at position K taking
+     * DRAWS[K-FROM]. 
+     * @param killed Counts the Cells killed at each level.
+     */
+    static void killAll(byte[] level, int from, int to, long[] thresholds, 
+            long[] draws, long[] killed){
+        for(int k=from; k<to; k++){
+            int l = level[k];
+            int dies = (int)((thresholds[l] - (draws[k - from] >>> 11)) >>> 63);
+            killed[l] += dies;
+            level[k] = (byte)(l & (dies - 1));
+        }
+    }
+}
@@ -0,0 +1,461 @@
+package antibioticresistancesimulation;
+
+import java.util.Arrays;
+
+/** The Lineage class keeps the genealogy of the live Cells of a colony, so
+ * that it can tell which founding Cell a clone descends from, how large the
+ * clone of each founder is, and where the surviving Cells last shared an
+ * ancestor. It is kept up to date from the births and deaths the colony
+ * records for the CellEvents (see State.trackLineage()), on the thread
+ * running the colony.
+ *
+ * Every live Cell holds the id of its lineage: a node of the genealogy,
+ * shared by all the Cells descending from it without a change of their
+ * GENEXP. A daughter Cell born with the GENEXP of its parent takes the id of
+ * its parent; a mutation starts a new node, child of the node of the parent,
+ * holding the new level and the tick it happened at. The Cells alive when
+ * the tracking starts are the founders, each its own root.
+ *
+ * A node is referenced by its live Cells and by its children. Once both
+ * counts drop to 0, the branch is extinct and the node is freed at once,
+ * along with the ancestors left without live Cells or children, so the
+ * genealogy only ever holds the ancestors of the live Cells. Along the line
+ * of a surviving clone the mutations still pile up, so whenever the number
+ * of nodes has doubled since, compact() drops the ancestors without live
+ * Cells that do not branch: the path from a Cell to its founder then holds
+ * the mutations at which the surviving lineages split, and the founders.
+ * Neither changes the founder or the most recent common ancestor of any
+ * Cell, so the genealogy stays within a few nodes per live Cell however
+ * long the colony runs.
+ *
+ * The births are taken in as they come, in batches of any size, although
+ * the parents are the Cells of the colony before the transition: the id a
+ * position held before the transition is kept in BEFORE as soon as a 
+ * daughter Cell replaces it, and the nodes left without live Cells are 
+ * only freed once the transition is over, so that none of them is reused
+ * while a daughter Cell may still reference it. The memory the Lineage uses
+ * therefore only grows with the size of the colony, not with the number of
+ * its births.
+ * The Lineage class contains eight variables:
+ * (1) int width: The width of the colony.
+ * (2) int[] ids: The lineage id of the Cell at every position, 0 for the
+ * empty positions.
+ * (3) int[] parent, byte[] level, long[] tick, int[] founder, int[] depth:
+ * For each node, its parent (0 for a founder, FREE for a free node), the
+ * level of its GENEXP, the tick it was born at, the founder it descends
+ * from and its number of ancestors when it was born, which only ever
+ * decreases along a path to the founder.
+ * (4) int[] live, int[] children, int[] clone: For each node, the number of
+ * live Cells holding its id, the number of its children, and for a founder
+ * the number of live Cells descending from it.
+ * (5) int[] free, int freeCount, int next, int nodes, int compacted: The
+ * freed nodes, the first node never used, the number of nodes in use, and
+ * that number after the last compact().
+ * (6) int[] before, int[] touched, int generation: The lineage id the 
+ * positions replaced during the transition under way held before it, valid
+ * where TOUCHED holds GENERATION, which changes with every transition.
+ * (7) int[] extinct, int extinctCount, boolean[] listed: The nodes left 
+ * without live Cells or children during the transition under way, freed
+ * once it is over unless a daughter Cell referenced them, and for each node
+ * whether it is among them.
+ * (8) long now, boolean born: The tick of the transition under way, and 
+ * whether any Cells were born in it.
+ */
+
+public class Lineage {
+    /** The parent of a free node. */
+    static final int FREE = -1;
+
+    /** The number of nodes below which compact() is not worth it. */
+    static final int MIN_COMPACT = 1 << 12;
+
+    final State colony;
+    final int width;
+    final int[] ids;
+    final int[] before;
+    final int[] touched;
+    int generation = 1;
+    int[] parent = new int[16];
+    byte[] level = new byte[16];
+    long[] tick = new long[16];
+    int[] founder = new int[16];
+    int[] depth = new int[16];
+    int[] live = new int[16];
+    int[] children = new int[16];
+    int[] clone = new int[16];
+    boolean[] listed = new boolean[16];
+    int[] free = new int[16];
+    int freeCount;
+    int next = 1;
+    int nodes;
+    int compacted;
+    int[] extinct = new int[16];
+    int extinctCount;
+    long now;
+    boolean born;
+
+    /** Starts tracking the genealogy of COLONY, with its live Cells as the
+     * founders. Use State.trackLineage() to have it kept up to date.
+     * @param colony The colony.
+     */
+    Lineage(State colony){
+        this.colony = colony;
+        width = colony.grid.width;
+        ids = new int[colony.grid.size()];
+        before = new int[ids.length];
+        touched = new int[ids.length];
+        reset();
+    }
+
+    /** Forgets the genealogy, and makes every live Cell of the colony a
+     * founder, e.g. after State.randomStart().
+     */
+    void reset(){
+        Arrays.fill(ids, 0);
+        Arrays.fill(touched, 0);
+        Arrays.fill(listed, false);
+        generation = 1;
+        freeCount = 0;
+        next = 1;
+        nodes = 0;
+        extinctCount = 0;
+        born = false;
+        now = colony.tick;
+        byte[] cells = colony.grid.level;
+        for(int k=0; k<cells.length; k++){
+            if(cells[k]!=0){
+                int n = allocate();
+                parent[n] = 0;
+                level[n] = cells[k];
+                tick[n] = now;
+                founder[n] = n;
+                depth[n] = 0;
+                live[n] = 1;
+                children[n] = 0;
+                clone[n] = 1;
+                ids[k] = n;
+            }
+        }
+        compacted = nodes;
+    }
+
+    /** Updates the genealogy with the events recorded in BUFFER, without
+     * emptying it.
+     */
+    void record(CellEvents.Buffer buffer){
+        long[] events = buffer.events;
+        for(int i=0; i<buffer.size; i++){
+            long event = events[i];
+            int kind = CellEvents.kind(event);
+            if(kind==CellEvents.BIRTH || kind==CellEvents.MUTATION){
+                birth(event);
+                continue;
+            }
+            flush();
+            if(kind==CellEvents.TICK){
+                now = CellEvents.position(event);
+            } else if(kind==CellEvents.DEATH){
+                int k = (int) CellEvents.position(event);
+                int id = ids[k];
+                if(id!=0){
+                    ids[k] = 0;
+                    remove(id);
+                }
+            }
+        }
+    }
+
+    /** Adds a daughter Cell, the parent of which is looked up among the
+     * Cells of the colony before the transition, and takes the Cell it 
+     * replaced off. */
+    private void birth(long event){
+        int p = (int) CellEvents.parent(event, width);
+        int id = touched[p]==generation ? before[p] : ids[p];
+        if(CellEvents.kind(event)==CellEvents.MUTATION){
+            id = mutation(id, CellEvents.level(event));
+        }
+        live[id]++;
+        clone[founder[id]]++;
+        int k = (int) CellEvents.position(event);
+        int replaced = ids[k];
+        if(touched[k]!=generation){
+            touched[k] = generation;
+            before[k] = replaced;
+        }
+        ids[k] = id;
+        born = true;
+        if(replaced!=0){
+            live[replaced]--;
+            clone[founder[replaced]]--;
+            if(live[replaced]==0 && children[replaced]==0 && !listed[replaced]){
+                if(extinctCount==extinct.length){
+                    extinct = Arrays.copyOf(extinct, 2*extinctCount);
+                }
+                extinct[extinctCount++] = replaced;
+                listed[replaced] = true;
+            }
+        }
+    }
+
+    /** Ends the transition under way: frees the nodes it left extinct, and
+     * forgets the ids the positions held before it. */
+    private void flush(){
+        if(!born){
+            return;
+        }
+        born = false;
+        if(++generation==Integer.MAX_VALUE){
+            Arrays.fill(touched, 0);
+            generation = 1;
+        }
+        while(extinctCount>0){
+            int n = extinct[--extinctCount];
+            listed[n] = false;
+            // A node may have been freed along with a child of its own.
+            if(parent[n]!=FREE){
+                prune(n);
+            }
+        }
+        if(nodes>=MIN_COMPACT && nodes>2*compacted){
+            compact();
+        }
+    }
+
+    /** Returns a new node for a Cell of level LEVEL, mutated from a Cell of
+     * lineage ID. */
+    private int mutation(int id, int cellLevel){
+        int n = allocate();
+        parent[n] = id;
+        level[n] = (byte) cellLevel;
+        tick[n] = now;
+        founder[n] = founder[id];
+        depth[n] = depth[id] + 1;
+        live[n] = 0;
+        children[n] = 0;
+        children[id]++;
+        return n;
+    }
+
+    /** Takes a live Cell of lineage ID off, and frees the nodes it leaves
+     * extinct. */
+    private void remove(int id){
+        live[id]--;
+        clone[founder[id]]--;
+        prune(id);
+    }
+
+    /** Frees node N if it has neither live Cells nor children, and then the
+     * ancestors it leaves without either. */
+    private void prune(int n){
+        while(n!=0 && live[n]==0 && children[n]==0){
+            int p = parent[n];
+            release(n);
+            if(p!=0){
+                children[p]--;
+            }
+            n = p;
+        }
+    }
+
+    /** Drops the nodes that are not founders and have neither live Cells
+     * nor more than one child, hanging their child under their parent.
+     */
+    void compact(){
+        flush();
+        for(int n=1; n<next; n++){
+            int p = parent[n];
+            if(p==FREE){
+                continue;
+            }
+            // A node with a single child is only referenced by it, so it can
+            // be freed as soon as the child skips it.
+            while(p!=0 && parent[p]!=0 && live[p]==0 && children[p]==1){
+                int grandparent = parent[p];
+                release(p);
+                p = grandparent;
+            }
+            parent[n] = p;
+        }
+        compacted = nodes;
+    }
+
+    private int allocate(){
+        nodes++;
+        if(freeCount>0){
+            return free[--freeCount];
+        }
+        if(next==parent.length){
+            int capacity = 2*next;
+            parent = Arrays.copyOf(parent, capacity);
+            level = Arrays.copyOf(level, capacity);
+            tick = Arrays.copyOf(tick, capacity);
+            founder = Arrays.copyOf(founder, capacity);
+            depth = Arrays.copyOf(depth, capacity);
+            live = Arrays.copyOf(live, capacity);
+            children = Arrays.copyOf(children, capacity);
+            clone = Arrays.copyOf(clone, capacity);
+            listed = Arrays.copyOf(listed, capacity);
+        }
+        return next++;
+    }
+
+    private void release(int n){
+        nodes--;
+        parent[n] = FREE;
+        if(freeCount==free.length){
+            free = Arrays.copyOf(free, 2*freeCount);
+        }
+        free[freeCount++] = n;
+    }
+
+    /** Returns the lineage id of the Cell at a position. Ids are reused once
+     * a lineage is extinct, so an id only holds until the next transition or
+     * dose.
+     * @param row Row index of the position
+     * @param col Col index of the position
+     * @return The id of its lineage, or 0 if the position is empty.
+     */
+    public int lineage(int row, int col){
+        flush();
+        return ids[colony.grid.index(row, col)];
+    }
+
+    /** Returns the node a lineage started from a mutation of.
+     * @param node A lineage id.
+     * @return The id of its parent, or 0 for a founder.
+     */
+    public int parent(int node){
+        checkNode(node);
+        return parent[node];
+    }
+
+    /** Returns the GENEXP of the Cells of a lineage.
+     * @param node A lineage id.
+     * @return The gene expression level.
+     */
+    public double gene(int node){
+        checkNode(node);
+        return Grid.gene(level[node]);
+    }
+
+    /** Returns the tick the mutation starting a lineage happened at.
+     * @param node A lineage id.
+     * @return The tick, or the tick the tracking started at for a founder.
+     */
+    public long tick(int node){
+        checkNode(node);
+        return tick[node];
+    }
+
+    /** Returns the founder a lineage descends from.
+     * @param node A lineage id.
+     * @return The id of the founder.
+     */
+    public int founder(int node){
+        checkNode(node);
+        return founder[node];
+    }
+
+    /** Returns the ancestors of a lineage kept by the genealogy, see
+     * compact().
+     * @param node A lineage id.
+     * @return The ids from NODE to its founder.
+     */
+    public int[] ancestors(int node){
+        checkNode(node);
+        int count = 0;
+        for(int n=node; n!=0; n=parent[n]){
+            count++;
+        }
+        int[] path = new int[count];
+        count = 0;
+        for(int n=node; n!=0; n=parent[n]){
+            path[count++] = n;
+        }
+        return path;
+    }
+
+    /** Returns the number of live Cells descending from a founder.
+     * @param founder The id of a founder.
+     * @return The size of its clone.
+     */
+    public long cloneSize(int founder){
+        checkNode(founder);
+        if(parent[founder]!=0){
+            throw new IllegalArgumentException(founder + " is not a founder");
+        }
+        return clone[founder];
+    }
+
+    /** Returns the founders that still have live descendants.
+     * @return Their ids, largest clone first.
+     */
+    public int[] founders(){
+        flush();
+        int count = 0;
+        long[] sorted = new long[nodes];
+        for(int n=1; n<next; n++){
+            if(parent[n]==0){
+                // Sorting on the negated size puts the largest first.
+                sorted[count++] = (long) -clone[n] << 32 | n;
+            }
+        }
+        Arrays.sort(sorted, 0, count);
+        int[] result = new int[count];
+        for(int i=0; i<count; i++){
+            result[i] = (int) sorted[i];
+        }
+        return result;
+    }
+
+    /** Returns the most recent common ancestor of the live Cells.
+     * @return Its lineage id, or 0 if there are no live Cells or they
+     * descend from different founders.
+     */
+    public int mostRecentCommonAncestor(){
+        flush();
+        int ancestor = -1;
+        for(int n=1; n<next && ancestor!=0; n++){
+            if(parent[n]!=FREE && live[n]>0){
+                ancestor = ancestor<0 ? n : commonAncestor(ancestor, n);
+            }
+        }
+        return Math.max(ancestor, 0);
+    }
+
+    /** Returns the most recent common ancestor of nodes A and B, or 0 if they
+     * descend from different founders. As DEPTH decreases along every path
+     * to a founder, climbing from the deeper of the two never passes it.
+     */
+    private int commonAncestor(int a, int b){
+        while(a!=b){
+            if(a==0 || b==0){
+                return 0;
+            }
+            if(depth[a]>=depth[b]){
+                a = parent[a];
+            } else{
+                b = parent[b];
+            }
+        }
+        return a;
+    }
+
+    /** Returns the number of nodes of the genealogy.
+     * @return The nodes in use.
+     */
+    public int size(){
+        flush();
+        return nodes;
+    }
+
+    /** Checks that NODE is a lineage id in use.
+     * @throws IllegalArgumentException If it is not.
+     */
+    private void checkNode(int node){
+        flush();
+        if(node<1 || node>=next || parent[node]==FREE){
+            throw new IllegalArgumentException("No lineage " + node);
+        }
+    }
+}
@@ -0,0 +1,336 @@
+package antibioticresistancesimulation;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.lang.management.ManagementFactory;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/** The Metrics class counts what a colony does, so that a long run can be 
+ * watched from the outside through JMX (see MetricsMXBean). Every State has
+ * one, updated by updateState(), doseAntibio() and randomStart(); it is only
+ * visible to JMX clients once register() is called.
+ *
+ * Only the thread running the colony writes the counters, without any 
+ * locking: after each update it bumps VERSION with a release store, and the
+ * readers load VERSION with an acquire load first, so they see counters at 
+ * least as recent as that update. On x86 neither costs a fence, so recording
+ * a transition costs two calls to System.nanoTime() and a few additions, and
+ * the Metrics can stay on however small the colony.
+ * The Metrics class contains seven variables:
+ * (1) long ticks, long doses, long restarts: The number of transitions, doses
+ * and randomStart() calls since the last reset().
+ * (2) long births, long replacements, long doseDeaths, long fieldDeaths: The
+ * number of Cells born, replaced by a daughter Cell, killed by doses and 
+ * killed by the antibiotics spreading from a spot (see AntibioticField).
+ * (3) long live, double mean: The live Cells and their average GENEXP after
+ * the last transition or dose.
+ * (4) long[] latency: The number of transitions that took between 2^(B-1) 
+ * and 2^B nanoseconds, for each bucket B.
+ * (5) long totalNanos, long maxNanos, long lastNanos: The total, longest 
+ * and last time taken by a transition.
+ * (6) long windowStart, long windowTicks, double rate: The start of the 
+ * current one second window, the transitions in it, and the rate measured 
+ * over the previous window.
+ * (7) long version: The number of updates of the counters.
+ */
+
+public class Metrics implements MetricsMXBean {
+    /** The number of buckets of the latency histogram, the last one holding
+     * every transition of 2^(BUCKETS-2) nanoseconds (about four and a half 
+     * minutes) or more.
+     */
+    static final int BUCKETS = 40;
+    static final long WINDOW = 1_000_000_000L;
+    static final VarHandle VERSION;
+    static {
+        try{
+            VERSION = MethodHandles.lookup().findVarHandle(Metrics.class, "version", long.class);
+        } catch(ReflectiveOperationException ex){
+            throw new ExceptionInInitializerError(ex);
+        }
+    }
+
+    long ticks;
+    long doses;
+    long restarts;
+    long births;
+    long lastBirths;
+    long replacements;
+    long doseDeaths;
+    long lastDoseDeaths;
+    long fieldDeaths;
+    long live;
+    double mean;
+    final long[] latency = new long[BUCKETS];
+    long totalNanos;
+    long maxNanos;
+    long lastNanos;
+    long windowStart;
+    long windowTicks;
+    double rate;
+    long version;
+    volatile boolean resetRequested;
+
+    /** Registers these metrics with the platform MBean server, under the name
+     * antibioticresistancesimulation:type=Colony,name=NAME.
+     * @param name The name of the colony, e.g. "gui".
+     * @return The name the metrics were registered under.
+     * @throws JMException If the name is taken or invalid.
+     */
+    public ObjectName register(String name) throws JMException{
+        ObjectName objectName = new ObjectName("antibioticresistancesimulation:type=Colony,name="
+                + ObjectName.quote(name));
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        server.registerMBean(this, objectName);
+        return objectName;
+    }
+
+    /** Records COUNT transitions performed together, e.g. by advance(). 
+     * Each of them is taken to have taken an equal share of the time, and 
+     * the last of them to have given birth to all the Cells.
+     * @param count The number of transitions.
+     * @param nanos The time they took.
+     * @param born The number of Cells born.
+     * @param replaced The number of Cells replaced by a daughter Cell.
+     * @param killed The number of Cells killed by the antibiotics spreading
+     * from a spot after the transitions.
+     * @param statistics The statistics of the colony after the transitions.
+     */
+    void tick(long count, long nanos, long born, long replaced, long killed, 
+            ColonyStatistics statistics){
+        clearIfRequested();
+        births += born;
+        lastBirths = born;
+        replacements += replaced;
+        fieldDeaths += killed;
+        live = statistics.getLive();
+        mean = statistics.getMean();
+        long each = nanos/count;
+        latency[Math.min(64 - Long.numberOfLeadingZeros(each), BUCKETS-1)] += count;
+        totalNanos += nanos;
+        lastNanos = each;
+        if(each>maxNanos){
+            maxNanos = each;
+        }
+        long now = System.nanoTime();
+        windowTicks += count;
+        if(now - windowStart >= WINDOW){
+            rate = windowStart==0 ? 0 : windowTicks*1e9/(now - windowStart);
+            windowStart = now;
+            windowTicks = 0;
+        }
+        ticks += count;
+        publish();
+    }
+
+    /** Records a dose.
+     * @param killed The number of Cells it killed.
+     * @param statistics The statistics of the colony after the dose.
+     */
+    void dose(long killed, ColonyStatistics statistics){
+        clearIfRequested();
+        doseDeaths += killed;
+        lastDoseDeaths = killed;
+        live = statistics.getLive();
+        mean = statistics.getMean();
+        doses++;
+        publish();
+    }
+
+    /** Records a randomStart(). */
+    void restart(ColonyStatistics statistics){
+        clearIfRequested();
+        restarts++;
+        live = statistics.getLive();
+        mean = statistics.getMean();
+        publish();
+    }
+
+    /** Applies a reset() requested by another thread, so that the counters 
+     * are only ever written by the thread running the colony.
+     */
+    private void clearIfRequested(){
+        if(!resetRequested){
+            return;
+        }
+        resetRequested = false;
+        restarts = 0;
+        births = 0;
+        lastBirths = 0;
+        replacements = 0;
+        doseDeaths = 0;
+        lastDoseDeaths = 0;
+        fieldDeaths = 0;
+        for(int b=0; b<BUCKETS; b++){
+            latency[b] = 0;
+        }
+        totalNanos = 0;
+        maxNanos = 0;
+        lastNanos = 0;
+        doses = 0;
+        ticks = 0;
+        windowStart = 0;
+        windowTicks = 0;
+        rate = 0;
+    }
+
+    private void publish(){
+        VERSION.setRelease(this, version + 1);
+    }
+
+    /** Makes the counters as of the last update visible to the calling 
+     * thread.
+     */
+    private void acquire(){
+        VERSION.getAcquire(this);
+    }
+
+    @Override
+    public void reset(){
+        resetRequested = true;
+    }
+
+    @Override
+    public long getTicks(){
+        acquire();
+        return ticks;
+    }
+
+    @Override
+    public double getTicksPerSecond(){
+        acquire();
+        return windowStart==0 || System.nanoTime() - windowStart > 2*WINDOW ? 0 : rate;
+    }
+
+    @Override
+    public long getLiveCells(){
+        acquire();
+        return live;
+    }
+
+    @Override
+    public double getMeanGenexp(){
+        acquire();
+        return mean;
+    }
+
+    @Override
+    public long getBirths(){
+        acquire();
+        return births;
+    }
+
+    @Override
+    public long getLastTickBirths(){
+        acquire();
+        return lastBirths;
+    }
+
+    @Override
+    public long getReplacements(){
+        acquire();
+        return replacements;
+    }
+
+    @Override
+    public long getDoses(){
+        acquire();
+        return doses;
+    }
+
+    @Override
+    public long getDoseDeaths(){
+        acquire();
+        return doseDeaths;
+    }
+
+    @Override
+    public long getLastDoseDeaths(){
+        acquire();
+        return lastDoseDeaths;
+    }
+
+    @Override
+    public long getFieldDeaths(){
+        acquire();
+        return fieldDeaths;
+    }
+
+    @Override
+    public long getRestarts(){
+        acquire();
+        return restarts;
+    }
+
+    @Override
+    public long getLastTickNanos(){
+        acquire();
+        return lastNanos;
+    }
+
+    @Override
+    public long getMaxTickNanos(){
+        acquire();
+        return maxNanos;
+    }
+
+    @Override
+    public double getMeanTickNanos(){
+        acquire();
+        return ticks==0 ? 0 : (double) totalNanos/ticks;
+    }
+
+    @Override
+    public long getTickNanosP50(){
+        return percentile(0.50);
+    }
+
+    @Override
+    public long getTickNanosP99(){
+        return percentile(0.99);
+    }
+
+    /** Estimates a percentile of the latency as the upper bound of the bucket
+     * holding it.
+     * @param fraction The percentile, between 0 and 1.
+     * @return The estimate, or 0 if there was no transition.
+     */
+    long percentile(double fraction){
+        long[] counts = getTickLatencyHistogram();
+        long total = 0;
+        for(long c : counts){
+            total += c;
+        }
+        long rank = (long) Math.ceil(fraction*total);
+        long seen = 0;
+        for(int b=0; b<BUCKETS; b++){
+            seen += counts[b];
+            if(seen>=rank && seen>0){
+                return bound(b);
+            }
+        }
+        return 0;
+    }
+
+    @Override
+    public long[] getTickLatencyHistogram(){
+        acquire();
+        return latency.clone();
+    }
+
+    @Override
+    public long[] getTickLatencyBounds(){
+        long[] bounds = new long[BUCKETS];
+        for(int b=0; b<BUCKETS; b++){
+            bounds[b] = bound(b);
+        }
+        return bounds;
+    }
+
+    /** Returns the upper bound of bucket B, or Long.MAX_VALUE for the last. */
+    static long bound(int b){
+        return b==BUCKETS-1 ? Long.MAX_VALUE : 1L << b;
+    }
+}
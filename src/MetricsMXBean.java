@@ -0,0 +1,76 @@
+package antibioticresistancesimulation;
+
+/** The MetricsMXBean interface is the management interface of the Metrics of
+ * a colony, as shown by JMX clients such as JConsole or VisualVM. Times are 
+ * in nanoseconds unless the name says otherwise.
+ */
+
+public interface MetricsMXBean {
+    /** Returns the number of transitions since the last reset(). */
+    long getTicks();
+
+    /** Returns the number of transitions during the last full second, or 0
+     * if the colony was not updated for more than a second. */
+    double getTicksPerSecond();
+
+    /** Returns the number of live Cells after the last transition or dose. */
+    long getLiveCells();
+
+    /** Returns the average GENEXP after the last transition or dose. */
+    double getMeanGenexp();
+
+    /** Returns the number of Cells born since the last reset(). */
+    long getBirths();
+
+    /** Returns the number of Cells born during the last transition. */
+    long getLastTickBirths();
+
+    /** Returns the number of Cells replaced by a daughter Cell since the last
+     * reset(). */
+    long getReplacements();
+
+    /** Returns the number of doses since the last reset(). */
+    long getDoses();
+
+    /** Returns the number of Cells killed by doses since the last reset(). */
+    long getDoseDeaths();
+
+    /** Returns the number of Cells killed by the last dose. */
+    long getLastDoseDeaths();
+
+    /** Returns the number of Cells killed by antibiotics spreading from a
+     * spot since the last reset(). */
+    long getFieldDeaths();
+
+    /** Returns the number of randomStart() calls since the last reset(). */
+    long getRestarts();
+
+    /** Returns the time taken by the last transition. */
+    long getLastTickNanos();
+
+    /** Returns the longest time taken by a transition since the last reset().
+     */
+    long getMaxTickNanos();
+
+    /** Returns the average time taken by a transition since the last 
+     * reset(). */
+    double getMeanTickNanos();
+
+    /** Returns an estimate of the median time taken by a transition. */
+    long getTickNanosP50();
+
+    /** Returns an estimate of the 99th percentile of the time taken by a 
+     * transition. */
+    long getTickNanosP99();
+
+    /** Returns the number of transitions that took less than each of the 
+     * bounds of getTickLatencyBounds(), and at least the previous bound. */
+    long[] getTickLatencyHistogram();
+
+    /** Returns the upper bounds of the buckets of getTickLatencyHistogram(),
+     * doubling from one bucket to the next. */
+    long[] getTickLatencyBounds();
+
+    /** Forgets all the counters and the latency histogram. */
+    void reset();
+}
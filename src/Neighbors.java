@@ -0,0 +1,105 @@
+package antibioticresistancesimulation;
+
+/** The Neighbors class holds precomputed tables used to choose a random
+ * neighbor of a position without a chain of edge and corner branches.
+ *
+ * Every position falls into one of the boundary classes given by the set of
+ * directions that stay inside the grid, stored as a bit mask with bit UP,
+ * DOWN, LEFT and RIGHT (e.g. 15 for an interior position, 10 for the top
+ * left corner). For each class, COUNTS holds the number of neighbors and
+ * OFFSETS the distance from the position to each neighbor in the flat arrays
+ * of the grid, so that a neighbor is found by a single table lookup:
+ * index + OFFSETS[valid<<2 | choice].
+ */
+
+public class Neighbors {
+    // The four directions a daughter Cell can be placed in.
+    static final int UP = 0;
+    static final int DOWN = 1;
+    static final int LEFT = 2;
+    static final int RIGHT = 3;
+
+    // The change of row and column when moving in each direction.
+    static final int[] ROW_STEPS = {-1, 1, 0, 0};
+    static final int[] COL_STEPS = {0, 0, -1, 1};
+
+    // For each boundary class, the number of neighbors and the direction of
+    // each of them.
+    static final int[] COUNTS = new int[16];
+    static final int[] DIRECTIONS = new int[64];
+    static {
+        for(int valid=0; valid<16; valid++){
+            for(int d=0; d<4; d++){
+                if((valid & 1<<d)!=0){
+                    DIRECTIONS[valid<<2 | COUNTS[valid]++] = d;
+                }
+            }
+        }
+    }
+
+    final int width;
+    final int height;
+    final int[] offsets = new int[64];
+
+    public Neighbors(int width, int height){
+        this.width = width;
+        this.height = height;
+        int[] delta = {-width, width, -1, 1};
+        for(int i=0; i<64; i++){
+            offsets[i] = delta[DIRECTIONS[i]];
+        }
+    }
+
+    /** Returns the boundary class of the rows of the grid: the directions 
+     * that stay inside the grid when moving up or down from ROW.
+     * @param row Row index of the position
+     * @return A bit mask of UP and DOWN.
+     */
+    int rowClass(int row){
+        return (row>0 ? 1<<UP : 0) | (row<height-1 ? 1<<DOWN : 0);
+    }
+
+    /** Returns the boundary class of the columns of the grid: the directions
+     * that stay inside the grid when moving left or right from COL.
+     * @param col Col index of the position
+     * @return A bit mask of LEFT and RIGHT.
+     */
+    int colClass(int col){
+        return (col>0 ? 1<<LEFT : 0) | (col<width-1 ? 1<<RIGHT : 0);
+    }
+
+    /** Returns the boundary class of position ROW, COL.
+     * @param row Row index of the position
+     * @param col Col index of the position
+     * @return The bit mask of directions staying inside the grid.
+     */
+    public int boundaryClass(int row, int col){
+        return rowClass(row) | colClass(col);
+    }
+
+    /** Returns the number of neighbors of a position of boundary class VALID.
+     * @param valid The boundary class of the position.
+     * @return 2 for corners, 3 for edges and 4 for interior positions.
+     */
+    public static int count(int valid){
+        return COUNTS[valid];
+    }
+
+    /** Returns the index of neighbor CHOICE of the position at INDEX.
+     * @param index The index of the position.
+     * @param valid The boundary class of the position.
+     * @param choice A number between 0 and count(valid)-1.
+     * @return The index of the neighbor.
+     */
+    public int neighbor(int index, int valid, int choice){
+        return index + offsets[valid<<2 | choice];
+    }
+
+    /** Returns the direction of neighbor CHOICE of a position of boundary
+     * class VALID.
+     * @return One of UP, DOWN, LEFT or RIGHT.
+     */
+    static int direction(int valid, int choice){
+        return DIRECTIONS[valid<<2 | choice];
+    }
+}
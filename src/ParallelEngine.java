@@ -0,0 +1,657 @@
+package antibioticresistancesimulation;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.Consumer;
+
+/** The ParallelEngine class updates the state of a Grid on several cores at
+ * once. The grid is split into tiles of TILE_HEIGHT x TILE_WIDTH positions 
+ * that are processed by the tasks of a ForkJoinPool. The tiles are wide, so
+ * that the inner loop runs along long stretches of a row.
+ *
+ * Unlike the sequential scan in State.updateState(), the result of a
+ * transition does not depend on the order the positions are visited in.
+ * Every live Cell proposes to place its daughter Cell into one of its 
+ * neighbors, and every position then resolves the proposals made into it:
+ * if there are any, the proposal with the highest priority wins and the 
+ * daughter Cell replaces whatever was there. Otherwise a live Cell is relayed
+ * to the next state as it is, one step older. 
+ *
+ * All random decisions are derived from the seed, the transition number and
+ * the index of the deciding Cell with mix(). This makes a proposal a pure 
+ * function of the proposing Cell, so a position can work out the proposals of
+ * its neighbors by itself and each transition is a single pass writing only
+ * the position being resolved. A given seed therefore produces the same 
+ * colony regardless of the number of threads or the tiling. Doses of 
+ * antibiotics are applied the same way, tile by tile, with the survival of
+ * each Cell derived from the seed, the number of the dose and its index.
+ * 
+ * Each tile records the Cells it replaces, spawns and kills in its own 
+ * ColonyStatistics, and the changes of all the tiles are merged into the 
+ * statistics of the colony once every tile is done.
+ * 
+ * While the births and deaths of the Cells are recorded (see record()), the
+ * tiles and bands are run STAGED per thread at a time, each recording them
+ * into a CellEvents.Buffer of its own, and the Buffers are handed to the 
+ * State in the order of the tiles and bands before the next ones are run, so
+ * that only a few of them are ever held. advance() then performs one 
+ * transition per pass, and works out the parents of the daughter Cells from
+ * the proposals the Kernels resolved the row from.
+ * 
+ * If a FRONTIER is set, the tiles that neither hold live Cells nor border a 
+ * tile holding any are skipped, as their next state is known to be empty.
+ * 
+ * advance() fuses several transitions into one pass over the grid. The grid 
+ * is split into bands of rows, and each band is run through up to DEPTH 
+ * transitions in buffers small enough to stay in the cache, together with 
+ * the DEPTH rows above and below it that its Cells can be reached from in 
+ * that many transitions. The rows shared with the neighboring bands are 
+ * worked out twice, but the grid itself is only read and written once per 
+ * DEPTH transitions. Within a band, the proposal of every Cell is worked 
+ * out once per transition, a whole row at a time by the Kernels, instead of 
+ * once by each of its neighbors.
+ * 
+ * An engine can also update just a strip of a larger colony, e.g. for a 
+ * StripWorker: the grid then holds ROWS rows of the colony starting at its
+ * row FIRSTROW, plus the rows bordering them, which the caller keeps up to
+ * date. Rows and indices are translated to those of the whole colony before
+ * any random decision, so the strip evolves exactly as the same rows of the
+ * whole colony would.
+ */
+
+public class ParallelEngine {
+    /** The height and width of a tile, in positions. */
+    static final int TILE_HEIGHT = 64;
+    static final int TILE_WIDTH = 1024;
+
+    // Salts separating the random streams of the different decisions.
+    static final long NEIGHBOR_STREAM = 0x6E6569676862L;
+    static final long MUTATION_STREAM = 0x6D7574617465L;
+    static final long DOSE_STREAM = 0x646F7365L;
+
+    /** The most transitions advance() fuses into one pass over the grid. */
+    static final int DEPTH = 8;
+    /** The size of the buffers a band of advance() is run in, in bytes. */
+    static final int BAND_BYTES = 1 << 18;
+    /** The number of tiles or bands per thread run at once while the events
+     * are recorded. */
+    static final int STAGED = 2;
+    /** The buffers of each thread, shared by all the engines the thread runs
+     * tasks of, so that they cost one band per thread rather than one per 
+     * engine and thread, and do not outlive the thread. */
+    static final ThreadLocal<Band> BANDS = ThreadLocal.withInitial(Band::new);
+
+    final Grid grid;
+    final Neighbors neighbors;
+    final ForkJoinPool pool;
+    final ColonyStatistics statistics;
+    final ColonyStatistics[] tileStatistics;
+    final int tileRows;
+    final int tileCols;
+    final int firstRow;
+    final int rows;
+    final int rowOffset;
+    final int colonyHeight;
+    final int bandHeight;
+    final ColonyStatistics[] bandStatistics;
+    Frontier frontier;
+    boolean tracking;
+    boolean recording;
+    Consumer<CellEvents.Buffer> published;
+    CellEvents.Buffer[] staged;
+    int stagedFrom;
+    int mutationStep = 1;
+    long seed;
+    long tick;
+    char doseType;
+
+    public ParallelEngine(Grid grid, ForkJoinPool pool, ColonyStatistics statistics){
+        this(grid, 0, grid.height, 0, grid.height, pool, statistics);
+    }
+
+    /** Creates an engine updating rows FIRSTROW to FIRSTROW+ROWS-1 of GRID,
+     * which are rows FIRSTROW+ROWOFFSET onwards of a colony of COLONYHEIGHT 
+     * rows and the width of GRID. The Frontier cannot be used with a strip.
+     */
+    public ParallelEngine(Grid grid, int firstRow, int rows, int rowOffset, int colonyHeight, 
+            ForkJoinPool pool, ColonyStatistics statistics){
+        this.grid = grid;
+        this.pool = pool;
+        this.statistics = statistics;
+        this.firstRow = firstRow;
+        this.rows = rows;
+        this.rowOffset = rowOffset;
+        this.colonyHeight = colonyHeight;
+        neighbors = new Neighbors(grid.width, colonyHeight);
+        tileRows = (rows + TILE_HEIGHT - 1) / TILE_HEIGHT;
+        tileCols = (grid.width + TILE_WIDTH - 1) / TILE_WIDTH;
+        tileStatistics = new ColonyStatistics[tileRows*tileCols];
+        for(int t=0; t<tileStatistics.length; t++){
+            tileStatistics[t] = new ColonyStatistics();
+        }
+        bandHeight = Math.min(rows, Math.max(4*DEPTH, BAND_BYTES/grid.width - 2*DEPTH));
+        bandStatistics = new ColonyStatistics[(rows + bandHeight - 1) / bandHeight];
+        for(int b=0; b<bandStatistics.length; b++){
+            bandStatistics[b] = new ColonyStatistics();
+        }
+    }
+
+    /** Performs one transition of the colony using the tasks of POOL.
+     * @param seed The seed of the random decisions.
+     * @param tick The number of the transition.
+     */
+    public void updateState(long seed, long tick){
+        this.seed = seed;
+        this.tick = tick;
+        doseType = 0;
+        tracking = frontier!=null && !frontier.isSaturated();
+        runTiles();
+        grid.swap();
+        if(tracking){
+            frontier.swap();
+        }
+        mergeStatistics();
+    }
+
+    /** Performs COUNT transitions of the colony using the tasks of POOL, 
+     * fusing up to DEPTH of them into each pass over the grid. The colony 
+     * ends up exactly as after COUNT calls of updateState(). While the 
+     * Frontier is tracking a small colony, or for a strip, the transitions 
+     * are performed one at a time instead, and while the events of the Cells
+     * are recorded, each pass performs only one.
+     * @param seed The seed of the random decisions.
+     * @param tick The number of the first transition.
+     * @param count The number of transitions.
+     */
+    public void advance(long seed, long tick, long count){
+        boolean whole = firstRow==0 && rows==grid.height && rowOffset==0;
+        while(count>0){
+            if(!whole || (frontier!=null && !frontier.isSaturated())){
+                updateState(seed, tick++);
+                count--;
+                continue;
+            }
+            this.seed = seed;
+            this.tick = tick;
+            doseType = 0;
+            tracking = false;
+            int depth = recording ? 1 : (int) Math.min(count, DEPTH);
+            runBands(depth);
+            grid.swap();
+            for(ColonyStatistics delta : bandStatistics){
+                statistics.merge(delta);
+            }
+            tick += depth;
+            count -= depth;
+        }
+    }
+
+    /** Doses the colony with an antibiotic solution of type TYPE using the
+     * tasks of POOL.
+     * @param type Type of antibiotic solution used. 
+     * @param seed The seed of the random decisions.
+     * @param dose The number of the dose.
+     */
+    public void doseAntibio(char type, long seed, long dose){
+        this.seed = seed;
+        this.tick = dose;
+        doseType = type;
+        tracking = frontier!=null && !frontier.isSaturated();
+        runTiles();
+        mergeStatistics();
+        if(frontier!=null && !tracking){
+            // The dose may have thinned the colony out enough to track it
+            // again.
+            frontier.rebuild();
+        }
+    }
+
+    /** Sets whether the tiles and bands record the births and deaths of the
+     * Cells, into the Buffers of STAGED, which are created the first time 
+     * they are. advance() only fuses transitions while they are not recorded.
+     * @param published What the Buffers are handed to, in the order of the
+     * tiles and bands, which must empty them; null to stop recording.
+     */
+    void record(Consumer<CellEvents.Buffer> published){
+        this.published = published;
+        recording = published!=null;
+        if(recording && staged==null){
+            staged = new CellEvents.Buffer[STAGED*pool.getParallelism()];
+            for(int s=0; s<staged.length; s++){
+                staged[s] = new CellEvents.Buffer();
+            }
+        }
+    }
+
+    /** Runs the TileTasks of every tile, a few at a time while the events
+     * are recorded. */
+    private void runTiles(){
+        int count = tileRows*tileCols;
+        if(!recording){
+            pool.invoke(new TileTask(0, count));
+            return;
+        }
+        for(int from=0; from<count; from+=staged.length){
+            int to = Math.min(from + staged.length, count);
+            stagedFrom = from;
+            pool.invoke(new TileTask(from, to));
+            publishStaged(to - from);
+        }
+    }
+
+    /** Runs the BandTasks of every band through DEPTH transitions, a few at
+     * a time while the events are recorded. */
+    private void runBands(int depth){
+        int count = bandStatistics.length;
+        if(!recording){
+            pool.invoke(new BandTask(0, count, depth));
+            return;
+        }
+        for(int from=0; from<count; from+=staged.length){
+            int to = Math.min(from + staged.length, count);
+            stagedFrom = from;
+            pool.invoke(new BandTask(from, to, depth));
+            publishStaged(to - from);
+        }
+    }
+
+    /** Hands the first COUNT Buffers of STAGED to PUBLISHED. */
+    private void publishStaged(int count){
+        for(int s=0; s<count; s++){
+            published.accept(staged[s]);
+        }
+    }
+
+    /** Adds the changes recorded by every tile to the statistics of the 
+     * colony.
+     */
+    private void mergeStatistics(){
+        for(ColonyStatistics delta : tileStatistics){
+            statistics.merge(delta);
+        }
+    }
+
+    /** Chooses the neighbor the daughter of the live Cell at ROW, COL 
+     * (index K) is placed into, picking uniformly among the neighbors that are
+     * inside the grid. ROW and K are those of the whole colony.
+     * @return The proposal of the Cell: the lowest two bits hold the direction
+     * (UP, DOWN, LEFT or RIGHT) and the remaining bits a random priority.
+     */
+    int propose(long k, int row, int col){
+        int valid = neighbors.boundaryClass(row, col);
+        long random = mix(seed, tick, k, NEIGHBOR_STREAM);
+        return ((int) random & ~3) 
+                | Neighbors.direction(valid, pick(random, Neighbors.count(valid)));
+    }
+
+    /** Resolves the daughter Cells proposed into columns FROM to TO of ROW,
+     * and writes the next state of those positions. The Cells spawned and 
+     * replaced are recorded in STATS, and in RECORDED if it is not null.
+     * @return True if any of the positions holds a live Cell in the next 
+     * state.
+     */
+    boolean resolve(int row, int from, int to, ColonyStatistics stats, 
+            CellEvents.Buffer recorded){
+        byte[] level = grid.level;
+        byte[] nextLevel = grid.nextLevel;
+        int width = grid.width;
+
+        int live = 0;
+        int colonyRow = row + rowOffset;
+        long offset = (long) rowOffset*width;
+        boolean top = colonyRow==0;
+        boolean bottom = colonyRow==colonyHeight-1;
+
+        for(int j=from; j<to; j++){
+            int k = row*width + j;
+            long g = k + offset;
+            int parent = -1;
+            int best = Integer.MIN_VALUE;
+            int p;
+
+            int up = top ? 0 : level[k-width];
+            int down = bottom ? 0 : level[k+width];
+            int left = j==0 ? 0 : level[k-1];
+            int right = j==width-1 ? 0 : level[k+1];
+
+            // Find the neighbor with the highest priority that placed its
+            // daughter Cell into this position. Positions without any live
+            // neighbor, the bulk of a sparse colony, skip this entirely.
+            if((up | down | left | right)!=0){
+                if(up!=0){
+                    p = propose(g-width, colonyRow-1, j);
+                    if((p & 3)==Neighbors.DOWN){
+                        parent = k-width;
+                        best = p;
+                    }
+                }
+                if(down!=0){
+                    p = propose(g+width, colonyRow+1, j);
+                    if((p & 3)==Neighbors.UP && (parent<0 || p>best)){
+                        parent = k+width;
+                        best = p;
+                    }
+                }
+                if(left!=0){
+                    p = propose(g-1, colonyRow, j-1);
+                    if((p & 3)==Neighbors.RIGHT && (parent<0 || p>best)){
+                        parent = k-1;
+                        best = p;
+                    }
+                }
+                if(right!=0){
+                    p = propose(g+1, colonyRow, j+1);
+                    if((p & 3)==Neighbors.LEFT && (parent<0 || p>best)){
+                        parent = k+1;
+                    }
+                }
+            }
+
+            if(parent>=0){
+                int daughter = State.mutate(level[parent],
+                        pick(mix(seed, tick, parent + offset, MUTATION_STREAM), 3), mutationStep);
+                if(recorded!=null){
+                    // The direction the parent placed its daughter Cell in.
+                    int d = parent==k-width ? Neighbors.DOWN : parent==k+width ? Neighbors.UP 
+                            : parent==k-1 ? Neighbors.RIGHT : Neighbors.LEFT;
+                    recorded.add(CellEvents.birth(g, d, level[parent], daughter, level[k]));
+                }
+                if(level[k]!=0){
+                    stats.remove(level[k]);
+                }
+                stats.add(daughter);
+                nextLevel[k] = (byte) daughter;
+            } else{
+                // A live Cell is relayed as it is, an empty position stays 
+                // empty.
+                nextLevel[k] = level[k];
+            }
+            live |= nextLevel[k];
+        }
+        return live!=0;
+    }
+
+    /** Applies a dose of type DOSETYPE to columns FROM to TO of ROW, and 
+     * counts the killed Cells in KILLED, and records them in RECORDED if it is
+     * not null. A Cell is killed if its random number is above the threshold
+     * of its level. The random numbers of the
+     * whole row are generated at once by the Kernels into DRAWS.
+     */
+    void dose(int row, int from, int to, long[] draws, long[] killed, 
+            CellEvents.Buffer recorded){
+        int first = row*grid.width + from;
+        long offset = (long) rowOffset*grid.width;
+        Kernels.get().positionMix(seed, tick, first + offset, DOSE_STREAM, draws, to - from);
+        if(recorded!=null){
+            recorded.snapshot(grid.level, first, first + to - from);
+        }
+        Kernels.killAll(grid.level, first, first + to - from, State.thresholdsOf(doseType), 
+                draws, killed);
+        if(recorded!=null){
+            recorded.addDeaths(grid.level, first, first + to - from, offset, doseType, false);
+        }
+    }
+
+    /** Runs band BAND of the colony through DEPTH transitions, starting at 
+     * transition TICK, in the buffers of SCRATCH, and writes the next state 
+     * of its rows. Transition g works out the rows that are at most DEPTH-g
+     * rows away from the band, as only those are still known after it.
+     */
+    void advanceBand(int band, int depth, Band scratch){
+        int width = grid.width;
+        int height = grid.height;
+        int start = band*bandHeight;
+        int end = Math.min(start + bandHeight, height);
+        int lo = Math.max(start - depth, 0);
+        int hi = Math.min(end + depth, height);
+        scratch.ensure(hi - lo, width);
+        System.arraycopy(grid.level, lo*width, scratch.level, 0, (hi-lo)*width);
+        long[] counts = scratch.counts;
+        count(grid.level, start*width, end*width, counts, -1);
+
+        byte[] from = scratch.level;
+        byte[] to = scratch.nextLevel;
+        CellEvents.Buffer recorded = recording ? staged[band - stagedFrom] : null;
+        for(int g=1; g<=depth; g++){
+            long t = tick + g - 1;
+            int rowFrom = Math.max(start - (depth-g), 0);
+            int rowTo = Math.min(end + (depth-g), height);
+            if(rowFrom>0){
+                proposeRow(from, rowFrom-1, lo, t, scratch);
+            }
+            proposeRow(from, rowFrom, lo, t, scratch);
+            for(int r=rowFrom; r<rowTo; r++){
+                if(r+1<height){
+                    proposeRow(from, r+1, lo, t, scratch);
+                }
+                Kernels.get().resolve(from, to, (r-lo)*width, width, r==0, r==height-1, 
+                        scratch.proposals[(r+2) % 3], scratch.proposals[r % 3], 
+                        scratch.proposals[(r+1) % 3], 
+                        seed, t, (long) r*width, mutationStep, 
+                        r>=start && r<end ? scratch.changes : scratch.discarded, 0, width);
+                if(recorded!=null){
+                    recordRow(from, to, (r-lo)*width, r, scratch.proposals[(r+2) % 3], 
+                            scratch.proposals[r % 3], scratch.proposals[(r+1) % 3], recorded);
+                }
+            }
+            byte[] swap = from;
+            from = to;
+            to = swap;
+        }
+        System.arraycopy(from, (start-lo)*width, grid.nextLevel, start*width, (end-start)*width);
+
+        // The Cells of the band are counted before and after, rather than 
+        // as they change.
+        count(grid.nextLevel, start*width, end*width, counts, 1);
+        bandStatistics[band].change(counts, scratch.changes[0], scratch.changes[1]);
+        Arrays.fill(counts, 0);
+        Arrays.fill(scratch.changes, 0);
+    }
+
+    /** Records the daughter Cells placed into ROW of the colony, held at
+     * BASE in LEVEL and NEXTLEVEL, by the transition the Kernels just 
+     * resolved it for, from the same proposals: the valid proposal with the
+     * highest priority won, and its direction tells where its parent is.
+     */
+    private void recordRow(byte[] level, byte[] nextLevel, int base, int row, int[] above, 
+            int[] proposals, int[] below, CellEvents.Buffer recorded){
+        int width = grid.width;
+        boolean top = row==0;
+        boolean bottom = row==grid.height-1;
+        long first = (long) row*width;
+        for(int j=0; j<width; j++){
+            int k = base + j;
+            int up = top ? 0 : level[k-width];
+            int down = bottom ? 0 : level[k+width];
+            int left = j==0 ? 0 : level[k-1];
+            int right = j==width-1 ? 0 : level[k+1];
+            if((up | down | left | right)==0){
+                continue;
+            }
+            int fromLeft = proposals[Math.max(j-1, 0)];
+            int fromRight = proposals[Math.min(j+1, width-1)];
+            int validUp = Kernels.valid(up, above[j], Neighbors.DOWN);
+            int validDown = Kernels.valid(down, below[j], Neighbors.UP);
+            int validLeft = Kernels.valid(left, fromLeft, Neighbors.RIGHT);
+            int validRight = Kernels.valid(right, fromRight, Neighbors.LEFT);
+            if((validUp | validDown | validLeft | validRight)==0){
+                continue;
+            }
+            int best = Math.max(
+                    Math.max(Kernels.rank(validUp, above[j]), Kernels.rank(validDown, below[j])),
+                    Math.max(Kernels.rank(validLeft, fromLeft), Kernels.rank(validRight, fromRight)));
+            int direction = best & 3;
+            int parent = direction==Neighbors.DOWN ? k-width : direction==Neighbors.UP ? k+width 
+                    : direction==Neighbors.RIGHT ? k-1 : k+1;
+            recorded.add(CellEvents.birth(first + j, direction, level[parent], nextLevel[k], level[k]));
+        }
+    }
+
+    /** Adds SIGN times the number of positions of each level among 
+     * positions FROM to TO-1 of LEVEL to COUNTS.
+     */
+    private static void count(byte[] level, int from, int to, long[] counts, int sign){
+        for(int k=from; k<to; k++){
+            counts[level[k]] += sign;
+        }
+    }
+
+    /** Works out the proposals of the Cells of ROW of the colony, held in
+     * row ROW-LO of LEVEL, for transition TICK. Rows without live Cells are
+     * skipped, as their proposals are never looked at.
+     */
+    private void proposeRow(byte[] level, int row, int lo, long tick, Band scratch){
+        int width = grid.width;
+        int base = (row-lo)*width;
+        if(Arrays.mismatch(level, base, base + width, scratch.empty, 0, width)<0){
+            return;
+        }
+        long[] draws = scratch.draws;
+        int[] proposals = scratch.proposals[row % 3];
+        Kernels.get().positionMix(seed, tick, (long) row*width, NEIGHBOR_STREAM, draws, width);
+        // All the Cells between the first and last column have the same 
+        // neighbors inside the grid.
+        int inner = neighbors.boundaryClass(row, Math.min(1, width-1));
+        int count = Neighbors.count(inner);
+        for(int j=1; j<width-1; j++){
+            long random = draws[j];
+            proposals[j] = ((int) random & ~3) | Neighbors.direction(inner, pick(random, count));
+        }
+        for(int j=0; j<width; j+=Math.max(width-1, 1)){
+            int valid = neighbors.boundaryClass(row, j);
+            long random = draws[j];
+            proposals[j] = ((int) random & ~3) 
+                    | Neighbors.direction(valid, pick(random, Neighbors.count(valid)));
+        }
+    }
+
+    /** Maps a random 64-bit value onto an integer between 0 and BOUND-1.
+     */
+    static int pick(long random, int bound){
+        return (int)(((random >>> 32) * bound) >>> 32);
+    }
+
+    /** Derives a random 64-bit value from the seed, the transition number, the
+     * index of a position and the decision being made, using the SplitMix64
+     * finalizer.
+     */
+    static long mix(long seed, long tick, long index, long stream){
+        return SplitMix64.mix(seed + SplitMix64.GAMMA * (tick + 1)
+                + 0xBF58476D1CE4E5B9L * index + stream);
+    }
+
+    /** A task running the bands FROM to TO through DEPTH transitions, 
+     * splitting itself in half until a single band is left.
+     */
+    private class BandTask extends RecursiveAction {
+        final int from;
+        final int to;
+        final int depth;
+
+        BandTask(int from, int to, int depth){
+            this.from = from;
+            this.to = to;
+            this.depth = depth;
+        }
+
+        @Override
+        protected void compute(){
+            if(to-from > 1){
+                int mid = (from + to) >>> 1;
+                invokeAll(new BandTask(from, mid, depth), new BandTask(mid, to, depth));
+                return;
+            }
+            advanceBand(from, depth, BANDS.get());
+        }
+    }
+
+    /** The buffers a thread runs the bands of advance() in: a band with its
+     * surrounding rows, before and after each transition, and the proposals
+     * of three consecutive rows, indexed by row modulo 3. The TileTasks of a
+     * dose reuse DRAWS and KILLED. The buffers grow to the largest band of 
+     * the engines the thread runs, and the counts read are back to 0 once a 
+     * band or tile is done, so that the next one can be of any engine.
+     */
+    static class Band {
+        byte[] level = new byte[0];
+        byte[] nextLevel = new byte[0];
+        byte[] empty = new byte[0];
+        int[][] proposals = new int[3][0];
+        long[] draws = new long[0];
+        final long[] counts = new long[Grid.LEVELS+1];
+        final long[] killed = new long[Grid.LEVELS+1];
+        // The births and replacements in the rows of the band, and in the
+        // rows around it, which are counted by their own band.
+        final long[] changes = new long[2];
+        final long[] discarded = new long[2];
+
+        void ensure(int rows, int width){
+            if(level.length < rows*width){
+                level = new byte[rows*width];
+                nextLevel = new byte[rows*width];
+            }
+            if(draws.length < width){
+                empty = new byte[width];
+                proposals = new int[3][width];
+                draws = new long[width];
+            }
+        }
+    }
+
+    /** A task resolving (or dosing, if DOSETYPE is set) the tiles FROM to 
+     * TO, splitting itself in half until only a few tiles are left. Each tile
+     * records its events into its own Buffer of STAGED.
+     */
+    private class TileTask extends RecursiveAction {
+        final int from;
+        final int to;
+
+        TileTask(int from, int to){
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute(){
+            if(to-from > 2){
+                int mid = (from + to) >>> 1;
+                invokeAll(new TileTask(from, mid), new TileTask(mid, to));
+                return;
+            }
+            long[] draws = null;
+            long[] killed = null;
+            if(doseType!=0){
+                Band scratch = BANDS.get();
+                scratch.ensure(0, Math.min(TILE_WIDTH, grid.width));
+                draws = scratch.draws;
+                killed = scratch.killed;
+            }
+            for(int t=from; t<to; t++){
+                int rowStart = firstRow + (t / tileCols) * TILE_HEIGHT;
+                int colStart = (t % tileCols) * TILE_WIDTH;
+                int rowEnd = Math.min(rowStart + TILE_HEIGHT, firstRow + rows);
+                int colEnd = Math.min(colStart + TILE_WIDTH, grid.width);
+                CellEvents.Buffer recorded = recording ? staged[t - stagedFrom] : null;
+                if(doseType==0){
+                    if(tracking && !frontier.isNear(t)){
+                        frontier.clearNext(t);
+                        continue;
+                    }
+                    boolean live = false;
+                    for(int i=rowStart; i<rowEnd; i++){
+                        live |= resolve(i, colStart, colEnd, tileStatistics[t], recorded);
+                    }
+                    if(tracking){
+                        frontier.nextOccupied[t] = live;
+                    }
+                } else if(!tracking || frontier.occupied[t]){
+                    for(int i=rowStart; i<rowEnd; i++){
+                        dose(i, colStart, colEnd, draws, killed, recorded);
+                    }
+                    tileStatistics[t].removeKilled(killed);
+                }
+            }
+        }
+    }
+}
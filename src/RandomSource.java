@@ -0,0 +1,40 @@
+package antibioticresistancesimulation;
+
+/** The RandomSource interface is the source of every random decision made by
+ * a State. Unlike Math.random(), which shares one generator between all the
+ * threads of the program, each State (and each thread working on it) owns its
+ * own RandomSource, so that runs can be reproduced from a seed and threads
+ * never contend for a generator.
+ */
+
+public interface RandomSource {
+
+    /** Returns the next random 64-bit value of the sequence.
+     * @return A uniformly distributed long.
+     */
+    long nextLong();
+
+    /** Creates a new, independent RandomSource, and advances this one. The
+     * new source can be handed to another thread.
+     * @return The split off RandomSource.
+     */
+    RandomSource split();
+
+    /** Returns a random double between 0 (inclusive) and 1 (exclusive).
+     * @return A uniformly distributed double.
+     */
+    default double nextDouble(){
+        return (nextLong() >>> 11) * 0x1.0p-53;
+    }
+
+    /** Returns a random integer between 0 (inclusive) and BOUND (exclusive).
+     * The integer is derived from the upper 32 bits of nextLong() with a
+     * multiplication instead of a division, which is uniform enough for the
+     * small bounds used by the simulation.
+     * @param bound The upper bound of the random integer, at least 1.
+     * @return A uniformly distributed integer.
+     */
+    default int nextInt(int bound){
+        return (int)(((nextLong() >>> 32) * bound) >>> 32);
+    }
+}
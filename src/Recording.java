@@ -0,0 +1,260 @@
+package antibioticresistancesimulation;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/** The Recording class reads back a file written by a TrajectoryRecorder, so
+ * that a recorded run can be replayed or scrubbed through at any speed.
+ *
+ * When a Recording is opened, the headers of all the frames are read to find
+ * where each frame starts; the payloads are only read when a frame is shown.
+ * Moving to the next frame only applies its changes, while jumping to any
+ * other frame starts again from the KEY frame before it. A file whose last
+ * frame was cut short, e.g. because the recording program was killed, is read
+ * up to the last complete frame.
+ * The Recording class contains five variables:
+ * (1) int width, int height: The size of the recorded grid.
+ * (2) long[] ticks, long[] offsets, boolean[] keys: For each frame, the tick
+ * of the colony, where the frame starts in the file and whether it is a KEY
+ * frame.
+ * (3) byte[] level: The grid as of frame FRAME.
+ * (4) ColonyStatistics statistics: The statistics of the colony as of frame
+ * FRAME.
+ * (5) int frame: The frame LEVEL and STATISTICS hold, -1 before the first
+ * seek().
+ */
+
+public class Recording implements Closeable {
+    static final int HEADER_SIZE = 20;
+    static final int FRAME_HEADER_SIZE = 17;
+
+    final FileChannel channel;
+    final int width;
+    final int height;
+    final int frames;
+    final long[] ticks;
+    final long[] offsets;
+    final boolean[] keys;
+    final byte[] level;
+    final ColonyStatistics statistics = new ColonyStatistics();
+    final Inflater inflater = new Inflater();
+    byte[] compressed = new byte[0];
+    byte[] raw = new byte[0];
+    int frame = -1;
+
+    /** Opens a recording and reads the headers of its frames.
+     * @param file The file written by a TrajectoryRecorder.
+     * @throws IOException If the file cannot be read or is not a recording.
+     */
+    public Recording(Path file) throws IOException{
+        channel = FileChannel.open(file, StandardOpenOption.READ);
+        try{
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            readFully(header, 0);
+            if(header.getInt(0)!=TrajectoryRecorder.MAGIC){
+                throw new IOException(file + " is not a recording");
+            }
+            if(header.getInt(4)!=TrajectoryRecorder.VERSION){
+                throw new IOException(file + " is a recording of version " + header.getInt(4)
+                        + ", only version " + TrajectoryRecorder.VERSION + " is supported");
+            }
+            width = header.getInt(8);
+            height = header.getInt(12);
+            try{
+                Grid.checkSize(width, height);
+            } catch(IllegalArgumentException ex){
+                throw new IOException(file + ": " + ex.getMessage(), ex);
+            }
+            level = new byte[width*height];
+
+            // Index the frames, stopping at the first incomplete one.
+            long[] ticks = new long[64];
+            long[] offsets = new long[64];
+            boolean[] keys = new boolean[64];
+            int count = 0;
+            long offset = HEADER_SIZE;
+            long size = channel.size();
+            ByteBuffer frameHeader = ByteBuffer.allocate(FRAME_HEADER_SIZE);
+            while(offset + FRAME_HEADER_SIZE <= size){
+                frameHeader.clear();
+                readFully(frameHeader, offset);
+                long end = offset + FRAME_HEADER_SIZE + frameHeader.getInt(9);
+                if(end>size || (count==0 && frameHeader.get(0)!=TrajectoryRecorder.KEY)){
+                    break;
+                }
+                if(count==ticks.length){
+                    ticks = Arrays.copyOf(ticks, count*2);
+                    offsets = Arrays.copyOf(offsets, count*2);
+                    keys = Arrays.copyOf(keys, count*2);
+                }
+                ticks[count] = frameHeader.getLong(1);
+                offsets[count] = offset;
+                keys[count] = frameHeader.get(0)==TrajectoryRecorder.KEY;
+                count++;
+                offset = end;
+            }
+            frames = count;
+            this.ticks = ticks;
+            this.offsets = offsets;
+            this.keys = keys;
+        } catch(IOException | RuntimeException ex){
+            channel.close();
+            throw ex;
+        }
+    }
+
+    public int getWidth(){
+        return width;
+    }
+
+    public int getHeight(){
+        return height;
+    }
+
+    /** Returns the number of complete frames of the recording. */
+    public int getFrames(){
+        return frames;
+    }
+
+    /** Returns the tick of the colony at frame FRAME. */
+    public long getTick(int frame){
+        return ticks[frame];
+    }
+
+    /** Returns the frame the grid was last moved to with seek(). */
+    public int getFrame(){
+        return frame;
+    }
+
+    /** Returns the grid as of the current frame. It is overwritten by the
+     * next seek().
+     */
+    public byte[] getLevels(){
+        return level;
+    }
+
+    /** Returns the statistics of the colony as of the current frame. */
+    public ColonyStatistics getStatistics(){
+        return statistics;
+    }
+
+    /** Exports a scaled view of the current frame into MODEL, the same way
+     * as State.exportModel(double[][]) does.
+     */
+    public void exportModel(double[][] model){
+        State.exportModel(level, width, height, model);
+    }
+
+    /** Moves the grid to frame TARGET.
+     * @param target The frame, between 0 and getFrames()-1.
+     * @throws IOException If the frame cannot be read.
+     */
+    public void seek(int target) throws IOException{
+        if(target<0 || target>=frames){
+            throw new IndexOutOfBoundsException("Frame " + target + " of " + frames);
+        }
+        if(target==frame){
+            return;
+        }
+        int from = target;
+        while(!keys[from]){
+            from--;
+        }
+        // Moving forward without passing a KEY frame only needs the changes
+        // of the frames in between.
+        if(frame>=from && frame<target){
+            from = frame+1;
+        }
+        for(int f=from; f<=target; f++){
+            apply(f);
+        }
+    }
+
+    /** Reads frame F and applies it to the grid. */
+    private void apply(int f) throws IOException{
+        ByteBuffer header = ByteBuffer.allocate(FRAME_HEADER_SIZE);
+        readFully(header, offsets[f]);
+        int length = header.getInt(9);
+        int rawLength = header.getInt(13);
+        if(compressed.length<length){
+            compressed = new byte[length];
+        }
+        if(raw.length<rawLength){
+            raw = new byte[rawLength];
+        }
+        readFully(ByteBuffer.wrap(compressed, 0, length), offsets[f] + FRAME_HEADER_SIZE);
+        inflater.reset();
+        inflater.setInput(compressed, 0, length);
+        try{
+            int n = 0;
+            while(n<rawLength && !inflater.finished()){
+                int read = inflater.inflate(raw, n, rawLength - n);
+                if(read==0 && (inflater.needsInput() || inflater.needsDictionary())){
+                    break;
+                }
+                n += read;
+            }
+            if(n!=rawLength){
+                throw new IOException("Frame " + f + " is corrupt");
+            }
+        } catch(DataFormatException ex){
+            throw new IOException("Frame " + f + " is corrupt: " + ex.getMessage(), ex);
+        }
+
+        int[] position = {0};
+        long[] counts = new long[ColonyStatistics.BINS];
+        for(int b=0; b<counts.length; b++){
+            counts[b] = varint(position);
+        }
+        if(keys[f]){
+            System.arraycopy(raw, position[0], level, 0, level.length);
+        } else{
+            long changes = varint(position);
+            int k = -1;
+            for(long c=0; c<changes; c++){
+                k += (int) varint(position) + 1;
+                level[k] = raw[position[0]++];
+            }
+        }
+        statistics.setCounts(counts);
+        frame = f;
+    }
+
+    /** Reads a varint of RAW starting at POSITION[0], and moves POSITION[0]
+     * past it.
+     */
+    private long varint(int[] position){
+        long value = 0;
+        int shift = 0;
+        byte b;
+        do{
+            b = raw[position[0]++];
+            value |= (long)(b & 0x7F) << shift;
+            shift += 7;
+        } while(b<0);
+        return value;
+    }
+
+    private void readFully(ByteBuffer buffer, long offset) throws IOException{
+        while(buffer.hasRemaining()){
+            int read = channel.read(buffer, offset);
+            if(read<0){
+                throw new IOException("Unexpected end of the recording");
+            }
+            offset += read;
+        }
+    }
+
+    @Override
+    public void close() throws IOException{
+        inflater.end();
+        channel.close();
+    }
+}
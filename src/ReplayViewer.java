@@ -0,0 +1,127 @@
+package antibioticresistancesimulation;
+
+import java.awt.BorderLayout;
+import java.io.IOException;
+import java.nio.file.Path;
+import javax.swing.*;
+
+/** The ReplayViewer class shows a Recording made by a TrajectoryRecorder,
+ * without simulating the colony again. The recording can be played forward at
+ * any speed, paused, and scrubbed through with a slider; jumping to a frame
+ * costs at most one KEY frame interval of decoding, however long the
+ * recording is.
+ * The ReplayViewer class contains six variables:
+ * (1) Recording recording: The recording being replayed.
+ * (2) ColonyView view, HistogramView histogram, JLabel tickLabel: The colony,
+ * the distribution of its GENEXP and its tick and average, as of the frame
+ * shown.
+ * (3) JSlider slider: The frame shown, which can be dragged to scrub.
+ * (4) JSpinner speed: The number of frames played per second.
+ * (5) double position: The frame being played, with the fraction of the next
+ * one played so far.
+ * (6) boolean playing: Whether the recording is played or paused.
+ */
+
+public class ReplayViewer {
+
+    final Recording recording;
+    final double[][] model;
+    ColonyView view;
+    HistogramView histogram = new HistogramView();
+    JLabel tickLabel = new JLabel();
+    JSlider slider;
+    JSpinner speed;
+    JButton playButton;
+    double position;
+    boolean playing;
+
+    /** Opens FILE and shows it in a new window. Must be called on the Event
+     * Dispatch Thread.
+     * @param file The file written by a TrajectoryRecorder.
+     * @throws IOException If the file cannot be read or holds no frame.
+     */
+    public ReplayViewer(Path file) throws IOException{
+        recording = new Recording(file);
+        if(recording.getFrames()==0){
+            recording.close();
+            throw new IOException(file + " holds no complete frame");
+        }
+        view = new ColonyView(recording.getWidth(), recording.getHeight());
+        model = new double[view.getModelRows()][view.getModelCols()];
+
+        JFrame frame = new JFrame("Replay of " + file.getFileName());
+        frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
+        frame.setResizable(false);
+        frame.add(view);
+
+        slider = new JSlider(0, recording.getFrames()-1, 0);
+        slider.addChangeListener(e -> {
+            // Scrubbing moves the replay to the frame picked.
+            if((int) position!=slider.getValue()){
+                position = slider.getValue();
+            }
+            show(slider.getValue());
+        });
+        playButton = new JButton("PLAY");
+        playButton.addActionListener(e -> {
+            playing = !playing;
+            if(playing && recording.getFrame()==recording.getFrames()-1){
+                slider.setValue(0);
+            }
+            playButton.setText(playing ? "PAUSE" : "PLAY");
+        });
+        speed = new JSpinner(new SpinnerNumberModel(10.0, 0.5, 1000.0, 1.0));
+
+        JPanel bottomPanel = new JPanel();
+        bottomPanel.add(playButton);
+        bottomPanel.add(new JLabel("Frames/s:"));
+        bottomPanel.add(speed);
+        bottomPanel.add(slider);
+        bottomPanel.add(tickLabel);
+        bottomPanel.add(histogram);
+        frame.add(bottomPanel, BorderLayout.PAGE_END);
+        frame.pack();
+
+        show(0);
+        Timer timer = new Timer(1000/AntibioticResistanceSimulation.FRAMES_PER_SECOND, e -> advance());
+        timer.start();
+        frame.setVisible(true);
+    }
+
+    /** Moves the replay forward by the frames due since the last timer
+     * event, and pauses it at the last frame.
+     */
+    private void advance(){
+        if(!playing){
+            return;
+        }
+        position += ((Number) speed.getValue()).doubleValue()/AntibioticResistanceSimulation.FRAMES_PER_SECOND;
+        int last = recording.getFrames()-1;
+        if(position>=last){
+            position = last;
+            playing = false;
+            playButton.setText("PLAY");
+        }
+        if((int) position!=recording.getFrame()){
+            slider.setValue((int) position);
+        }
+    }
+
+    /** Shows frame FRAME of the recording. */
+    private void show(int frame){
+        try{
+            recording.seek(frame);
+        } catch(IOException ex){
+            playing = false;
+            playButton.setText("PLAY");
+            JOptionPane.showMessageDialog(view, ex.getMessage(), "Replay", JOptionPane.ERROR_MESSAGE);
+            return;
+        }
+        recording.exportModel(model);
+        view.update(model);
+        ColonyStatistics statistics = recording.getStatistics();
+        tickLabel.setText(String.format("Tick: %d  Average: %.3f  Variance: %.4f",
+                recording.getTick(frame), statistics.getMean(), statistics.getVariance()));
+        histogram.update(statistics);
+    }
+}
@@ -0,0 +1,213 @@
+package antibioticresistancesimulation;
+
+import java.io.IOException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+/** The SimulationLoop class runs a State on its own thread, so that slow 
+ * transitions never freeze the GUI.
+ * 
+ * The loop updates the colony at a fixed rate of TICKSPERSECOND, or as fast 
+ * as it can if the rate is 0. Other threads never touch the State directly:
+ * they submit commands (such as a dose or a restart) to a queue, and the loop
+ * applies the queued commands in between transitions. After the transitions,
+ * the loop publishes Snapshots of the colony through a TripleBuffer, at most
+ * MAX_SNAPSHOTS_PER_SECOND times per second, which the GUI samples at its own
+ * frame rate without locking. If a TrajectoryRecorder is set, every 
+ * transition is recorded as well.
+ */
+
+public class SimulationLoop implements Runnable {
+    /** The most snapshots published per second when running unthrottled. */
+    static final int MAX_SNAPSHOTS_PER_SECOND = 120;
+
+    final State colony;
+    final TripleBuffer<Snapshot> snapshots;
+    final Queue<Consumer<State>> commands = new ConcurrentLinkedQueue<>();
+    volatile double ticksPerSecond;
+    volatile boolean running;
+    Thread thread;
+    long sequence;
+    TrajectoryRecorder recorder;
+
+    /** Creates a loop for COLONY that publishes snapshots of ROWS x COLS.
+     * @param colony The colony to run.
+     * @param rows The number of rows of the snapshots' model.
+     * @param cols The number of columns of the snapshots' model.
+     * @param ticksPerSecond The rate of the transitions, or 0 to run as fast
+     * as possible.
+     */
+    public SimulationLoop(State colony, int rows, int cols, double ticksPerSecond){
+        this.colony = colony;
+        this.ticksPerSecond = ticksPerSecond;
+        snapshots = new TripleBuffer<>(() -> new Snapshot(rows, cols));
+    }
+
+    /** Starts the simulation thread. */
+    public synchronized void start(){
+        if(thread!=null){
+            return;
+        }
+        running = true;
+        thread = new Thread(this, "simulation");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /** Stops the simulation thread and waits for it to finish. The recorder,
+     * if any, is closed.
+     */
+    public synchronized void stop() throws InterruptedException{
+        running = false;
+        if(thread!=null){
+            LockSupport.unpark(thread);
+            thread.join();
+            thread = null;
+        }
+        if(recorder!=null){
+            try{
+                recorder.close();
+            } catch(IOException ex){
+                System.err.println(ex.getMessage());
+            }
+            recorder = null;
+        }
+    }
+
+    /** Records every transition of the colony with RECORDER, starting with
+     * the colony as it is. Must be called before start().
+     * @param recorder The recorder, closed by stop().
+     */
+    public synchronized void setRecorder(TrajectoryRecorder recorder){
+        if(thread!=null){
+            throw new IllegalStateException("The loop is already running");
+        }
+        this.recorder = recorder;
+    }
+
+    /** Changes the rate of the transitions.
+     * @param ticksPerSecond The new rate, or 0 to run as fast as possible.
+     */
+    public void setTicksPerSecond(double ticksPerSecond){
+        this.ticksPerSecond = ticksPerSecond;
+        if(thread!=null){
+            LockSupport.unpark(thread);
+        }
+    }
+
+    /** Queues a command to be applied to the colony between two transitions.
+     * @param command The command.
+     */
+    public void submit(Consumer<State> command){
+        commands.add(command);
+        if(thread!=null){
+            LockSupport.unpark(thread);
+        }
+    }
+
+    /** Queues a dose of antibiotic solution TYPE. */
+    public void dose(char type){
+        submit(colony -> colony.doseAntibio(type));
+    }
+
+    /** Queues a dose of antibiotic solution TYPE at a spot centered on ROW,
+     * COL, see State.doseAt().
+     */
+    public void doseAt(char type, int row, int col){
+        submit(colony -> colony.doseAt(type, row, col));
+    }
+
+    /** Queues a restart of the colony. */
+    public void restart(){
+        submit(State::randomStart);
+    }
+
+    /** Returns the latest published snapshot. Only to be called by a single
+     * reader thread, typically the Event Dispatch Thread.
+     * @return The latest snapshot; its sequence is 0 if none was published.
+     */
+    public Snapshot latest(){
+        return snapshots.read();
+    }
+
+    @Override
+    public void run(){
+        long minInterval = 1_000_000_000L / MAX_SNAPSHOTS_PER_SECOND;
+        long next = System.nanoTime();
+        long lastSnapshot = next;
+        boolean pending = false;
+
+        record();
+        publish();
+        while(running){
+            pending |= applyCommands();
+
+            double rate = ticksPerSecond;
+            long now = System.nanoTime();
+            if(rate<=0 || now-next>=0){
+                colony.updateState();
+                record();
+                pending = true;
+                // Catch up on late transitions, but never by more than one.
+                long interval = rate<=0 ? 0 : (long)(1e9/rate);
+                next += interval;
+                if(next-now < -interval){
+                    next = now;
+                }
+                now = System.nanoTime();
+            }
+
+            if(pending && now-lastSnapshot>=minInterval){
+                publish();
+                lastSnapshot = now;
+                pending = false;
+            }
+
+            // When throttled, sleep until the next transition or snapshot is 
+            // due. submit() wakes the thread up early.
+            if(rate>0){
+                long wake = pending ? Math.min(next, lastSnapshot+minInterval) : next;
+                if(wake-now>0){
+                    LockSupport.parkNanos(this, Math.min(wake-now, 50_000_000L));
+                }
+            }
+        }
+    }
+
+    private boolean applyCommands(){
+        boolean applied = false;
+        Consumer<State> command;
+        while((command = commands.poll())!=null){
+            command.accept(colony);
+            applied = true;
+        }
+        return applied;
+    }
+
+    /** Records the colony, if a recorder is set. The recording stops at the
+     * first failure, without stopping the simulation.
+     */
+    private void record(){
+        if(recorder==null){
+            return;
+        }
+        try{
+            recorder.record(colony);
+        } catch(IOException ex){
+            System.err.println(ex.getMessage());
+            try{
+                recorder.close();
+            } catch(IOException ignored){
+                // Already reported.
+            }
+            recorder = null;
+        }
+    }
+
+    private void publish(){
+        snapshots.back().capture(colony, ++sequence);
+        snapshots.publish();
+    }
+}
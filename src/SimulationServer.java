@@ -0,0 +1,837 @@
+package antibioticresistancesimulation;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/** The SimulationServer class hosts many colonies in one long-running
+ * process, and lets local clients create, step, dose, look at and follow
+ * them through a small HTTP API answering in JSON. Like the HeadlessRunner,
+ * it never touches AWT or Swing.
+ *
+ * Each colony is a Session, known by the id it was given when it was
+ * created:
+ * (1) POST /sessions?size=WxH&seed=S&step=L creates a colony and starts it
+ * with randomStart().
+ * (2) GET /sessions lists the summaries of all the colonies, and
+ * GET /sessions/ID the summary of one: its size, tick, live Cells, average
+ * and variance of their GENEXP, and number of doses.
+ * (3) POST /sessions/ID/step?ticks=N performs N transitions.
+ * (4) POST /sessions/ID/dose?type=b doses the colony, or gives the
+ * antibiotics at a spot with &row=R&col=C (and &amount=A&radius=D).
+ * (5) GET /sessions/ID/snapshot?rows=R&cols=C returns a scaled view of the
+ * GENEXP of the colony and the histogram of its live Cells.
+ * (6) GET /sessions/ID/stats streams the summary of the colony, one JSON
+ * line whenever it changed (at most every &interval=MS, and at least every
+ * HEARTBEAT so that a client that went away is noticed), until &limit=N
+ * lines were sent or the colony is deleted.
+ * (7) DELETE /sessions/ID deletes the colony.
+ *
+ * The requests are handled on virtual threads when the JDK has them, and on
+ * a cached pool of threads otherwise, so that a client waiting for a step or
+ * following the stats holds no more than a blocked thread. The work on the
+ * colonies themselves runs on CARRIERS, a fixed pool of as many threads as
+ * requested, so that however many steps are asked for at once, they never
+ * use more cores than that. A step is cut into slices of about SLICE_CELLS
+ * Cell updates, each queued on CARRIERS in turn, so that a long step of a
+ * large colony does not hold the other colonies back; a colony of at least
+ * PARALLEL_CELLS positions uses the ParallelEngine on CARRIERS, so that
+ * while the others are idle it gets all the cores. The buffers the 
+ * ParallelEngine runs a band in belong to the threads of CARRIERS, and are
+ * shared by all the colonies, so an idle large colony only costs its grid.
+ * The transitions and doses of each colony can be limited to RATE per 
+ * second, in bursts of up to BURST: a request above the limit is refused
+ * with 429 and the number of seconds to wait.
+ *
+ * A colony left alone for IDLE is saved to a Checkpoint in SPILL and
+ * dropped from memory, and restored as it was by the next request touching
+ * it, so thousands of idle colonies only cost their summaries. Colonies
+ * holding antibiotics given at a spot, which a Checkpoint does not keep,
+ * stay in memory.
+ * The SimulationServer class contains six variables:
+ * (1) HttpServer http: The server the API is published by.
+ * (2) ExecutorService handlers: The threads handling the requests.
+ * (3) ForkJoinPool carriers: The threads performing the work on the
+ * colonies.
+ * (4) Map sessions: The colonies, by id.
+ * (5) double rate, double burst: The transitions and doses each colony may
+ * perform per second and at once, or 0 for no limit.
+ * (6) int maxSessions, long maxCells, long idle, Path spill: The most
+ * colonies held at once, the most positions of each, the nanoseconds after
+ * which an idle colony is saved (0 for never), and the directory it is
+ * saved to.
+ */
+
+public class SimulationServer {
+
+    static final String USAGE =
+            "Usage: SimulationServer [options]\n"
+            + "  --port P            port to listen on (default 8080, 0 for any free port)\n"
+            + "  --host H            address to listen on (default 127.0.0.1)\n"
+            + "  --threads T         threads performing the transitions (default: all cores)\n"
+            + "  --rate R            transitions and doses per second of each colony\n"
+            + "                      (default: no limit)\n"
+            + "  --burst B           transitions and doses each colony may perform at once\n"
+            + "                      (default: one second of --rate)\n"
+            + "  --sessions N        most colonies held at once (default 10000)\n"
+            + "  --max-cells N       most positions of each colony (default 16777216)\n"
+            + "  --idle S            seconds after which an idle colony is saved to disk\n"
+            + "                      (default 60, 0 for never)\n"
+            + "  --spill DIR         directory the idle colonies are saved to\n"
+            + "                      (default: a temporary directory)\n";
+
+    /** The number of Cell updates a step is cut into slices of. */
+    static final long SLICE_CELLS = 1L << 22;
+
+    /** The number of positions from which a colony uses the ParallelEngine. */
+    static final long PARALLEL_CELLS = 1L << 18;
+
+    /** The longest time, in milliseconds, between two lines of the stats. */
+    static final long HEARTBEAT = 10_000;
+
+    /** The number of connections waiting to be accepted. */
+    static final int BACKLOG = 1024;
+
+    /** The largest number of rows and columns of a snapshot. */
+    static final int MAX_VIEW = 1000;
+
+    final HttpServer http;
+    final ExecutorService handlers;
+    final ForkJoinPool carriers;
+    final ScheduledExecutorService reaper;
+    final Map<Long, Session> sessions = new ConcurrentHashMap<>();
+    final AtomicLong ids = new AtomicLong();
+    final AtomicInteger open = new AtomicInteger();
+    double rate;
+    double burst;
+    int maxSessions = 10_000;
+    long maxCells = 1L << 24;
+    long idle = TimeUnit.SECONDS.toNanos(60);
+    final Path spill;
+
+    /** Creates a server listening on ADDRESS, which start() starts.
+     * @param address The address and port to listen on.
+     * @param threads The number of threads performing the work on the
+     * colonies.
+     * @param spill The directory the idle colonies are saved to.
+     * @throws IOException If the address cannot be bound.
+     */
+    public SimulationServer(InetSocketAddress address, int threads, Path spill) throws IOException{
+        this.spill = spill;
+        carriers = new ForkJoinPool(threads);
+        handlers = handlerThreads();
+        reaper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "hibernate");
+            thread.setDaemon(true);
+            return thread;
+        });
+        http = HttpServer.create(address, BACKLOG);
+        http.createContext("/sessions", this::handle);
+        http.setExecutor(handlers);
+    }
+
+    /** Returns an executor starting a virtual thread per task, or a cached
+     * pool of threads if the JDK has no virtual threads. */
+    static ExecutorService handlerThreads(){
+        try{
+            return (ExecutorService) Executors.class
+                    .getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch(ReflectiveOperationException ex){
+            return Executors.newCachedThreadPool(r -> {
+                Thread thread = new Thread(r, "session");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    /** Limits the transitions and doses of each colony.
+     * @param rate The transitions and doses per second, or 0 for no limit.
+     * @param burst The transitions and doses performed at once, at least 1.
+     */
+    public void setRateLimit(double rate, double burst){
+        if(rate<0 || (rate>0 && burst<1)){
+            throw new IllegalArgumentException("The rate must be at least 0 and the burst at least 1");
+        }
+        this.rate = rate;
+        this.burst = burst;
+    }
+
+    /** Limits the number and size of the colonies.
+     * @param sessions The most colonies held at once.
+     * @param cells The most positions of each colony.
+     */
+    public void setLimits(int sessions, long cells){
+        if(sessions<1 || cells<4){
+            throw new IllegalArgumentException("At least one colony of 2x2 must be allowed");
+        }
+        maxSessions = sessions;
+        maxCells = cells;
+    }
+
+    /** Sets how long a colony is left alone before it is saved to disk.
+     * @param millis The time in milliseconds, or 0 to keep every colony in
+     * memory.
+     */
+    public void setIdleTimeout(long millis){
+        idle = TimeUnit.MILLISECONDS.toNanos(Math.max(millis, 0));
+    }
+
+    /** Starts answering requests, and saving the idle colonies. */
+    public void start(){
+        http.start();
+        if(idle>0){
+            long period = Math.max(TimeUnit.NANOSECONDS.toMillis(idle)/2, 1);
+            reaper.scheduleWithFixedDelay(this::hibernate, period, period, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /** Stops the server, and deletes the colonies saved to disk. */
+    public void stop(){
+        http.stop(0);
+        reaper.shutdownNow();
+        for(Session session : sessions.values()){
+            session.close();
+        }
+        sessions.clear();
+        handlers.shutdownNow();
+        carriers.shutdownNow();
+    }
+
+    /** Returns the port the server listens on.
+     * @return The port.
+     */
+    public int getPort(){
+        return http.getAddress().getPort();
+    }
+
+    /** Saves the colonies left alone for IDLE to disk. */
+    void hibernate(){
+        long now = System.nanoTime();
+        for(Session session : sessions.values()){
+            if(now - session.used>=idle){
+                session.hibernate();
+            }
+        }
+    }
+
+    /** Answers a request to /sessions. */
+    void handle(HttpExchange exchange){
+        try{
+            String method = exchange.getRequestMethod();
+            String[] path = exchange.getRequestURI().getPath().split("/");
+            Map<String, String> query = query(exchange.getRequestURI().getRawQuery());
+            if(!path[1].equals("sessions")){
+                throw new HttpError(404, "No " + exchange.getRequestURI().getPath());
+            } else if(path.length==2){
+                if(method.equals("POST")){
+                    send(exchange, 201, create(query).summary);
+                } else if(method.equals("GET")){
+                    send(exchange, 200, list());
+                } else{
+                    throw new HttpError(405, method + " is not allowed on /sessions");
+                }
+                return;
+            }
+            Session session = find(path[2]);
+            String action = path.length>3 ? path[3] : "";
+            switch(method + " " + action){
+                case "GET ":
+                    send(exchange, 200, session.summary);
+                    break;
+                case "DELETE ":
+                    delete(session);
+                    send(exchange, 200, session.summary);
+                    break;
+                case "POST step":
+                    session.step(number(query, "ticks", 1, 0, Long.MAX_VALUE));
+                    send(exchange, 200, session.summary);
+                    break;
+                case "POST dose":
+                    send(exchange, 200, dose(session, query));
+                    break;
+                case "GET snapshot":
+                    send(exchange, 200, snapshot(session, query));
+                    break;
+                case "GET stats":
+                    stream(exchange, session, query);
+                    break;
+                default:
+                    throw new HttpError(404, "No " + method + " " + exchange.getRequestURI().getPath());
+            }
+        } catch(HttpError ex){
+            if(ex.retryAfter>0){
+                exchange.getResponseHeaders().set("Retry-After", Long.toString(ex.retryAfter));
+            }
+            error(exchange, ex.status, ex.getMessage());
+        } catch(IllegalArgumentException ex){
+            error(exchange, 400, ex.getMessage());
+        } catch(IOException ex){
+            error(exchange, 500, ex.getMessage());
+        } finally{
+            exchange.close();
+        }
+    }
+
+    /** Creates a colony as asked by QUERY. */
+    Session create(Map<String, String> query) throws IOException{
+        String[] size = query.getOrDefault("size", "25").split("x");
+        int width = Integer.parseInt(size[0]);
+        int height = size.length>1 ? Integer.parseInt(size[1]) : width;
+        if((long) width*height>maxCells){
+            throw new IllegalArgumentException("A colony holds at most " + maxCells + " positions");
+        }
+        long seed = query.containsKey("seed") ? Long.parseLong(query.get("seed")) : System.nanoTime();
+        int step = (int) number(query, "step", 1, 1, Grid.LEVELS);
+        if(open.incrementAndGet()>maxSessions){
+            open.decrementAndGet();
+            throw new HttpError(503, "The server holds " + maxSessions + " colonies already");
+        }
+        try{
+            Session session = new Session(ids.incrementAndGet(), width, height);
+            session.start(seed, step);
+            sessions.put(session.id, session);
+            return session;
+        } catch(RuntimeException | IOException ex){
+            open.decrementAndGet();
+            throw ex;
+        }
+    }
+
+    /** Returns the summaries of all the colonies. */
+    String list(){
+        StringBuilder json = new StringBuilder("{\"sessions\":[");
+        for(Session session : sessions.values()){
+            if(json.charAt(json.length()-1)!='['){
+                json.append(',');
+            }
+            json.append(session.summary);
+        }
+        return json.append("]}").toString();
+    }
+
+    /** Returns the colony of id ID. */
+    Session find(String id){
+        Session session = null;
+        try{
+            session = sessions.get(Long.parseLong(id));
+        } catch(NumberFormatException ex){
+            // Not an id, so not a colony either.
+        }
+        if(session==null){
+            throw new HttpError(404, "No session " + id);
+        }
+        return session;
+    }
+
+    /** Deletes SESSION. */
+    void delete(Session session){
+        if(sessions.remove(session.id)!=null){
+            open.decrementAndGet();
+            session.close();
+        }
+    }
+
+    /** Doses SESSION as asked by QUERY, and returns its summary along with
+     * the number of Cells the dose killed. */
+    String dose(Session session, Map<String, String> query) throws IOException{
+        String type = query.getOrDefault("type", "");
+        if(!type.equals("b") && !type.equals("w")){
+            throw new IllegalArgumentException("The type must be b or w");
+        }
+        char t = type.charAt(0);
+        boolean spot = query.containsKey("row") || query.containsKey("col");
+        int row = (int) number(query, "row", session.height/2, 0, session.height-1);
+        int col = (int) number(query, "col", session.width/2, 0, session.width-1);
+        double amount = query.containsKey("amount") ? Double.parseDouble(query.get("amount")) : 1.0;
+        int radius = (int) number(query, "radius",
+                Math.max(1, Math.min(session.width, session.height)/20), 0, Integer.MAX_VALUE);
+        session.take(1);
+        long killed = session.run(colony -> {
+            long live = colony.liveCells();
+            if(spot){
+                colony.doseAt(t, row, col, amount, radius);
+            } else{
+                colony.doseAntibio(t);
+            }
+            return live - colony.liveCells();
+        });
+        String summary = session.summary;
+        return summary.substring(0, summary.length()-1) + ",\"killed\":" + killed + "}";
+    }
+
+    /** Returns the view of SESSION asked by QUERY. */
+    String snapshot(Session session, Map<String, String> query) throws IOException{
+        int rows = (int) number(query, "rows", Math.min(session.height, 100), 1,
+                Math.min(session.height, MAX_VIEW));
+        int cols = (int) number(query, "cols", Math.min(session.width, 100), 1,
+                Math.min(session.width, MAX_VIEW));
+        return session.run(colony -> {
+            double[][] model = colony.exportModel(rows, cols);
+            ColonyStatistics statistics = colony.getStatistics();
+            StringBuilder json = new StringBuilder(16 + 6*rows*cols);
+            json.append("{\"tick\":").append(colony.getTick())
+                    .append(",\"rows\":").append(rows)
+                    .append(",\"cols\":").append(cols)
+                    .append(",\"histogram\":[");
+            for(int b=0; b<ColonyStatistics.BINS; b++){
+                json.append(b>0 ? "," : "").append(statistics.getCount(b));
+            }
+            // The model holds the shades of the view, 1 - GENEXP.
+            json.append("],\"genexp\":[");
+            for(int r=0; r<rows; r++){
+                json.append(r>0 ? ",[" : "[");
+                for(int c=0; c<cols; c++){
+                    json.append(c>0 ? "," : "").append(Math.round((1-model[r][c])*1000)/1000.0);
+                }
+                json.append(']');
+            }
+            return json.append("]}").toString();
+        });
+    }
+
+    /** Streams the summary of SESSION as asked by QUERY. */
+    void stream(HttpExchange exchange, Session session, Map<String, String> query)
+            throws IOException{
+        long interval = number(query, "interval", 100, 0, HEARTBEAT);
+        long limit = number(query, "limit", Long.MAX_VALUE, 1, Long.MAX_VALUE);
+        exchange.getResponseHeaders().set("Content-Type", "application/x-ndjson");
+        exchange.sendResponseHeaders(200, 0);
+        OutputStream out = exchange.getResponseBody();
+        long seen = -1;
+        try{
+            for(long lines=0; lines<limit && !session.closed; lines++){
+                if(lines>0){
+                    Thread.sleep(interval);
+                }
+                seen = session.await(seen, HEARTBEAT);
+                out.write((session.summary + "\n").getBytes(StandardCharsets.UTF_8));
+                out.flush();
+            }
+        } catch(InterruptedException ex){
+            Thread.currentThread().interrupt();
+        } catch(IOException ex){
+            // The client went away.
+        }
+    }
+
+    /** Returns the parameters of a query string. */
+    static Map<String, String> query(String raw){
+        Map<String, String> query = new HashMap<>();
+        if(raw!=null){
+            for(String pair : raw.split("&")){
+                int equals = pair.indexOf('=');
+                if(equals>0){
+                    query.put(URLDecoder.decode(pair.substring(0, equals), StandardCharsets.UTF_8),
+                            URLDecoder.decode(pair.substring(equals+1), StandardCharsets.UTF_8));
+                }
+            }
+        }
+        return query;
+    }
+
+    /** Returns the parameter NAME of QUERY, or FALLBACK if it is not given.
+     * @throws IllegalArgumentException If it is not between MIN and MAX.
+     */
+    static long number(Map<String, String> query, String name, long fallback, long min, long max){
+        String value = query.get(name);
+        long number;
+        try{
+            number = value==null ? fallback : Long.parseLong(value);
+        } catch(NumberFormatException ex){
+            throw new IllegalArgumentException(name + " must be a number, not " + value);
+        }
+        if(number<min || number>max){
+            throw new IllegalArgumentException(name + " must be between " + min + " and " + max);
+        }
+        return number;
+    }
+
+    /** Sends JSON to the client with STATUS. */
+    static void send(HttpExchange exchange, int status, String json) throws IOException{
+        byte[] body = json.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, body.length);
+        exchange.getResponseBody().write(body);
+    }
+
+    /** Sends an error to the client, unless the response has begun. */
+    static void error(HttpExchange exchange, int status, String message){
+        if(exchange.getResponseCode()>=0){
+            return;
+        }
+        String text = String.valueOf(message).replace("\\", "\\\\").replace("\"", "\\\"");
+        try{
+            send(exchange, status, "{\"error\":\"" + text + "\"}");
+        } catch(IOException ex){
+            // The client went away.
+        }
+    }
+
+    /** The work a Session performs on its colony. */
+    interface Work<T> {
+        T apply(State colony) throws Exception;
+    }
+
+    /** The HttpError class is the error a request is answered with, and the
+     * number of seconds to wait before trying again, or 0.
+     */
+    static class HttpError extends RuntimeException {
+        final int status;
+        final long retryAfter;
+
+        HttpError(int status, String message){
+            this(status, message, 0);
+        }
+
+        HttpError(int status, String message, long retryAfter){
+            super(message);
+            this.status = status;
+            this.retryAfter = retryAfter;
+        }
+    }
+
+    /** The Session class holds one colony of the server, and makes sure it
+     * is only worked on by one request at a time.
+     * The Session class contains seven variables:
+     * (1) long id, int width, int height: The id and the size of the colony.
+     * (2) State colony: The colony, or null while it is saved to FILE.
+     * (3) Path file: The Checkpoint the colony is saved to while it is idle,
+     * or null.
+     * (4) ReentrantLock lock: Held while working on the colony, so that the
+     * requests to the colony are performed one after the other.
+     * (5) String summary, long version: The summary of the colony in JSON,
+     * and the number of times it changed, which the streams of stats wait
+     * for with CHANGED.
+     * (6) double tokens, long refilled: The transitions and doses the colony
+     * may still perform, and when they were last added to (see take()).
+     * (7) long used, boolean closed: When the colony was last worked on, and
+     * whether it was deleted.
+     */
+    final class Session {
+        final long id;
+        final int width;
+        final int height;
+        State colony;
+        Path file;
+        final ReentrantLock lock = new ReentrantLock();
+        final ReentrantLock watch = new ReentrantLock();
+        final Condition changed = watch.newCondition();
+        volatile String summary;
+        volatile long version;
+        double tokens;
+        long refilled = System.nanoTime();
+        volatile long used = refilled;
+        volatile boolean closed;
+
+        Session(long id, int width, int height){
+            this.id = id;
+            this.width = width;
+            this.height = height;
+            tokens = burst;
+        }
+
+        /** Creates the colony, seeded with SEED and mutating by STEP levels,
+         * and starts it with randomStart(). */
+        void start(long seed, int step) throws IOException{
+            lock.lock();
+            try{
+                compute(() -> {
+                    State created = new State(width, height);
+                    created.setSeed(seed);
+                    created.setMutationStep(step);
+                    useEngine(created);
+                    created.randomStart();
+                    colony = created;
+                    return null;
+                });
+                changed();
+            } finally{
+                lock.unlock();
+            }
+        }
+
+        /** Lets COLONY run on the ParallelEngine if it is large. */
+        void useEngine(State created){
+            if((long) width*height>=PARALLEL_CELLS){
+                created.useParallelEngine(carriers);
+            }
+        }
+
+        /** Performs TICKS transitions, a slice at a time. */
+        void step(long ticks) throws IOException{
+            take(ticks);
+            lock.lock();
+            try{
+                State colony = open();
+                long slice = Math.max(1, SLICE_CELLS/((long) width*height));
+                for(long done=0; done<ticks; ){
+                    long count = Math.min(slice, ticks - done);
+                    compute(() -> {
+                        colony.advance(count);
+                        return null;
+                    });
+                    done += count;
+                    changed();
+                }
+            } finally{
+                lock.unlock();
+            }
+        }
+
+        /** Performs WORK on the colony, once the requests before are done.
+         * @return What WORK returned.
+         */
+        <T> T run(Work<T> work) throws IOException{
+            lock.lock();
+            try{
+                State colony = open();
+                long version = colony.version;
+                T result = compute(() -> work.apply(colony));
+                if(colony.version!=version){
+                    changed();
+                }
+                return result;
+            } finally{
+                lock.unlock();
+            }
+        }
+
+        /** Returns the colony, restoring it from FILE if it was saved. */
+        State open() throws IOException{
+            if(closed){
+                throw new HttpError(404, "No session " + id);
+            }
+            used = System.nanoTime();
+            if(colony==null){
+                State restored = Checkpoint.load(file);
+                useEngine(restored);
+                colony = restored;
+                Files.deleteIfExists(file);
+                file = null;
+            }
+            return colony;
+        }
+
+        /** Performs TASK on CARRIERS, and waits for it. */
+        <T> T compute(Callable<T> task) throws IOException{
+            try{
+                return carriers.submit(task).get();
+            } catch(InterruptedException ex){
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted", ex);
+            } catch(ExecutionException ex){
+                Throwable cause = ex.getCause();
+                if(cause instanceof RuntimeException){
+                    throw (RuntimeException) cause;
+                } else if(cause instanceof IOException){
+                    throw (IOException) cause;
+                }
+                throw new IOException(cause);
+            } finally{
+                used = System.nanoTime();
+            }
+        }
+
+        /** Takes COST transitions or doses from the TOKENS of the colony,
+         * which are refilled at RATE per second up to BURST.
+         * @throws HttpError If there are not enough of them.
+         */
+        void take(double cost){
+            if(rate<=0){
+                return;
+            }
+            if(cost>burst){
+                throw new IllegalArgumentException("At most " + (long) burst + " ticks at a time");
+            }
+            watch.lock();
+            try{
+                long now = System.nanoTime();
+                tokens = Math.min(burst, tokens + (now - refilled)*rate/1e9);
+                refilled = now;
+                if(tokens<cost){
+                    long wait = (long) Math.ceil((cost - tokens)/rate);
+                    throw new HttpError(429, "At most " + rate + " ticks per second", Math.max(wait, 1));
+                }
+                tokens -= cost;
+            } finally{
+                watch.unlock();
+            }
+        }
+
+        /** Updates the SUMMARY of the colony, and wakes the streams up. */
+        void changed(){
+            ColonyStatistics statistics = colony.getStatistics();
+            summary = "{\"id\":" + id + ",\"width\":" + width + ",\"height\":" + height
+                    + ",\"tick\":" + colony.getTick() + ",\"live\":" + statistics.getLive()
+                    + ",\"average\":" + colony.average() + ",\"variance\":" + statistics.getVariance()
+                    + ",\"doses\":" + colony.doses + "}";
+            signal();
+        }
+
+        /** Counts a change of the colony, and wakes the streams up. */
+        void signal(){
+            watch.lock();
+            try{
+                version++;
+                changed.signalAll();
+            } finally{
+                watch.unlock();
+            }
+        }
+
+        /** Waits up to MILLIS for the colony to change after version SEEN.
+         * @return The version of the colony.
+         */
+        long await(long seen, long millis) throws InterruptedException{
+            long nanos = TimeUnit.MILLISECONDS.toNanos(millis);
+            watch.lock();
+            try{
+                while(version==seen && !closed && nanos>0){
+                    nanos = changed.awaitNanos(nanos);
+                }
+                return version;
+            } finally{
+                watch.unlock();
+            }
+        }
+
+        /** Saves the colony to SPILL, unless it is in use, holds antibiotics
+         * given at a spot or was saved already. */
+        void hibernate(){
+            if(!lock.tryLock()){
+                return;
+            }
+            try{
+                if(closed || colony==null || colony.hasAntibiotics()){
+                    return;
+                }
+                Path saved = spill.resolve(id + ".colony");
+                Checkpoint.save(colony, saved);
+                file = saved;
+                colony = null;
+            } catch(IOException ex){
+                System.err.println("Session " + id + " cannot be saved: " + ex.getMessage());
+            } finally{
+                lock.unlock();
+            }
+        }
+
+        /** Drops the colony, and wakes the streams up so that they end. */
+        void close(){
+            closed = true;
+            signal();
+            lock.lock();
+            try{
+                colony = null;
+                if(file!=null){
+                    Files.deleteIfExists(file);
+                    file = null;
+                }
+            } catch(IOException ex){
+                System.err.println(file + " cannot be deleted: " + ex.getMessage());
+            } finally{
+                lock.unlock();
+            }
+        }
+    }
+
+    public static void main(String[] args) {
+        String host = "127.0.0.1";
+        int port = 8080;
+        int threads = Runtime.getRuntime().availableProcessors();
+        double rate = 0;
+        Double burst = null;
+        int sessions = 10_000;
+        long cells = 1L << 24;
+        long idle = 60;
+        Path spill = null;
+
+        try{
+            for(int i=0; i<args.length; i++){
+                switch(args[i]){
+                    case "--port":
+                        port = Integer.parseInt(args[++i]);
+                        break;
+                    case "--host":
+                        host = args[++i];
+                        break;
+                    case "--threads":
+                        threads = Integer.parseInt(args[++i]);
+                        break;
+                    case "--rate":
+                        rate = Double.parseDouble(args[++i]);
+                        break;
+                    case "--burst":
+                        burst = Double.parseDouble(args[++i]);
+                        break;
+                    case "--sessions":
+                        sessions = Integer.parseInt(args[++i]);
+                        break;
+                    case "--max-cells":
+                        cells = Long.parseLong(args[++i]);
+                        break;
+                    case "--idle":
+                        idle = Long.parseLong(args[++i]);
+                        break;
+                    case "--spill":
+                        spill = Paths.get(args[++i]);
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown option " + args[i]);
+                }
+            }
+            if(threads<1){
+                throw new IllegalArgumentException("At least one thread is needed");
+            }
+        } catch(IllegalArgumentException | ArrayIndexOutOfBoundsException ex){
+            System.err.println(ex.getMessage());
+            System.err.print(USAGE);
+            System.exit(2);
+            return;
+        }
+
+        SimulationServer server;
+        try{
+            if(spill==null){
+                spill = Files.createTempDirectory("colonies");
+                spill.toFile().deleteOnExit();
+            } else{
+                Files.createDirectories(spill);
+            }
+            server = new SimulationServer(new InetSocketAddress(host, port), threads, spill);
+            server.setRateLimit(rate, burst!=null ? burst : Math.max(rate, 1));
+            server.setLimits(sessions, cells);
+            server.setIdleTimeout(TimeUnit.SECONDS.toMillis(idle));
+        } catch(IOException | IllegalArgumentException ex){
+            System.err.println(ex.getMessage());
+            System.exit(1);
+            return;
+        }
+        server.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(server::stop));
+        System.err.printf("Serving colonies on http://%s:%d/sessions with %d threads%n",
+                host, server.getPort(), threads);
+    }
+}
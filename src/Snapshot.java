@@ -0,0 +1,59 @@
+package antibioticresistancesimulation;
+
+/** The Snapshot class holds what the GUI needs to show one state of the
+ * colony, so that it never has to read the State while the simulation thread
+ * is updating it.
+ * The Snapshot class contains five variables:
+ * (1) double[][] model: The scaled model of the colony, as exported by 
+ * State.exportModel(double[][]).
+ * (2) long tick: The number of transitions the colony had gone through.
+ * (3) double average: The average GENEXP of the colony.
+ * (4) long sequence: The number of snapshots taken before this one, used to
+ * tell whether a snapshot is new.
+ * (5) ColonyStatistics statistics: A copy of the statistics of the colony, 
+ * including the distribution of its GENEXP.
+ */
+
+public class Snapshot {
+    final double[][] model;
+    long tick;
+    double average;
+    long sequence;
+    final ColonyStatistics statistics = new ColonyStatistics();
+
+    public Snapshot(int rows, int cols){
+        model = new double[rows][cols];
+    }
+
+    /** Fills this snapshot with the current state of COLONY.
+     * @param colony The colony to take the snapshot of.
+     * @param sequence The number of the snapshot.
+     */
+    void capture(State colony, long sequence){
+        colony.exportModel(model);
+        tick = colony.getTick();
+        average = colony.average();
+        statistics.copyFrom(colony.getStatistics());
+        this.sequence = sequence;
+    }
+
+    public double[][] getModel(){
+        return model;
+    }
+
+    public long getTick(){
+        return tick;
+    }
+
+    public double getAverage(){
+        return average;
+    }
+
+    public long getSequence(){
+        return sequence;
+    }
+
+    public ColonyStatistics getStatistics(){
+        return statistics;
+    }
+}
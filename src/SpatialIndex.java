@@ -0,0 +1,333 @@
+package antibioticresistancesimulation;
+
+import java.util.Arrays;
+
+/** The SpatialIndex class answers questions about where the Cells of a colony
+ * are, where the ColonyStatistics only describe the colony as a whole: how
+ * many live Cells there are and what their average GENEXP is within any
+ * rectangle of the grid, and how the resistant Cells, those with a GENEXP of
+ * at least THRESHOLD, are clustered. Two resistant Cells belong to the same
+ * cluster if one can be reached from the other through resistant Cells by
+ * moving up, down, left or right, the directions daughter Cells are spawned
+ * in.
+ *
+ * The index is worked out again in a single pass over the grid the first
+ * time it is queried after the colony changed, so however many queries are
+ * made, the grid is read at most once per transition or dose, and each query
+ * takes constant time. The pass fills in summed-area tables, which hold for
+ * each position the number and sum of levels of the live Cells in the
+ * rectangle between the first position of the grid and it, so the totals of
+ * any rectangle are found from its four corners. It also joins each resistant
+ * Cell with the resistant Cells to its left and above it in a union-find
+ * forest, so the clusters are known as soon as the pass is over, without a
+ * flood fill. A union-find cannot take Cells out again, and most transitions
+ * kill or replace Cells all over the colony, so the forest is rebuilt with
+ * the tables rather than patched.
+ * The SpatialIndex class contains seven variables:
+ * (1) State colony: The colony indexed.
+ * (2) int threshold: The lowest level of the resistant Cells.
+ * (3) long version: The version of the colony the index was worked out for,
+ * see State, or -1 before the first query.
+ * (4) int[] live, long[] sum: The summed-area tables of the number and of the
+ * levels of the live Cells.
+ * (5) int[] parent: The union-find forest. For a resistant Cell, the position
+ * of another Cell of its cluster, or minus the size of the cluster if the
+ * Cell is its root. The other positions are left as they are.
+ * (6) int clusters, int largest: The number of clusters and the number of
+ * Cells of the largest.
+ * (7) int[] sizes: The sizes of all the clusters, largest first, or null
+ * until they are asked for.
+ *
+ * The index holds 16 bytes per position of the grid, eight times as much as
+ * the grid itself. Like the ColonyStatistics, it should only be used by the
+ * thread running the colony.
+ */
+
+public class SpatialIndex {
+    final State colony;
+    final int threshold;
+    long version = -1;
+    final int[] live;
+    final long[] sum;
+    final int[] parent;
+    int clusters;
+    int largest;
+    int[] sizes;
+
+    /** Creates an index of COLONY, with the Cells whose GENEXP is at least
+     * THRESHOLD as resistant Cells.
+     * @param colony The colony.
+     * @param threshold The GENEXP of the least resistant Cells, between 0.1
+     * and 1.0; a THRESHOLD between two levels is rounded up to the next one.
+     */
+    public SpatialIndex(State colony, double threshold){
+        if(!(threshold>=Grid.gene(1) - 1e-9 && threshold<=Grid.gene(Grid.LEVELS) + 1e-9)){
+            throw new IllegalArgumentException("The threshold must be between " + Grid.gene(1)
+                    + " and " + Grid.gene(Grid.LEVELS) + ", got " + threshold);
+        }
+        int level = Grid.level(threshold);
+        if(Grid.gene(level) < threshold - 1e-9){
+            level++;
+        }
+        this.colony = colony;
+        this.threshold = level;
+        int size = colony.grid.size();
+        live = new int[size];
+        sum = new long[size];
+        parent = new int[size];
+    }
+
+    /** Returns the GENEXP of the least resistant Cells.
+     * @return The GENEXP of the THRESHOLD level.
+     */
+    public double getThreshold(){
+        return Grid.gene(threshold);
+    }
+
+    /** Returns the number of live Cells in a rectangle of the grid.
+     * @param row The first row of the rectangle.
+     * @param col The first column of the rectangle.
+     * @param rows The number of rows of the rectangle.
+     * @param cols The number of columns of the rectangle.
+     * @return The number of live Cells in the rectangle.
+     */
+    public long liveCells(int row, int col, int rows, int cols){
+        checkRectangle(row, col, rows, cols);
+        refresh();
+        return total(live, row, col, rows, cols);
+    }
+
+    /** Returns the average GENEXP of the live Cells in a rectangle of the
+     * grid, like State.average() does for the whole colony.
+     * @param row The first row of the rectangle.
+     * @param col The first column of the rectangle.
+     * @param rows The number of rows of the rectangle.
+     * @param cols The number of columns of the rectangle.
+     * @return The average GENEXP, rounded to three decimal points, or 0 if
+     * there are no live Cells in the rectangle.
+     */
+    public double average(int row, int col, int rows, int cols){
+        checkRectangle(row, col, rows, cols);
+        refresh();
+        long count = total(live, row, col, rows, cols);
+        if(count==0){
+            return 0.0;
+        }
+        // The GENEXP of a Cell of level l is (l+1)/20.
+        double mean = (total(sum, row, col, rows, cols) + count)/(20.0*count);
+        return Math.floor(mean*1000)/1000;
+    }
+
+    /** Returns the number of clusters of resistant Cells.
+     * @return The number of clusters.
+     */
+    public int clusters(){
+        refresh();
+        return clusters;
+    }
+
+    /** Returns the size of the largest cluster of resistant Cells.
+     * @return The number of Cells of the largest cluster, or 0 if there are
+     * no resistant Cells.
+     */
+    public int largestCluster(){
+        refresh();
+        return largest;
+    }
+
+    /** Returns the size of the cluster a position belongs to.
+     * @param row Row index of the position
+     * @param col Col index of the position
+     * @return The number of Cells of the cluster, or 0 if the position does
+     * not hold a resistant Cell.
+     */
+    public int clusterSize(int row, int col){
+        checkRectangle(row, col, 1, 1);
+        refresh();
+        int k = colony.grid.index(row, col);
+        if(colony.grid.level[k]<threshold){
+            return 0;
+        }
+        return -parent[find(k)];
+    }
+
+    /** Returns the sizes of all the clusters of resistant Cells. They are
+     * collected in a pass over the grid the first time they are asked for
+     * after the colony changed.
+     * @return The number of Cells of each cluster, largest first.
+     */
+    public int[] clusterSizes(){
+        refresh();
+        if(sizes==null){
+            byte[] level = colony.grid.level;
+            int[] found = new int[clusters];
+            int count = 0;
+            for(int k=0; k<level.length; k++){
+                if(level[k]>=threshold && parent[k]<0){
+                    found[count++] = parent[k];
+                }
+            }
+            // The sizes are negative, so sorting them puts the largest first.
+            Arrays.sort(found);
+            for(int i=0; i<count; i++){
+                found[i] = -found[i];
+            }
+            sizes = found;
+        }
+        return sizes.clone();
+    }
+
+    /** Works out the index again if the colony changed since it was last
+     * worked out.
+     */
+    void refresh(){
+        if(version==colony.version){
+            return;
+        }
+        Grid grid = colony.grid;
+        byte[] level = grid.level;
+        int width = grid.width;
+        int height = grid.height;
+        int resistant = threshold;
+        clusters = 0;
+        largest = 0;
+        sizes = null;
+
+        for(int i=0; i<height; i++){
+            int k = i*width;
+            int above = i>0 ? k - width : -1;
+            int rowLive = 0;
+            long rowSum = 0;
+            // The root of the cluster of the run of resistant Cells the last
+            // position belongs to.
+            int root = -1;
+            boolean left = false;
+            boolean aboveLeft = false;
+            for(int j=0; j<width; j++, k++){
+                int l = level[k];
+                // L is never negative, so -L is negative exactly for live Cells.
+                rowLive += (-l) >>> 31;
+                rowSum += l;
+                boolean up = false;
+                if(above>=0){
+                    live[k] = live[above] + rowLive;
+                    sum[k] = sum[above] + rowSum;
+                    up = level[above++]>=resistant;
+                } else{
+                    live[k] = rowLive;
+                    sum[k] = rowSum;
+                }
+                boolean resistantCell = l>=resistant;
+                if(resistantCell){
+                    if(left){
+                        // A run of resistant Cells is one cluster: the Cell is
+                        // hung straight under its root, without a find().
+                        parent[k] = root;
+                        parent[root]--;
+                        largest = Math.max(largest, -parent[root]);
+                    } else{
+                        parent[k] = -1;
+                        root = k;
+                        clusters++;
+                        largest = Math.max(largest, 1);
+                    }
+                    // If the Cells to the left and above left are resistant, 
+                    // the Cell above is already in the cluster of the run.
+                    if(up && !(left && aboveLeft)){
+                        root = union(k - width, root);
+                    }
+                }
+                left = resistantCell;
+                aboveLeft = up;
+            }
+        }
+        version = colony.version;
+    }
+
+    /** Returns the root of the cluster of position K, halving the path to it
+     * on the way, so that the trees of the forest stay shallow.
+     */
+    private int find(int k){
+        while(parent[k]>=0){
+            int p = parent[k];
+            if(parent[p]<0){
+                return p;
+            }
+            parent[k] = parent[p];
+            k = parent[p];
+        }
+        return k;
+    }
+
+    /** Joins the cluster of position K with the cluster whose root is ROOT,
+     * hanging the smaller tree under the root of the larger one.
+     * @return The root of the joined cluster.
+     */
+    private int union(int k, int root){
+        int other = find(k);
+        if(other==root){
+            return root;
+        }
+        if(parent[other]<parent[root]){
+            int r = other;
+            other = root;
+            root = r;
+        }
+        parent[root] += parent[other];
+        parent[other] = root;
+        clusters--;
+        largest = Math.max(largest, -parent[root]);
+        return root;
+    }
+
+    /** Returns the total of TABLE over a rectangle, from the summed-area
+     * table at its four corners.
+     */
+    private long total(int[] table, int row, int col, int rows, int cols){
+        int width = colony.grid.width;
+        int bottom = (row + rows - 1)*width;
+        int right = col + cols - 1;
+        long total = table[bottom + right];
+        if(row>0){
+            total -= table[(row-1)*width + right];
+        }
+        if(col>0){
+            total -= table[bottom + col-1];
+            if(row>0){
+                total += table[(row-1)*width + col-1];
+            }
+        }
+        return total;
+    }
+
+    /** Returns the total of TABLE over a rectangle, as total(int[], ...). */
+    private long total(long[] table, int row, int col, int rows, int cols){
+        int width = colony.grid.width;
+        int bottom = (row + rows - 1)*width;
+        int right = col + cols - 1;
+        long total = table[bottom + right];
+        if(row>0){
+            total -= table[(row-1)*width + right];
+        }
+        if(col>0){
+            total -= table[bottom + col-1];
+            if(row>0){
+                total += table[(row-1)*width + col-1];
+            }
+        }
+        return total;
+    }
+
+    /** Checks that a rectangle is not empty and lies within the grid.
+     * @throws IllegalArgumentException If it does not.
+     */
+    private void checkRectangle(int row, int col, int rows, int cols){
+        Grid grid = colony.grid;
+        if(row<0 || col<0 || rows<1 || cols<1 || rows>grid.height - row
+                || cols>grid.width - col){
+            throw new IllegalArgumentException("The rectangle of " + rows + "x" + cols
+                    + " positions at " + row + "," + col + " is not within the "
+                    + grid.width + "x" + grid.height + " grid");
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package antibioticresistancesimulation;
+
+/** The SplitMix64 class is a fast, seedable RandomSource based on the
+ * SplitMix64 algorithm of Steele, Lea and Flood. Its whole state is a single
+ * long that advances by a fixed odd GAMMA on every step, which makes it cheap
+ * to split (a new source seeded from the next output) and to jump ahead by
+ * any number of steps.
+ */
+
+public class SplitMix64 implements RandomSource {
+    static final long GAMMA = 0x9E3779B97F4A7C15L;
+
+    long state;
+
+    public SplitMix64(long seed){
+        state = seed;
+    }
+
+    @Override
+    public long nextLong(){
+        state += GAMMA;
+        return mix(state);
+    }
+
+    @Override
+    public SplitMix64 split(){
+        return new SplitMix64(nextLong());
+    }
+
+    /** Advances the sequence by STEPS values without generating them.
+     * @param steps The number of values to skip.
+     */
+    public void jump(long steps){
+        state += steps * GAMMA;
+    }
+
+    /** Scrambles a 64-bit value with the SplitMix64 finalizer.
+     * @param z The value to scramble.
+     * @return The scrambled value.
+     */
+    static long mix(long z){
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+}
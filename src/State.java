@@ -1,33 +1,288 @@
 package antibioticresistancesimulation;
 
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Consumer;
+
 /** The State class contains information about the current state of the 
  * bacteria colony we are working with as well as different methods that 
  * we can use to affect the state of the colony. 
- * The State class contains three variables:
- * (1) Cell[][] state: A 2-D array of Cell objects. This array contains the 
- * information about the current state of the bacteria colony.
- * (2) Cell[][] change: A 2-D array of same size to store the temporary state of
- * the bacteria colony in between transitions. 
- * (3) int dimension: The dimension of the square grid/array we are working with.
- * The default is set to = 25. Currently, this default size cannot be modified.
+ * The State class contains seventeen variables:
+ * (1) Grid grid: The flat byte arrays holding the gene expression level of
+ * every position of both the current state of the bacteria colony and the 
+ * temporary state of the colony in between transitions. 
+ * (2) int width: The number of columns of the grid we are working with.
+ * (3) int height: The number of rows of the grid we are working with.
+ * The default is a square grid of 25x25. Any size from 2x2 up to 
+ * Grid.MAX_SIZE positions (e.g. 10000x10000) can be requested.
+ * (4) Neighbors neighbors: The tables used to choose random neighbors.
+ * (5) ParallelEngine parallel: The engine performing the transitions on 
+ * several cores, or null to use the sequential scan of updateState().
+ * (6) long seed: The seed of the random decisions.
+ * (7) RandomSource random: The source of the random decisions of the 
+ * sequential scan, seeded with SEED.
+ * (8) long tick: The number of transitions since the last randomStart().
+ * (9) long doses: The number of doses applied since the last randomStart().
+ * (10) ColonyStatistics statistics: Running aggregates of the live Cells, 
+ * updated as Cells are born, die or are replaced.
+ * (11) Frontier frontier: The tiles of the grid holding live Cells, used by
+ * the sequential scan to skip the empty regions of the grid, or null to scan
+ * all of it.
+ * (12) int mutationStep: The number of levels (of 0.05 GENEXP each) a 
+ * mutation moves the GENEXP of a daughter Cell by. The default is 1.
+ * (13) long[] draws, long[] killed: The random numbers of the positions being
+ * dosed, generated DOSE_CHUNK at a time, and the number of Cells the dose 
+ * killed at each level.
+ * (14) Metrics metrics: The counters of what the colony did, for JMX clients,
+ * updated along with the TickEvents and DoseEvents for the Flight Recorder.
+ * (15) long version: The number of times the colony was changed, by which a
+ * SpatialIndex tells whether it is out of date.
+ * (16) AntibioticField[] fields: The antibiotics of each type given at a spot
+ * by doseAt(), which spread and kill Cells after every transition, or null 
+ * for the types never given that way; see fieldIndex(). FIELDDEATHS counts 
+ * the Cells they killed.
+ * (17) CellEvents events, Lineage lineage: Where the births and deaths of
+ * the Cells go, or null. While either is in use, they are recorded into
+ * RECORDED, and handed to PUBLISHER whenever it fills up.
  */
 
 public class State {
-    Cell[][] state;
-    Cell[][] change;
-    int dimension;
+    /** The height and width of the tiles tracked by the sequential scan. */
+    static final int FRONTIER_TILE = 64;
+    
+    /** The number of positions dosed with one batch of random numbers. */
+    static final int DOSE_CHUNK = 1024;
+    
+    /** The types of antibiotics that can be given at a spot. */
+    static final String FIELD_TYPES = "bw";
+    
+    /** The value exported for each level of the Grid: the GENEXP rounded to 
+     * three decimal places and subtracted from 1. */
+    static final double[] SHADES = new double[Grid.LEVELS+1];
+    
+    /** For each type of antibiotics, the threshold above which a random 
+     * 53-bit integer kills a Cell of each level (see killed()). */
+    static final long[] BLACK_THRESHOLDS = thresholds('b');
+    static final long[] WHITE_THRESHOLDS = thresholds('w');
+    static final long[] NO_THRESHOLDS = thresholds(' ');
+    static {
+        for(int l=0; l<=Grid.LEVELS; l++){
+            SHADES[l] = Math.abs(1.0-(Math.floor(Grid.gene(l)*1000)/1000));
+        }
+        // Loading the first event loads the Flight Recorder classes, which
+        // takes a good fraction of a second: it is done here rather than in 
+        // the first transition or dose, whose time is measured.
+        new TickEvent();
+        new DoseEvent();
+    }
+    
+    Grid grid;
+    int width;
+    int height;
+    Neighbors neighbors;
+    ParallelEngine parallel;
+    long seed = System.nanoTime();
+    RandomSource random = new SplitMix64(seed);
+    long tick;
+    long doses;
+    final ColonyStatistics statistics = new ColonyStatistics();
+    Frontier frontier;
+    int mutationStep = 1;
+    final long[] draws = new long[DOSE_CHUNK];
+    final long[] killed = new long[Grid.LEVELS+1];
+    final Metrics metrics = new Metrics();
+    long version;
+    final AntibioticField[] fields = new AntibioticField[FIELD_TYPES.length()];
+    double fieldDiffusion = 0.2;
+    double fieldDecay = 0.01;
+    long fieldDeaths;
+    CellEvents events;
+    Lineage lineage;
+    CellEvents.Buffer recorded;
+    CellEvents.Buffer buffer;
+    final Consumer<CellEvents.Buffer> publisher = this::publish;
     
     public State(){
-        dimension = 25;
-        state = new Cell[dimension][dimension];
-        change = new Cell[dimension][dimension];
+        this(25);
+    }
+    
+    public State(int dimension){
+        this(dimension, dimension);
+    }
+    
+    public State(int width, int height){
+        this.width = width;
+        this.height = height;
+        grid = new Grid(width, height);
+        neighbors = new Neighbors(width, height);
+        frontier = new Frontier(grid, FRONTIER_TILE, FRONTIER_TILE);
+    }
+    
+    public int getWidth(){
+        return width;
+    }
+    
+    public int getHeight(){
+        return height;
+    }
+    
+    public long getTick(){
+        return tick;
+    }
+    
+    /** Returns the counters of what the colony did, which can be registered
+     * with JMX through Metrics.register().
+     * @return The metrics of the colony.
+     */
+    public Metrics getMetrics(){
+        return metrics;
+    }
+    
+    /** Sets the stream the births, mutations and deaths of the Cells are 
+     * published to. They are only recorded while it has subscribers, and 
+     * the ParallelEngine then performs the transitions one at a time (see
+     * advance()).
+     * @param events The stream, or null to stop publishing.
+     */
+    public void setEvents(CellEvents events){
+        this.events = events;
+    }
+    
+    public CellEvents getEvents(){
+        return events;
+    }
+    
+    /** Starts keeping the genealogy of the colony, with its live Cells as 
+     * the founders, unless it is kept already. It is kept from the same 
+     * events as the CellEvents publish, so the ParallelEngine performs the
+     * transitions one at a time while it is. randomStart() and a restored
+     * checkpoint start it again from their Cells.
+     * @return The genealogy.
+     */
+    public Lineage trackLineage(){
+        if(lineage==null){
+            lineage = new Lineage(this);
+        }
+        return lineage;
+    }
+    
+    /** Stops keeping the genealogy of the colony. */
+    public void stopTrackingLineage(){
+        lineage = null;
+    }
+    
+    /** Returns the genealogy of the colony.
+     * @return The genealogy, or null if it is not kept.
+     */
+    public Lineage getLineage(){
+        return lineage;
+    }
+    
+    /** Returns the running aggregates of the live Cells of the colony. They 
+     * are kept up to date by every method changing the colony, and should 
+     * only be read by the thread running the colony.
+     * @return The statistics of the colony.
+     */
+    public ColonyStatistics getStatistics(){
+        return statistics;
+    }
+    
+    /** Sets the seed of all the random decisions made by the State, and 
+     * restarts the RandomSource of the sequential scan from that seed.
+     * @param seed The seed. The same seed always produces the same colony.
+     */
+    public void setSeed(long seed){
+        this.seed = seed;
+        random = new SplitMix64(seed);
+    }
+    
+    /** Replaces the RandomSource of the sequential scan, e.g. with a source
+     * split off another State's.
+     * @param random The new RandomSource.
+     */
+    public void setRandomSource(RandomSource random){
+        this.random = random;
+    }
+    
+    /** Sets how far a mutation moves the GENEXP of a daughter Cell.
+     * @param levels The number of levels, of 0.05 GENEXP each, between 1 and
+     * Grid.LEVELS-1.
+     */
+    public void setMutationStep(int levels){
+        if(levels<1 || levels>=Grid.LEVELS){
+            throw new IllegalArgumentException("The mutation step must be between 1 and "
+                    + (Grid.LEVELS-1) + " levels, got " + levels);
+        }
+        mutationStep = levels;
+        if(parallel!=null){
+            parallel.mutationStep = levels;
+        }
+    }
+    
+    /** Performs the following transitions with a ParallelEngine running on 
+     * the common ForkJoinPool.
+     */
+    public void useParallelEngine(){
+        useParallelEngine(ForkJoinPool.commonPool());
+    }
+    
+    /** Performs the following transitions with a ParallelEngine running on 
+     * POOL. The result of the transitions does not depend on the parallelism
+     * of POOL, only on the seed.
+     * @param pool The pool running the tasks of the engine.
+     */
+    public void useParallelEngine(ForkJoinPool pool){
+        parallel = new ParallelEngine(grid, pool, statistics);
+        parallel.mutationStep = mutationStep;
+        if(frontier!=null){
+            parallel.frontier = new Frontier(grid, ParallelEngine.TILE_HEIGHT, 
+                    ParallelEngine.TILE_WIDTH);
+        }
+    }
+    
+    /** Performs the following transitions with the sequential scan of 
+     * updateState().
+     */
+    public void useSequentialEngine(){
+        parallel = null;
+        if(frontier!=null){
+            frontier.rebuild();
+        }
+    }
+    
+    /** Chooses whether the engines keep track of the parts of the grid 
+     * holding live Cells, and skip the rest. This is on by default: the cost
+     * of a transition then grows with the size of the colony rather than the
+     * size of the grid, until the colony covers so much of the grid that the
+     * engines switch back to scanning all of it. The colony evolves exactly 
+     * the same way either way.
+     * @param sparse True to skip the empty regions of the grid.
+     */
+    public void setSparse(boolean sparse){
+        if(!sparse){
+            frontier = null;
+        } else if(frontier==null){
+            frontier = new Frontier(grid, FRONTIER_TILE, FRONTIER_TILE);
+        }
+        if(parallel!=null){
+            parallel.frontier = !sparse ? null : new Frontier(grid, 
+                    ParallelEngine.TILE_HEIGHT, ParallelEngine.TILE_WIDTH);
+        }
+    }
+    
+    /** Returns the tiles tracked by the engine in use.
+     * @return The Frontier of the engine, or null if the whole grid is 
+     * scanned.
+     */
+    public Frontier getFrontier(){
+        return parallel!=null ? parallel.frontier : frontier;
     }
     
     
     /** Exports the current STATE of the colony .
      * The method traverses through each of the Cells in the STATE. For each 
      * Cell, the GENEXP is rounded to three decimal places. It is then 
-     * subtracted from 1. 
+     * subtracted from 1. As there are only a few levels of GENEXP, the result
+     * for each of them is looked up in SHADES. 
      * 
      * (This subtraction is not a necessary step. The graphics painter paints 1 
      * as white and 0 as black, while I wanted the opposite to be true, so that
@@ -39,35 +294,115 @@ public class State {
      * of the bacteria colony.
      */
     public double[][] exportModel(){
-       double[][] model = new double[dimension][dimension];
+       return exportModel(height, width);
+   }
+    
+    /** Exports a scaled view of the current STATE of the colony, ROWS by COLS
+     * in size. Each position of the view shows the Cell at the corresponding
+     * position of the grid (nearest neighbor sampling), so that the view of a
+     * large colony stays small no matter how big the grid is. The values are
+     * computed the same way as in exportModel().
+     * 
+     * @param rows Number of rows of the view, at most HEIGHT.
+     * @param cols Number of columns of the view, at most WIDTH.
+     * @return The scaled MODEL of the current STATE of the bacteria colony.
+     */
+    public double[][] exportModel(int rows, int cols){
+       double[][] model = new double[rows][cols];
+       exportModel(model);
+       return model;
+   }
+    
+    /** Exports a scaled view of the current STATE of the colony into an 
+     * existing MODEL, the same way as exportModel(int, int) does, so that 
+     * the same array can be reused for every frame.
+     * 
+     * @param model The array to fill. Its size determines the size of the 
+     * view, at most HEIGHT rows by WIDTH columns.
+     */
+    public void exportModel(double[][] model){
+       exportModel(grid.level, width, height, model);
+   }
+    
+    /** Exports a scaled view of the levels of a WIDTH x HEIGHT grid into 
+     * MODEL, as exportModel(double[][]) does for the current STATE. Used to 
+     * show grids that are not held by a State, e.g. the frames of a 
+     * Recording.
+     */
+    static void exportModel(byte[] level, int width, int height, double[][] model){
+       int rows = model.length;
+       int cols = rows==0 ? 0 : model[0].length;
        
-       for(int i=0; i<dimension; i++){
-           for(int j=0; j<dimension; j++){
-               model[i][j]=Math.abs(1.0-(Math.floor(state[i][j].genexp*1000)/1000));
+       if(cols==width){
+           // Every position of a row is shown: map the whole row at once.
+           Kernels kernels = Kernels.get();
+           for(int i=0; i<rows; i++){
+               int row = (int)((long)i*height/rows);
+               kernels.shades(level, row*width, model[i], cols);
+           }
+           return;
+       }
+       for(int i=0; i<rows; i++){
+           int row = (int)((long)i*height/rows);
+           double[] line = model[i];
+           // Step through the columns j*WIDTH/COLS without dividing: COL 
+           // grows by WIDTH/COLS, plus one whenever the remainder wraps.
+           int step = width/cols;
+           int excess = width%cols;
+           int col = row*width;
+           int remainder = 0;
+           for(int j=0; j<cols; j++){
+               line[j]=SHADES[level[col]];
+               col += step;
+               remainder += excess;
+               if(remainder>=cols){
+                   remainder -= cols;
+                   col++;
+               }
            }
        }
-       return model;
    }
  
-    /** Calculates and returns the average GENEXP of the Colony.
-     * @return The average GENEXP (gene expression level) of the live Cells
-     * within the colony, rounded to three decimal points.
+    /** Works out everything that is derived from the grid again, after the 
+     * grid was overwritten, e.g. by Checkpoint.restore(). The antibiotics 
+     * given at a spot are not part of the grid, and are removed.
      */
-    public double average(){
-        double sum=0;
-        int counter=0;
-        
-        for(int i=0; i<dimension; i++){
-            for(int j=0; j<dimension; j++){
-                if(state[i][j].genexp>0){
-                    // Count the number of alive Cells (denominator)
-                    counter++; 
-                }
-                // Calculate the sum of all the GENEXP (numerator)
-                sum+= state[i][j].genexp;
+    void restored(){
+        version++;
+        clearAntibiotics();
+        byte[] level = grid.level;
+        statistics.reset();
+        for(int k=0; k<level.length; k++){
+            if(level[k]!=0){
+                statistics.add(level[k]);
             }
         }
-        return Math.floor(sum/counter*1000)/1000; 
+        if(frontier!=null){
+            frontier.rebuild();
+        }
+        if(parallel!=null && parallel.frontier!=null){
+            parallel.frontier.rebuild();
+        }
+        if(lineage!=null){
+            lineage.reset();
+        }
+    }
+    
+    /** Returns the average GENEXP of the Colony, read from the running 
+     * STATISTICS instead of rescanning the grid.
+     * @return The average GENEXP (gene expression level) of the live Cells
+     * within the colony, rounded to three decimal points, or 0 if there are
+     * no live Cells.
+     */
+    public double average(){
+        return Math.floor(statistics.getMean()*1000)/1000; 
+    }
+   
+    /** Returns the number of live Cells of the colony.
+     * @return The number of positions holding a live Cell.
+     */
+    public long liveCells(){
+        return statistics.getLive();
     }
    
     /** Triggers the start of the simulation by spawning a Cell at a random
@@ -76,71 +411,265 @@ public class State {
      */
     public void randomStart(){
         // Reset both the STATE and CHANGE arrays.
-        for(int i=0; i<dimension; i++) {
-            for(int j=0; j<dimension; j++){
-                Cell cell = new Cell();
-                state[i][j] = cell;
-                change[i][j] = cell;
-            }
-        }
+        grid.clear();
         
         // Spawn a Cell with GENEXP 0.1 at a random position of the Grid.
-        state[randomNumber(dimension-1)][randomNumber(dimension-1)].genexp=0.1;
-        state[randomNumber(dimension-1)][randomNumber(dimension-1)].age = 1;   
+        int row = randomNumber(height-1);
+        int col = randomNumber(width-1);
+        int k = grid.index(row, col);
+        grid.level[k] = 1;
+        tick = 0;
+        doses = 0;
+        version++;
+        clearAntibiotics();
+        statistics.reset();
+        statistics.add(1);
+        if(frontier!=null){
+            frontier.start(row, col);
+        }
+        if(parallel!=null && parallel.frontier!=null){
+            parallel.frontier.start(row, col);
+        }
+        if(lineage!=null){
+            lineage.reset();
+        }
+        metrics.restart(statistics);
     }
     
-    /** Updates the STATE of the bacteria colony. 
+    /** Updates the STATE of the bacteria colony, and records how long it took
+     * and how many Cells were born in the METRICS and in a TickEvent.
      */
     public void updateState(){
-        int[] coord; 
+        advance(1);
+    }
+    
+    /** Performs COUNT transitions of the colony, as COUNT calls of 
+     * updateState() would. The ParallelEngine fuses several transitions into
+     * each pass over the grid (see ParallelEngine.advance()), which makes a 
+     * long run without doses several times faster, unless antibiotics given
+     * at a spot have to be spread after each of them, or the births and
+     * deaths of the Cells are recorded for the CellEvents or the Lineage.
+     * The sequential scan makes its random decisions in the order it visits
+     * the positions, so it still performs the transitions one at a time. The
+     * METRICS and the TickEvent record the COUNT transitions together.
+     * @param count The number of transitions.
+     */
+    public void advance(long count){
+        if(count<=0){
+            return;
+        }
+        version++;
+        TickEvent event = new TickEvent();
+        event.begin();
+        long start = System.nanoTime();
+        long born = statistics.born;
+        long removed = statistics.removed;
+        long deathsBefore = fieldDeaths;
+        boolean recording = startRecording();
+        
+        if(parallel!=null && !hasAntibiotics() && !recording){
+            parallel.advance(seed, tick, count);
+            tick += count;
+        } else{
+            for(long i=0; i<count; i++){
+                transition();
+                spreadAntibiotics();
+                if(recorded!=null){
+                    publish(recorded);
+                }
+            }
+        }
+        
+        long births = statistics.born - born;
+        long fieldKilled = fieldDeaths - deathsBefore;
+        long replacements = statistics.removed - removed - fieldKilled;
+        metrics.tick(count, System.nanoTime() - start, births, replacements, fieldKilled, 
+                statistics);
+        if(event.shouldCommit()){
+            event.tick = tick;
+            event.transitions = count;
+            event.births = births;
+            event.replacements = replacements;
+            event.fieldDeaths = fieldKilled;
+            event.live = statistics.getLive();
+            event.mean = statistics.getMean();
+            event.commit();
+        }
+    }
+    
+    /** Performs up to COUNT transitions like advance(long), but stops early 
+     * once the colony reaches a tick at which SCHEDULE has a dose due, so 
+     * that the dose can be applied before the next transition.
+     * @param count The most transitions to perform.
+     * @param schedule The doses to stop at.
+     * @return The number of transitions performed.
+     */
+    public long advance(long count, DoseSchedule schedule){
+        count = Math.min(count, schedule.nextDose(tick+1) - tick);
+        advance(count);
+        return Math.max(count, 0);
+    }
+    
+    /** Performs a transition with the engine in use. */
+    private void transition(){
+        if(recorded!=null){
+            recorded.add(CellEvents.tick(tick + 1));
+        }
+        if(parallel!=null){
+            // The events of the engine come after the TICK.
+            if(recorded!=null){
+                publish(recorded);
+            }
+            // A single transition still runs faster, row by row, in advance().
+            parallel.advance(seed, tick++, 1);
+            return;
+        }
+        tick++;
+        if(frontier!=null && !frontier.isSaturated()){
+            updateOccupied();
+            return;
+        }
+        
+        // Empty the temporary state holder CHANGE before filling it.
+        grid.clearNext();
         
         /* Iterate through all the table cells of STATE and determines what kind
         of Cell should be in the same position in the updated STATE. */
-        for (int i = 0; i < dimension; i++) {
-            for (int j = 0; j <dimension; j++) {
-                if(change[i][j].age!=0){
-                    /* If the CHANGE cell of this position is already filled, 
-                    skip this position. This is to avoid overwriting table cells
-                    in CHANGE that has spawned a new Cell from a previous Cell 
-                    in STATE with a dead Cell (to maintain the dead-ness of a 
-                    Cell in STATE). */ 
-                } else if(state[i][j].age!=0 ){
-                    /* If there is a Cell in position i,j of STATE, choose a 
-                    random neighbor and spawn a new Cell in that random neighbor.
-                    Relay both the parent and daughter Cell information to CHANGE.
-                    */
-                    change[i][j].genexp = state[i][j].genexp;
-                    change[i][j].age = state[i][j].age+1;
-                    coord=randomNeighbor(i,j);
-                    change[coord[0]][coord[1]].genexp = spawn(state[i][j].genexp);
-                    change[coord[0]][coord[1]].age = 1;
-                } else if(state[i][j].age==0){
-                    /* If there are no Cell in position i,j of STATE, maintain 
-                    the no-Cellness or dead-ness of the table cell in CHANGE. 
-                    */
-                    change[i][j].genexp=0.0;
-                    change[i][j].age=0;
-                } else{
-                    // In case there are missing cases, originally placed to 
-                    // implement a more complicated usage of age. 
-                    change[i][j].genexp = state[i][j].genexp;
-                    change[i][j].age = state[i][j].age+1;
-                } 
+        for (int i = 0; i < height; i++) {
+            scan(i, 0, width, null);
+        }
+        // The temporary state holder CHANGE is filled. Swap it with STATE, so 
+        // the old STATE buffers are reused as the next CHANGE.
+        grid.swap();
+    }
+    
+    /** Sets RECORDED to BUFFER if the LINEAGE is kept or anyone subscribes
+     * to the EVENTS, and to null otherwise, and lets the ParallelEngine know.
+     * @return Whether the events are recorded.
+     */
+    private boolean startRecording(){
+        recorded = null;
+        if(lineage!=null || (events!=null && events.isActive())){
+            if(buffer==null){
+                buffer = new CellEvents.Buffer(CellEvents.BATCH, publisher);
             }
+            recorded = buffer;
+        }
+        if(parallel!=null){
+            parallel.record(recorded!=null ? publisher : null);
+        }
+        return recorded!=null;
+    }
+    
+    /** Hands the events recorded in BATCH to the LINEAGE, then publishes 
+     * them to the subscribers of the EVENTS, if any, and empties BATCH.
+     */
+    private void publish(CellEvents.Buffer batch){
+        if(lineage!=null){
+            lineage.record(batch);
+        }
+        if(events!=null && events.isActive()){
+            events.publish(batch);
         }
-        // The temporary state holder CHANGE is filled. Update the STATE using 
-        // CHANGE, then reset CHANGE.
-        state = change;
+        batch.size = 0;
+    }
+    
+    /** Updates the STATE of the bacteria colony, visiting only the tiles of
+     * the FRONTIER that may hold live Cells. They are visited in the same 
+     * order as by the full scan, row by row, so the random decisions and 
+     * hence the resulting colony are exactly the same. The tiles left out 
+     * hold no live Cells, so all they could receive are daughter Cells, 
+     * which are written by their parents.
+     */
+    void updateOccupied(){
+        Frontier f = frontier;
+        int[] cols = f.columns;
+        int tileHeight = 1 << f.rowShift;
+        int tileWidth = 1 << f.colShift;
+        
+        // Empty the leftovers of the previous STATE in CHANGE.
+        f.clearNext();
         
-        change = new Cell[dimension][dimension];
-        for(int i=0; i<dimension; i++) {
-            for(int j=0; j<dimension; j++){
-                Cell cell = new Cell();
-                change[i][j] = cell;
+        for(int tileRow=0; tileRow<f.tileRows; tileRow++){
+            int count = 0;
+            for(int tileCol=0; tileCol<f.tileCols; tileCol++){
+                if(f.occupied[tileRow*f.tileCols + tileCol]){
+                    cols[count++] = tileCol*tileWidth;
+                }
+            }
+            int rowEnd = Math.min((tileRow+1)*tileHeight, height);
+            for(int i=tileRow*tileHeight; i<rowEnd && count>0; i++){
+                for(int c=0; c<count; c++){
+                    scan(i, cols[c], Math.min(cols[c] + tileWidth, width), f);
+                }
             }
         }
+        grid.swap();
+        f.swap();
     }
     
+    /** Determines the next state of columns FROM to TO of ROW and writes it
+     * into CHANGE, along with the daughter Cells of the live Cells found.
+     * @param tracked The Frontier to record the live Cells of CHANGE in, or
+     * null.
+     */
+    private void scan(int i, int from, int to, Frontier tracked){
+        byte[] level = grid.level;
+        byte[] nextLevel = grid.nextLevel;
+        ColonyStatistics stats = statistics;
+        int rowClass = neighbors.rowClass(i);
+        int k, n, valid, choice, daughter;
+        
+        for (int j = from; j <to; j++) {
+            k = i*width + j;
+            if(nextLevel[k]!=0){
+                /* If the CHANGE cell of this position is already filled, 
+                skip this position. This is to avoid overwriting table cells
+                in CHANGE that has spawned a new Cell from a previous Cell 
+                in STATE with a dead Cell (to maintain the dead-ness of a 
+                Cell in STATE). A live Cell of STATE at this position has 
+                been replaced by the daughter Cell. */ 
+                if(level[k]!=0){
+                    stats.remove(level[k]);
+                }
+            } else if(level[k]!=0){
+                /* If there is a Cell in position i,j of STATE, choose a 
+                random neighbor and spawn a new Cell in that random neighbor.
+                Relay both the parent and daughter Cell information to CHANGE.
+                */
+                nextLevel[k] = level[k];
+                valid = rowClass | neighbors.colClass(j);
+                choice = random.nextInt(Neighbors.count(valid));
+                n = neighbors.neighbor(k, valid, choice);
+                daughter = spawnLevel(level[k]);
+                if(recorded!=null){
+                    // A live Cell of STATE at a position not visited yet is
+                    // replaced too, see above.
+                    recorded.add(CellEvents.birth(n, Neighbors.direction(valid, choice), level[k],
+                            daughter, nextLevel[n]!=0 ? nextLevel[n] : level[n]));
+                }
+                // The daughter Cell replaces whatever was relayed or 
+                // spawned into CHANGE at that position so far.
+                if(nextLevel[n]!=0){
+                    stats.remove(nextLevel[n]);
+                }
+                stats.add(daughter);
+                nextLevel[n] = (byte) daughter;
+                if(tracked!=null){
+                    int d = Neighbors.direction(valid, choice);
+                    tracked.mark(i, j);
+                    tracked.mark(i + Neighbors.ROW_STEPS[d], j + Neighbors.COL_STEPS[d]);
+                }
+            } else{
+                /* If there are no Cell in position i,j of STATE, maintain 
+                the no-Cellness or dead-ness of the table cell in CHANGE. 
+                */
+                nextLevel[k]=0;
+            } 
+        }
+    }
+    
+
     /** Determines the GENEXP (gene expression) to be inherited by the 
      * newly spawning Cell. 
      * 
@@ -148,26 +677,41 @@ public class State {
      * @return The gene expression level of the daughter Cell.
      */
     public double spawn(double gene){
+        return Grid.gene(spawnLevel(Grid.level(gene)));
+    }
+    
+    /** Determines the level of the GENEXP to be inherited by the newly 
+     * spawning Cell, as stored in the Grid. 
+     * 
+     * @param level The level of the parent Cell, between 1 and Grid.LEVELS.
+     * @return The level of the daughter Cell.
+     */
+    int spawnLevel(int level){
         // A random number is generated to choose between three possible outcomes.
         int rand = randomNumber(2)+1;
-        
+        return mutate(level, rand%3, mutationStep);
+    }
+    
+    /** Applies one of the three possible mutation OUTCOMEs to the level of 
+     * the GENEXP of a parent Cell. A level is a step of 0.05 of GENEXP.
+     * 
+     * @param level The level of the parent Cell, between 1 and Grid.LEVELS.
+     * @param outcome 0 to increase, 1 to decrease, 2 to keep the GENEXP.
+     * @param step The number of levels a mutation moves the GENEXP by.
+     * @return The level of the daughter Cell.
+     */
+    static int mutate(int level, int outcome, int step){
         /* In the first case, the gene is passed on with a mutation that increases
-        the gene expression level. */
-        if(rand%3==0){
-            gene += 0.05;
-            if(gene>1){
-                gene=1;
-            }
+        the gene expression level, up to 1.0. */
+        if(outcome==0){
+            return Math.min(level+step, Grid.LEVELS);
         /* In the second case, the gene is passed on with a mutation that decreases
-            the gene expression level.   */
-        } else if(rand%3==1){
-            gene -= 0.05;
-            if(gene<0.1){
-                gene=0.1;
-            }
+            the gene expression level, down to 0.1.   */
+        } else if(outcome==1){
+            return Math.max(level-step, 1);
         } 
         // Otherwise, the gene is passed on without any mutation.
-        return gene;
+        return level;
     }
     
     
@@ -177,138 +721,318 @@ public class State {
      * @return The coordinates of the randomly selected neighbor.
      */
     public int[] randomNeighbor(int row, int col){
-        int[] neighbor = new int[2];
-
-        neighbor[0] = row;
-        neighbor[1] = col;
-        
-        // Generate a random number between 1 and 12. 
-        int rand = randomNumber(11)+1;
-
-        // Based on the random number and the position of the Cell, choose a 
-        // random neighobr of the Cell.  
-        if(row==0 && col==0){  // top left
-            if(rand%2==0){
-                neighbor[0] = 1;
-            } else{
-                neighbor[1] = 1;
-            }   
-        } else if(row==0 && col==(dimension-1)){ // top right
-            if(rand%2==0){
-                neighbor[0] += 1;
-            } else{
-                neighbor[1] -= 1;
-            }            
-        } else if(row==(dimension-1) && col==0){ // bottom left
-            if(rand%2==0){
-                neighbor[0] -= 1;
-            } else{
-                neighbor[1] += 1;
-            }            
-        } else if(row==(dimension-1) && col==(dimension-1)){ // bottom right
-            if(rand%2==0){
-                neighbor[0] -= 1;
-            } else{
-                neighbor[1] -= 1;
-            }            
-        } else if(row==0){ // top edge
-            switch (rand%3) {
-                case 0:
-                    neighbor[0] += 1;
-                    break;
-                case 1:
-                    neighbor[1] -= 1;
-                    break;
-                default:
-                    neighbor[1] += 1;
-                    break;
+        int n = neighborIndex(row, col);
+        return new int[]{n/width, n%width};
+    }
+    
+    /** Selects a random neighbor of a Cell with coordinates ROW and COL 
+     * without allocating a coordinate pair. Each neighbor inside the grid is 
+     * equally likely to be chosen.
+     * @param row Row index of the Cell
+     * @param col Col index of the Cell
+     * @return The grid index of the randomly selected neighbor.
+     */
+    int neighborIndex(int row, int col){
+        int valid = neighbors.boundaryClass(row, col);
+        return neighbors.neighbor(row*width + col, valid, random.nextInt(Neighbors.count(valid)));
+    }
+    
+    /** Doses the colony with antibiotics of type TYPE at a spot of the plate,
+     * as doseAt(char, int, int, double, int) does, with a concentration of 1
+     * over a twentieth of the width or height of the plate, whichever is 
+     * shorter, around ROW, COL.
+     * @param type Type of antibiotic solution used, 'b' or 'w'.
+     * @param row Row index of the center of the spot
+     * @param col Col index of the center of the spot
+     */
+    public void doseAt(char type, int row, int col){
+        doseAt(type, row, col, 1.0, Math.max(1, Math.min(width, height)/20));
+    }
+    
+    /** Doses the colony with antibiotics of type TYPE at a spot of the plate,
+     * centered on ROW, COL. Rather than killing Cells at once, the 
+     * antibiotics then spread over the plate and decay, killing the Cells 
+     * they reach after every transition (see AntibioticField).
+     * @param type Type of antibiotic solution used, 'b' or 'w'.
+     * @param row Row index of the center of the spot
+     * @param col Col index of the center of the spot
+     * @param amount The concentration given, 1 killing as many Cells as 
+     * doseAntibio(TYPE) at the spot.
+     * @param radius The radius of the spot, in positions.
+     */
+    public void doseAt(char type, int row, int col, double amount, int radius){
+        int f = fieldIndex(type);
+        if(fields[f]==null){
+            fields[f] = new AntibioticField(type, width, height);
+            fields[f].setRates(fieldDiffusion, fieldDecay);
+        }
+        fields[f].dose(row, col, amount, radius);
+        version++;
+    }
+    
+    /** Sets how fast the antibiotics given by doseAt() spread and decay, see
+     * AntibioticField.setRates().
+     * @param diffusion The share of its concentration a position passes to
+     * each of its neighbors after each transition, between 0 and 0.25. The
+     * default is 0.2.
+     * @param decay The share of the antibiotics that decays after each 
+     * transition, between 0 and 1. The default is 0.01.
+     */
+    public void setAntibioticRates(double diffusion, double decay){
+        AntibioticField.checkRates(diffusion, decay);
+        fieldDiffusion = diffusion;
+        fieldDecay = decay;
+        for(AntibioticField field : fields){
+            if(field!=null){
+                field.setRates(diffusion, decay);
             }
-        } else if(row==(dimension-1)){ // bottom edge
-            switch (rand%3) {
-                case 0:
-                    neighbor[0] -= 1;
-                    break;
-                case 1:
-                    neighbor[1] -= 1;
-                    break;            
-                default:
-                    neighbor[1] += 1;
-                    break;
+        }
+    }
+    
+    /** Returns the antibiotics of a type given by doseAt().
+     * @param type Type of antibiotic solution, 'b' or 'w'.
+     * @return The field of the antibiotics, or null if none were ever given.
+     */
+    public AntibioticField getAntibiotics(char type){
+        return fields[fieldIndex(type)];
+    }
+    
+    /** Returns the index of the field of TYPE in FIELDS.
+     * @throws IllegalArgumentException If TYPE cannot be given at a spot.
+     */
+    static int fieldIndex(char type){
+        int f = FIELD_TYPES.indexOf(type);
+        if(f<0){
+            throw new IllegalArgumentException("Unknown type of antibiotics " + type);
+        }
+        return f;
+    }
+    
+    /** Returns whether any antibiotics given by doseAt() are left.
+     * @return True if a field is not empty.
+     */
+    boolean hasAntibiotics(){
+        for(AntibioticField field : fields){
+            if(field!=null && !field.isEmpty()){
+                return true;
             }
-        } else if(col==0){ // left edge
-            if(rand%3==0){
-                neighbor[0] += 1;
-            } else if(rand%3==1){
-                neighbor[0] -= 1;
-            } else{
-                neighbor[1] += 1;
-            }            
-        } else if(col==(dimension-1)){ // right edge
-            switch (rand%3) {
-                case 0:
-                    neighbor[0] += 1;
-                    break;
-                case 1:
-                    neighbor[0] -= 1;
-                    break;            
-                default:
-                    neighbor[1] -= 1;
-                    break;
+        }
+        return false;
+    }
+    
+    /** Lets the antibiotics given by doseAt() spread for one step after a
+     * transition, and records the Cells they killed. The fields are stepped
+     * on the pool of the ParallelEngine if there is one, and on the common 
+     * pool otherwise; the result is the same either way.
+     */
+    private void spreadAntibiotics(){
+        ForkJoinPool pool = parallel!=null ? parallel.pool : ForkJoinPool.commonPool();
+        for(AntibioticField field : fields){
+            if(field!=null && !field.isEmpty()){
+                long live = statistics.live;
+                // The rows the step may kill Cells in.
+                int from = Math.max(field.top - 1, 0)*width;
+                int to = Math.min(field.bottom + 1, height)*width;
+                if(recorded!=null){
+                    recorded.snapshot(grid.level, from, to);
+                }
+                field.step(grid.level, seed, tick, pool, killed);
+                if(recorded!=null){
+                    recorded.addDeaths(grid.level, from, to, 0, field.type, true);
+                }
+                statistics.removeKilled(killed);
+                fieldDeaths += live - statistics.live;
             }
-        } else{ // all other remaining cells
-            switch (rand%4) {
-                case 0:
-                    neighbor[0] += 1;
-                    break;
-                case 1:
-                    neighbor[0] -= 1;
-                    break;
-                case 2:
-                    neighbor[1] += 1;
-                    break;
-                default:
-                    neighbor[1] -= 1;
-                    break;
+        }
+    }
+    
+    /** Removes all the antibiotics given by doseAt(). */
+    private void clearAntibiotics(){
+        for(AntibioticField field : fields){
+            if(field!=null){
+                field.clear();
             }
         }
-        return neighbor; 
     }
     
-    /** Doses the colony with an antibiotic solution of type TYPE.
+    /** Doses the colony with an antibiotic solution of type TYPE, and records
+     * how many Cells it killed in the METRICS and in a DoseEvent.
      * @param type Type of antibiotic solution used. 
      */
     public void doseAntibio(char type){
-        for (Cell x[] : state) {
-            for (Cell y : x) {
-                if(type=='b'){ 
-                    /* Antibiotic solution type 1. The higher the gene expression
-                    level of a Cell, the higher the chance of its survival. In 
-                    other words, it is advantageous for the Cell to appear dark.
-                    */
-                    if(Math.random() > y.genexp){
-                        y.genexp = 0.0;
-                        y.age = 0;
-                    }
-                } else if(type=='w'){ 
-                    /* Antibiotic solution type 2. The lower the gene expression
-                    level of a Cell, the higher the chance of its survival. In 
-                    other words, it is advantageous for the Cell to appear light.
-                    */
-                    if(Math.random() > (1-(y.genexp-0.1))){
-                        y.genexp = 0.0;
-                        y.age = 0;
-                    }
+        DoseEvent event = new DoseEvent();
+        event.begin();
+        long live = statistics.getLive();
+        
+        applyDose(type);
+        
+        long dead = live - statistics.getLive();
+        metrics.dose(dead, statistics);
+        if(event.shouldCommit()){
+            event.type = type;
+            event.tick = tick;
+            event.killed = dead;
+            event.live = statistics.getLive();
+            event.mean = statistics.getMean();
+            event.commit();
+        }
+    }
+    
+    /** Applies a dose with the engine in use. */
+    private void applyDose(char type){
+        version++;
+        if(startRecording()){
+            recorded.add(CellEvents.dose(type));
+        }
+        if(parallel!=null){
+            // The events of the engine come after the DOSE.
+            if(recorded!=null){
+                publish(recorded);
+            }
+            parallel.doseAntibio(type, seed, doses++);
+            return;
+        }
+        doses++;
+        
+        if(frontier==null || frontier.isSaturated()){
+            dose(type, 0, grid.size());
+            statistics.removeKilled(killed);
+            if(frontier!=null){
+                // The dose may have thinned the colony out enough to track it
+                // again.
+                frontier.rebuild();
+            }
+            if(recorded!=null){
+                publish(recorded);
+            }
+            return;
+        }
+        // Only the occupied tiles hold Cells to kill. They are visited row by 
+        // row, in the same order as by the full scan.
+        Frontier f = frontier;
+        int tileWidth = 1 << f.colShift;
+        for(int i=0; i<height; i++){
+            int tileRow = (i >> f.rowShift)*f.tileCols;
+            for(int tileCol=0; tileCol<f.tileCols; tileCol++){
+                if(f.occupied[tileRow + tileCol]){
+                    int from = i*width + tileCol*tileWidth;
+                    dose(type, from, Math.min(from + tileWidth, (i+1)*width));
+                }
+            }
+        }
+        statistics.removeKilled(killed);
+        if(recorded!=null){
+            publish(recorded);
+        }
+    }
+    
+    /** Applies a dose of type TYPE to the positions FROM to TO of the grid.
+     * Each live Cell draws a random number, and is killed if it is above the 
+     * threshold of its level. The killed Cells are counted in KILLED, and
+     * recorded in RECORDED if it is set.
+     * 
+     * With a SplitMix64, whose numbers can be generated in any order, the 
+     * numbers of DOSE_CHUNK positions are generated at once by the Kernels,
+     * and the SplitMix64 is then moved past the ones the live Cells used. 
+     */
+    private void dose(char type, int from, int to){
+        byte[] level = grid.level;
+        long[] thresholds = thresholdsOf(type);
+        
+        if(random instanceof SplitMix64){
+            SplitMix64 source = (SplitMix64) random;
+            Kernels kernels = Kernels.get();
+            for(int k=from; k<to; k+=DOSE_CHUNK){
+                int end = Math.min(k + DOSE_CHUNK, to);
+                kernels.splitMix(source.state, draws, end - k);
+                if(recorded!=null){
+                    recorded.snapshot(level, k, end);
+                }
+                source.jump(Kernels.killLive(level, k, end, thresholds, draws, 0, killed));
+                if(recorded!=null){
+                    recorded.addDeaths(level, k, end, 0, type, false);
+                }
+            }
+            return;
+        }
+        for (int k = from; k < to; k++) {
+            if(level[k]!=0 && (random.nextLong() >>> 11) > thresholds[level[k]]){
+                if(recorded!=null){
+                    recorded.add(CellEvents.death(k, level[k], type, false));
                 }
+                killed[level[k]]++;
+                level[k] = 0;
             }
         }
     }    
+    
+    /** Decides whether a Cell is killed by a dose of antibiotics.
+     * @param type Type of antibiotic solution used. 
+     * @param gene The gene expression level of the Cell.
+     * @param random A random number between 0 and 1.
+     * @return True if the Cell dies.
+     */
+    static boolean killed(char type, double gene, double random){
+        if(type=='b'){ 
+            /* Antibiotic solution type 1. The higher the gene expression
+            level of a Cell, the higher the chance of its survival. In 
+            other words, it is advantageous for the Cell to appear dark.
+            */
+            return random > gene;
+        } else if(type=='w'){ 
+            /* Antibiotic solution type 2. The lower the gene expression
+            level of a Cell, the higher the chance of its survival. In 
+            other words, it is advantageous for the Cell to appear light.
+            */
+            return random > (1-(gene-0.1));
+        }
+        return false;
+    }
+    
+    /** Works out, for each level of the Grid, the largest 53-bit integer R for
+     * which a Cell of that level survives a dose of type TYPE, i.e. for which
+     * killed(TYPE, GENEXP, R*2^-53) is false. As the chance of being killed 
+     * only grows with the random number, a Cell is then killed by a random 
+     * number R exactly if R is above the threshold of its level. Empty 
+     * positions are never killed.
+     * @param type Type of antibiotic solution used. 
+     * @return The thresholds, indexed by level.
+     */
+    static long[] thresholds(char type){
+        long[] thresholds = new long[Grid.LEVELS+1];
+        thresholds[0] = Long.MAX_VALUE;
+        for(int l=1; l<=Grid.LEVELS; l++){
+            // Binary search between a number the Cell survives and one it is
+            // killed by.
+            long lives = -1;
+            long dies = 1L << 53;
+            while(dies - lives > 1){
+                long r = (lives + dies) >>> 1;
+                if(killed(type, Grid.gene(l), r * 0x1.0p-53)){
+                    dies = r;
+                } else{
+                    lives = r;
+                }
+            }
+            thresholds[l] = lives;
+        }
+        return thresholds;
+    }
+    
+    /** Returns the precomputed thresholds of a type of antibiotics.
+     * @param type Type of antibiotic solution used. 
+     * @return The thresholds, indexed by level.
+     */
+    static long[] thresholdsOf(char type){
+        return type=='b' ? BLACK_THRESHOLDS : (type=='w' ? WHITE_THRESHOLDS : NO_THRESHOLDS);
+    }
 
     /** Generate a random integer between 0 and max.
      * @param max The upper bound of the random integer.
      * @return The random integer.
      */
     public int randomNumber(int max){   
-       return (int)(Math.random() * (max+1));
+       return random.nextInt(max+1);
     }
         
 }
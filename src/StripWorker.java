@@ -0,0 +1,276 @@
+package antibioticresistancesimulation;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/** The StripWorker class runs a strip of rows of a colony in a process of its
+ * own, on behalf of a DistributedRunner. The strip is updated by a
+ * ParallelEngine, so that it evolves exactly as the same rows of a colony
+ * run in a single process with the ParallelEngine.
+ *
+ * The grid of a worker holds the ROWS rows it owns starting at row 1, plus a
+ * halo row above and below them holding a copy of the last row of the worker
+ * above and of the first row of the worker below. Before every transition,
+ * each worker sends its first and last rows to its neighbors over a socket
+ * and receives their rows into its halo, which is all the engine needs to
+ * know of the rest of the colony.
+ *
+ * The worker connects to the coordinator, announces the port it accepts its
+ * upper neighbor on with HELLO, and is then sent INIT with the part of the
+ * colony it owns and where its lower neighbor is. It then carries out the
+ * commands of the coordinator, answering each with the statistics of its
+ * strip, until QUIT or until the coordinator goes away.
+ * The StripWorker class contains five variables:
+ * (1) int width, int height: The size of the whole colony.
+ * (2) int firstRow, int rows: The rows of the colony the worker owns.
+ * (3) Grid grid, ParallelEngine engine: The strip and its halo rows, and the
+ * engine updating it.
+ * (4) ColonyStatistics statistics: The statistics of the Cells of the strip.
+ * (5) Socket up, Socket down: The connections to the workers owning the
+ * rows above and below the strip, or null at the top and bottom of the
+ * colony.
+ */
+
+public class StripWorker {
+    // The commands of the coordinator.
+    static final byte HELLO = 1;
+    static final byte INIT = 2;
+    static final byte START = 3;
+    static final byte ADVANCE = 4;
+    static final byte DOSE = 5;
+    static final byte GATHER = 6;
+    static final byte QUIT = 7;
+
+    final DataInputStream in;
+    final DataOutputStream out;
+    final ServerSocket haloServer;
+    int width;
+    int height;
+    int firstRow;
+    int rows;
+    long seed;
+    Grid grid;
+    ParallelEngine engine;
+    final ColonyStatistics statistics = new ColonyStatistics();
+    Socket up;
+    Socket down;
+    InputStream upIn;
+    InputStream downIn;
+    OutputStream upOut;
+    OutputStream downOut;
+    final ExecutorService sender = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "halo");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /** Connects to the coordinator and announces the worker.
+     * @param coordinator The connection to the DistributedRunner.
+     * @throws IOException If the connection fails.
+     */
+    StripWorker(Socket coordinator) throws IOException{
+        coordinator.setTcpNoDelay(true);
+        in = new DataInputStream(new BufferedInputStream(coordinator.getInputStream(), 1<<16));
+        out = new DataOutputStream(new BufferedOutputStream(coordinator.getOutputStream(), 1<<16));
+        haloServer = new ServerSocket(0);
+        out.writeByte(HELLO);
+        out.writeInt(haloServer.getLocalPort());
+        out.flush();
+    }
+
+    public static void main(String[] args) {
+        if(args.length<2 || args.length>3){
+            System.err.println("Usage: StripWorker HOST PORT [THREADS]");
+            System.exit(2);
+            return;
+        }
+        try(Socket coordinator = new Socket(args[0], Integer.parseInt(args[1]))){
+            int threads = args.length>2 ? Integer.parseInt(args[2]) : 1;
+            new StripWorker(coordinator).serve(new ForkJoinPool(threads));
+        } catch(EOFException ex){
+            // The coordinator went away.
+            System.exit(1);
+        } catch(IOException | IllegalArgumentException ex){
+            System.err.println("StripWorker: " + ex.getMessage());
+            System.exit(1);
+        }
+    }
+
+    /** Carries out the commands of the coordinator until QUIT.
+     * @param pool The pool running the tasks of the engine.
+     * @throws IOException If a connection fails.
+     */
+    void serve(ForkJoinPool pool) throws IOException{
+        try{
+            while(true){
+                byte command = in.readByte();
+                switch(command){
+                    case INIT:
+                        init(pool);
+                        break;
+                    case START:
+                        start(in.readInt(), in.readInt());
+                        break;
+                    case ADVANCE:
+                        long tick = in.readLong();
+                        int count = in.readInt();
+                        for(int i=0; i<count; i++){
+                            exchange();
+                            engine.updateState(seed, tick + i);
+                        }
+                        break;
+                    case DOSE:
+                        char type = in.readChar();
+                        engine.doseAntibio(type, seed, in.readLong());
+                        break;
+                    case GATHER:
+                        out.write(grid.level, width, rows*width);
+                        break;
+                    case QUIT:
+                        return;
+                    default:
+                        throw new IOException("Unknown command " + command);
+                }
+                writeStatistics(statistics, out);
+                out.flush();
+            }
+        } finally{
+            sender.shutdownNow();
+            haloServer.close();
+            if(up!=null){
+                up.close();
+            }
+            if(down!=null){
+                down.close();
+            }
+        }
+    }
+
+    /** Reads the part of the colony the worker owns and connects to its
+     * neighbors. The worker below is connected to, the worker above is
+     * accepted, so that the connections are made whatever order the workers
+     * get there in.
+     */
+    private void init(ForkJoinPool pool) throws IOException{
+        width = in.readInt();
+        height = in.readInt();
+        firstRow = in.readInt();
+        rows = in.readInt();
+        seed = in.readLong();
+        int mutationStep = in.readInt();
+        String downHost = in.readUTF();
+        int downPort = in.readInt();
+        boolean hasUp = in.readBoolean();
+
+        grid = new Grid(width, rows+2);
+        engine = new ParallelEngine(grid, 1, rows, firstRow-1, height, pool, statistics);
+        engine.mutationStep = mutationStep;
+        if(downPort>=0){
+            down = new Socket(downHost, downPort);
+            down.setTcpNoDelay(true);
+            downIn = down.getInputStream();
+            downOut = down.getOutputStream();
+        }
+        if(hasUp){
+            up = haloServer.accept();
+            up.setTcpNoDelay(true);
+            upIn = up.getInputStream();
+            upOut = up.getOutputStream();
+        }
+    }
+
+    /** Empties the strip, and spawns a Cell with GENEXP 0.1 at ROW, COL of
+     * the colony if the strip owns that position.
+     */
+    private void start(int row, int col){
+        grid.clear();
+        statistics.reset();
+        if(row>=firstRow && row<firstRow+rows){
+            grid.level[grid.index(row - firstRow + 1, col)] = 1;
+            statistics.add(1);
+        }
+    }
+
+    /** Sends the first and last rows of the strip to the neighbors, and reads
+     * their rows into the halo. The rows are sent from another thread, so
+     * that no worker waits for a neighbor that is itself blocked sending.
+     */
+    private void exchange() throws IOException{
+        byte[] level = grid.level;
+        Future<Void> sent = sender.submit(() -> {
+            if(upOut!=null){
+                upOut.write(level, width, width);
+            }
+            if(downOut!=null){
+                downOut.write(level, rows*width, width);
+            }
+            return null;
+        });
+        if(upIn!=null){
+            readFully(upIn, level, 0, width);
+        }
+        if(downIn!=null){
+            readFully(downIn, level, (rows+1)*width, width);
+        }
+        try{
+            sent.get();
+        } catch(ExecutionException ex){
+            Throwable cause = ex.getCause();
+            throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
+        } catch(InterruptedException ex){
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while sending the halo rows");
+        }
+    }
+
+    private static void readFully(InputStream in, byte[] level, int from, int length)
+            throws IOException{
+        while(length>0){
+            int read = in.read(level, from, length);
+            if(read<0){
+                throw new EOFException("A neighboring worker went away");
+            }
+            from += read;
+            length -= read;
+        }
+    }
+
+    /** Writes STATISTICS to OUT, to be read back by readStatistics(). */
+    static void writeStatistics(ColonyStatistics statistics, DataOutputStream out)
+            throws IOException{
+        out.writeLong(statistics.live);
+        out.writeLong(statistics.sum);
+        out.writeLong(statistics.sumSquares);
+        out.writeLong(statistics.born);
+        out.writeLong(statistics.removed);
+        for(int b=0; b<ColonyStatistics.BINS; b++){
+            out.writeLong(statistics.histogram[b]);
+        }
+    }
+
+    /** Reads statistics written by writeStatistics() into STATISTICS. */
+    static void readStatistics(ColonyStatistics statistics, DataInputStream in)
+            throws IOException{
+        statistics.live = in.readLong();
+        statistics.sum = in.readLong();
+        statistics.sumSquares = in.readLong();
+        statistics.born = in.readLong();
+        statistics.removed = in.readLong();
+        for(int b=0; b<ColonyStatistics.BINS; b++){
+            statistics.histogram[b] = in.readLong();
+        }
+    }
+}
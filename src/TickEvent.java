@@ -0,0 +1,48 @@
+package antibioticresistancesimulation;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/** The TickEvent class is the Java Flight Recorder event committed for every
+ * transition of a colony, e.g. when the JVM is started with
+ * -XX:StartFlightRecording, or once for the transitions performed together
+ * by State.advance(). Its duration is the time the transitions took. 
+ * While no recording is running, or the event is disabled in its settings, 
+ * it costs next to nothing.
+ */
+
+@Name("antibioticresistancesimulation.Tick")
+@Label("Tick")
+@Category("Antibiotic Resistance Simulation")
+@Description("A transition of a bacteria colony")
+public class TickEvent extends Event {
+    @Label("Tick")
+    @Description("The number of transitions since the colony was started")
+    long tick;
+
+    @Label("Transitions")
+    @Description("The number of transitions performed together, 1 unless the colony was advanced")
+    long transitions;
+
+    @Label("Births")
+    @Description("The number of Cells born during the transition")
+    long births;
+
+    @Label("Replacements")
+    @Description("The number of Cells replaced by a daughter Cell")
+    long replacements;
+
+    @Label("Antibiotic Deaths")
+    @Description("The number of Cells killed by antibiotics spreading from a spot")
+    long fieldDeaths;
+
+    @Label("Live Cells")
+    long live;
+
+    @Label("Mean Genexp")
+    @Description("The average gene expression level of the live Cells")
+    double mean;
+}
@@ -0,0 +1,284 @@
+package antibioticresistancesimulation;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.Deflater;
+
+/** The TrajectoryRecorder class records the course of a colony to a file, so
+ * that it can be replayed later without simulating it again (see Recording).
+ *
+ * record() only copies the grid of the colony into a free buffer and hands it
+ * to a background thread, which works out the positions that changed since
+ * the previous frame, compresses them and writes them to the file. If the
+ * background thread falls BUFFERS frames behind, record() waits for it, so
+ * that no frame is ever lost.
+ *
+ * The file starts with a header of five ints: MAGIC, VERSION, the width and
+ * height of the grid and the KEYFRAMES interval. Each frame follows as:
+ * (1) byte type: KEY for a frame holding the whole grid, DELTA for a frame
+ * holding only the positions that changed since the previous frame. Every
+ * KEYFRAMES-th frame is a KEY frame, so that a replay can jump to any frame
+ * by starting from the KEY frame before it.
+ * (2) long tick: The tick of the colony.
+ * (3) int length, int rawLength: The size of the payload, compressed with
+ * Deflater, and its size uncompressed.
+ * (4) The payload: the BINS counts of the histogram of the colony as
+ * varints, then either the level of every position (KEY) or the number of
+ * changed positions followed by the distance of each from the previous one
+ * and its new level (DELTA).
+ */
+
+public class TrajectoryRecorder implements AutoCloseable {
+    static final int MAGIC = 0x41525354; // "ARST"
+    static final int VERSION = 1;
+    static final byte KEY = 0;
+    static final byte DELTA = 1;
+
+    /** The number of frames the background thread may fall behind. */
+    static final int BUFFERS = 3;
+
+    final int width;
+    final int height;
+    final int keyframes;
+    final DataOutputStream out;
+    final BlockingQueue<Frame> free = new ArrayBlockingQueue<>(BUFFERS+1);
+    final BlockingQueue<Frame> pending = new ArrayBlockingQueue<>(BUFFERS+1);
+    final Thread writer;
+    volatile IOException failure;
+    long frames;
+
+    /** Creates FILE and starts the background thread writing to it.
+     * @param file The file to record to. It is replaced if it exists.
+     * @param width The width of the colonies that will be recorded.
+     * @param height The height of the colonies that will be recorded.
+     * @param keyframes The number of frames from one KEY frame to the next.
+     * @throws IOException If the file cannot be created.
+     */
+    public TrajectoryRecorder(Path file, int width, int height, int keyframes) throws IOException{
+        if(keyframes<1){
+            throw new IllegalArgumentException("The keyframe interval must be positive, got " + keyframes);
+        }
+        this.width = width;
+        this.height = height;
+        this.keyframes = keyframes;
+        out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file), 1<<16));
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(width);
+        out.writeInt(height);
+        out.writeInt(keyframes);
+        // One more buffer than can be queued, as the writer keeps the last
+        // frame to compare the next one with.
+        for(int i=0; i<=BUFFERS; i++){
+            free.add(new Frame(width*height));
+        }
+        writer = new Thread(this::write, "recorder");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /** Records the current state of COLONY as the next frame. Must be called
+     * from the thread running COLONY.
+     * @param colony The colony to record, of the size given to the
+     * constructor.
+     * @throws IOException If the background thread failed to write a
+     * previous frame.
+     */
+    public void record(State colony) throws IOException{
+        checkFailure();
+        Frame frame;
+        try{
+            frame = free.take();
+        } catch(InterruptedException ex){
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the recorder");
+        }
+        System.arraycopy(colony.grid.level, 0, frame.level, 0, frame.level.length);
+        frame.tick = colony.getTick();
+        frame.key = frames++ % keyframes == 0;
+        pending.add(frame);
+    }
+
+    /** Writes the frames still queued and closes the file.
+     * @throws IOException If a frame could not be written.
+     */
+    @Override
+    public void close() throws IOException{
+        pending.add(Frame.END);
+        try{
+            writer.join();
+        } catch(InterruptedException ex){
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while closing the recorder");
+        }
+        checkFailure();
+    }
+
+    private void checkFailure() throws IOException{
+        if(failure!=null){
+            throw new IOException("Recording failed: " + failure.getMessage(), failure);
+        }
+    }
+
+    /** The loop of the background thread. */
+    private void write(){
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        Payload raw = new Payload(width*height/8 + 256);
+        byte[] compressed = new byte[raw.bytes.length];
+        Frame previous = null;
+        try{
+            while(true){
+                Frame frame = pending.take();
+                if(frame==Frame.END){
+                    break;
+                }
+                if(failure!=null){
+                    // Keep the recorded thread going, but stop writing.
+                    free.add(frame);
+                    continue;
+                }
+                raw.length = 0;
+                histogram(frame.level, raw);
+                if(frame.key || previous==null){
+                    raw.put(frame.level, 0, frame.level.length);
+                } else{
+                    changes(previous.level, frame.level, raw);
+                }
+
+                deflater.reset();
+                deflater.setInput(raw.bytes, 0, raw.length);
+                deflater.finish();
+                if(compressed.length < raw.length + 64){
+                    compressed = new byte[raw.bytes.length + 64];
+                }
+                int length = 0;
+                while(!deflater.finished()){
+                    length += deflater.deflate(compressed, length, compressed.length - length);
+                    if(length==compressed.length){
+                        compressed = Arrays.copyOf(compressed, compressed.length*2);
+                    }
+                }
+                try{
+                    out.writeByte(frame.key || previous==null ? KEY : DELTA);
+                    out.writeLong(frame.tick);
+                    out.writeInt(length);
+                    out.writeInt(raw.length);
+                    out.write(compressed, 0, length);
+                } catch(IOException ex){
+                    failure = ex;
+                }
+                if(previous!=null){
+                    free.add(previous);
+                }
+                previous = frame;
+            }
+        } catch(InterruptedException ex){
+            failure = new InterruptedIOException("The recorder was interrupted");
+        } finally{
+            deflater.end();
+            try{
+                out.close();
+            } catch(IOException ex){
+                if(failure==null){
+                    failure = ex;
+                }
+            }
+        }
+    }
+
+    /** Appends the histogram of the levels of LEVEL to RAW. */
+    private static void histogram(byte[] level, Payload raw){
+        long[] counts = new long[Grid.LEVELS+1];
+        for(byte l : level){
+            counts[l]++;
+        }
+        for(int l=1; l<=Grid.LEVELS; l++){
+            raw.putVarint(counts[l]);
+        }
+    }
+
+    /** Appends the positions where CURRENT differs from PREVIOUS to RAW. */
+    private static void changes(byte[] previous, byte[] current, Payload raw){
+        int size = current.length;
+        int countAt = raw.length;
+        raw.ensure(5);
+        raw.length += 5;
+        int count = 0;
+        int last = -1;
+        int k = 0;
+        while(k<size){
+            // Arrays.mismatch() skips over the unchanged stretches many bytes
+            // at a time.
+            int skip = Arrays.mismatch(previous, k, size, current, k, size);
+            if(skip<0){
+                break;
+            }
+            k += skip;
+            raw.putVarint(k - last - 1);
+            raw.putByte(current[k]);
+            last = k;
+            count++;
+            k++;
+        }
+        // The count is written as a fixed five byte varint in front.
+        for(int i=0; i<5; i++){
+            raw.bytes[countAt+i] = (byte)((count >>> (7*i) & 0x7F) | (i<4 ? 0x80 : 0));
+        }
+    }
+
+    /** A copy of the grid of a colony waiting to be written. */
+    static class Frame {
+        static final Frame END = new Frame(0);
+
+        final byte[] level;
+        long tick;
+        boolean key;
+
+        Frame(int size){
+            level = new byte[size];
+        }
+    }
+
+    /** A growable byte buffer holding an uncompressed payload. */
+    static class Payload {
+        byte[] bytes;
+        int length;
+
+        Payload(int capacity){
+            bytes = new byte[capacity];
+        }
+
+        void ensure(int extra){
+            if(length + extra > bytes.length){
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length*2, length + extra));
+            }
+        }
+
+        void putByte(int b){
+            ensure(1);
+            bytes[length++] = (byte) b;
+        }
+
+        void put(byte[] source, int from, int count){
+            ensure(count);
+            System.arraycopy(source, from, bytes, length, count);
+            length += count;
+        }
+
+        void putVarint(long value){
+            ensure(10);
+            while((value & ~0x7FL)!=0){
+                bytes[length++] = (byte)((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            bytes[length++] = (byte) value;
+        }
+    }
+}
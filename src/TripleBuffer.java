@@ -0,0 +1,61 @@
+package antibioticresistancesimulation;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/** The TripleBuffer class hands values from one writer thread to one reader
+ * thread without locks, and without either of them ever waiting for the other.
+ * 
+ * The three buffers take turns at three roles: the back buffer the writer
+ * fills, the front buffer the reader reads, and the middle buffer holding the
+ * latest published value. Publishing swaps the back buffer with the middle 
+ * one, and reading swaps the front buffer with the middle one if something 
+ * new was published since the last read. Both swaps are a single atomic 
+ * operation on STATE, which holds the index of the middle buffer and a FRESH 
+ * flag.
+ * 
+ * @param <T> The type of the buffers.
+ */
+
+public class TripleBuffer<T> {
+    private static final int FRESH = 4;
+
+    private final Object[] buffers = new Object[3];
+    private final AtomicInteger state = new AtomicInteger(1);
+    private int back = 0;
+    private int front = 2;
+
+    public TripleBuffer(Supplier<T> factory){
+        for(int i=0; i<3; i++){
+            buffers[i] = factory.get();
+        }
+    }
+
+    /** Returns the buffer the writer fills before calling publish(). 
+     * Only to be called by the writer thread.
+     * @return The back buffer.
+     */
+    @SuppressWarnings("unchecked")
+    public T back(){
+        return (T) buffers[back];
+    }
+
+    /** Publishes the back buffer, and gives the writer a new one.
+     * Only to be called by the writer thread.
+     */
+    public void publish(){
+        back = state.getAndSet(back | FRESH) & 3;
+    }
+
+    /** Returns the latest published buffer. The buffer stays valid until the
+     * next call to read(). Only to be called by the reader thread.
+     * @return The front buffer.
+     */
+    @SuppressWarnings("unchecked")
+    public T read(){
+        if((state.get() & FRESH)!=0){
+            front = state.getAndSet(front) & 3;
+        }
+        return (T) buffers[front];
+    }
+}
@@ -0,0 +1,296 @@
+package antibioticresistancesimulation;
+
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.LongVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShape;
+import jdk.incubator.vector.VectorSpecies;
+
+/** The VectorKernels class implements the Kernels with the JDK Vector API,
+ * handling as many positions at once as the CPU has lanes for. It is only 
+ * loaded by Kernels.get() if the jdk.incubator.vector module is available.
+ * The positions left over after the last full vector are handled by the 
+ * plain loops of Kernels.
+ */
+
+public class VectorKernels extends Kernels {
+    static final VectorSpecies<Long> LONGS = LongVector.SPECIES_PREFERRED;
+    static final VectorSpecies<Integer> INTS = IntVector.SPECIES_PREFERRED;
+    static final VectorSpecies<Float> FLOATS = FloatVector.SPECIES_PREFERRED;
+    /** The levels of as many positions as INTS has lanes, or null if the 
+     * vectors are too short for that to be a shape of its own. */
+    static final VectorSpecies<Byte> LEVELS = INTS.length()>=8 
+            ? VectorSpecies.of(byte.class, VectorShape.forBitSize(INTS.length()*8)) : null;
+
+    /** The arrays resolve() passes its results on in, for each thread. */
+    static final ThreadLocal<int[][]> ROWS = ThreadLocal.withInitial(() -> new int[4][0]);
+
+    /** 0, 1, 2, ... in the lanes of a vector. */
+    static final LongVector IOTA = LongVector.zero(LONGS).addIndex(1);
+
+    @Override
+    public String getName(){
+        return "vector";
+    }
+
+    @Override
+    void splitMix(long state, long[] out, int count){
+        int lanes = LONGS.length();
+        int bound = LONGS.loopBound(count);
+        // The i-th number is mix(STATE + (i+1)*GAMMA). SplitMix64.mix() is
+        // written out rather than called, and the vectors are not carried
+        // from one iteration to the next, so that the compiler keeps them in 
+        // registers instead of allocating them.
+        for(int i=0; i<bound; i+=lanes){
+            LongVector z = IOTA.add(i+1).mul(SplitMix64.GAMMA).add(state);
+            z = z.lanewise(VectorOperators.XOR, z.lanewise(VectorOperators.LSHR, 30)).mul(0xBF58476D1CE4E5B9L);
+            z = z.lanewise(VectorOperators.XOR, z.lanewise(VectorOperators.LSHR, 27)).mul(0x94D049BB133111EBL);
+            z.lanewise(VectorOperators.XOR, z.lanewise(VectorOperators.LSHR, 31)).intoArray(out, i);
+        }
+        for(int i=bound; i<count; i++){
+            out[i] = SplitMix64.mix(state + (i+1)*SplitMix64.GAMMA);
+        }
+    }
+
+    @Override
+    void positionMix(long seed, long tick, long first, long stream, long[] out, int count){
+        int lanes = LONGS.length();
+        int bound = LONGS.loopBound(count);
+        // As in ParallelEngine.mix(), with INDEX running over the lanes.
+        long base = seed + SplitMix64.GAMMA * (tick + 1) + stream;
+        for(int i=0; i<bound; i+=lanes){
+            LongVector z = IOTA.add(first + i).mul(0xBF58476D1CE4E5B9L).add(base);
+            z = z.lanewise(VectorOperators.XOR, z.lanewise(VectorOperators.LSHR, 30)).mul(0xBF58476D1CE4E5B9L);
+            z = z.lanewise(VectorOperators.XOR, z.lanewise(VectorOperators.LSHR, 27)).mul(0x94D049BB133111EBL);
+            z.lanewise(VectorOperators.XOR, z.lanewise(VectorOperators.LSHR, 31)).intoArray(out, i);
+        }
+        for(int i=bound; i<count; i++){
+            out[i] = ParallelEngine.mix(seed, tick, first + i, stream);
+        }
+    }
+
+    @Override
+    void resolve(byte[] level, byte[] nextLevel, int base, int width, boolean top, 
+            boolean bottom, int[] above, int[] proposals, int[] below, long seed, long tick,
+            long first, int step, long[] counts, int from, int to){
+        int lanes = INTS.length();
+        // The first and last columns lack a neighbor, and are left to the
+        // plain loop along with the columns after the last full vector.
+        int start = Math.max(from, 1);
+        int end = Math.min(to, width-1);
+        if(LEVELS==null || end - start < lanes){
+            super.resolve(level, nextLevel, base, width, top, bottom, above, proposals, below,
+                    seed, tick, first, step, counts, from, to);
+            return;
+        }
+        int stop = start + (end - start)/lanes*lanes;
+        int[][] row = ROWS.get();
+        if(row[0].length<width + lanes){
+            for(int i=0; i<row.length; i++){
+                row[i] = new int[width + lanes];
+            }
+        }
+        super.resolve(level, nextLevel, base, width, top, bottom, above, proposals, below,
+                seed, tick, first, step, counts, from, start);
+        // The work is split in small loops passing their results on through
+        // arrays. The compiler only keeps the vectors in registers if the 
+        // loops, and whatever they are inlined into, are small enough, and 
+        // the loops do not call methods returning vectors for the same 
+        // reason. Only the int vectors of the preferred shape are used, as
+        // the code compiled for one shape is spoiled by the others.
+        int[] best = row[0];
+        int[] has = row[1];
+        int[] parents = row[2];
+        int[] changes = row[3];
+        offerVertical(level, base, width, top, bottom, above, below, best, has, start, stop);
+        offerHorizontal(level, base, proposals, best, has, start, stop);
+        choose(level, base, width, top, bottom, best, has, parents, start, stop);
+        draw(seed, tick, first, step, best, changes, start, stop);
+        place(level, nextLevel, base, parents, changes, counts, start, stop);
+        super.resolve(level, nextLevel, base, width, top, bottom, above, proposals, below,
+                seed, tick, first, step, counts, stop, to);
+    }
+
+    @Override
+    boolean diffuse(float[] c, float[] next, int k, int up, int down, float a, float b, 
+            float min, int from, int to){
+        int bound = from + FLOATS.loopBound(to - from);
+        FloatVector zero = FloatVector.zero(FLOATS);
+        // Whether any antibiotics are left is kept in a boolean rather than a 
+        // vector, which C2 would not keep in a register across the loop.
+        boolean kept = false;
+        // The sums are added up in the same order as by Kernels.diffuse(), so
+        // the concentrations are exactly the same.
+        for(int j=from; j<bound; j+=FLOATS.length()){
+            FloatVector sum = FloatVector.fromArray(FLOATS, c, up + j)
+                    .add(FloatVector.fromArray(FLOATS, c, down + j))
+                    .add(FloatVector.fromArray(FLOATS, c, k + j - 1))
+                    .add(FloatVector.fromArray(FLOATS, c, k + j + 1));
+            FloatVector v = FloatVector.fromArray(FLOATS, c, k + j).mul(a).add(sum.mul(b));
+            VectorMask<Float> keep = v.compare(VectorOperators.GE, min);
+            zero.blend(v, keep).intoArray(next, k + j);
+            kept |= keep.anyTrue();
+        }
+        return super.diffuse(c, next, k, up, down, a, b, min, bound, to) | kept;
+    }
+
+    /** Stores into BEST the highest ranked of the valid proposals made to
+     * each of the positions FROM to TO-1 of a row by the Cells above and 
+     * below it, as Kernels.rank() works it out, and into HAS -1 if there is
+     * one and 0 otherwise. */
+    private static void offerVertical(byte[] level, int base, int width, boolean top, 
+            boolean bottom, int[] above, int[] below, int[] best, int[] has, int from, int to){
+        // The rows above the top and below the bottom are read as empty by
+        // masking the current row, as a vector chosen by a branch would not
+        // be kept in registers.
+        int upper = top ? 0 : width;
+        int lower = bottom ? 0 : width;
+        int upperMask = top ? 0 : -1;
+        int lowerMask = bottom ? 0 : -1;
+        IntVector lowest = IntVector.broadcast(INTS, Integer.MIN_VALUE);
+        for(int j=from; j<to; j+=INTS.length()){
+            int k = base + j;
+            IntVector up = ((IntVector) ByteVector.fromArray(LEVELS, level, k-upper)
+                    .convertShape(VectorOperators.B2I, INTS, 0)).and(upperMask);
+            IntVector down = ((IntVector) ByteVector.fromArray(LEVELS, level, k+lower)
+                    .convertShape(VectorOperators.B2I, INTS, 0)).and(lowerMask);
+            IntVector fromAbove = IntVector.fromArray(INTS, above, j);
+            IntVector fromBelow = IntVector.fromArray(INTS, below, j);
+            // As Kernels.valid(), but -1 for true, as masks are not compiled 
+            // to vector instructions on every JDK: the sign bit is set if 
+            // the negated level is negative and the difference of the 
+            // directions less one is negative.
+            IntVector validUp = up.neg()
+                    .and(fromAbove.and(3).lanewise(VectorOperators.XOR, Neighbors.DOWN).sub(1))
+                    .lanewise(VectorOperators.ASHR, 31);
+            IntVector validDown = down.neg()
+                    .and(fromBelow.and(3).lanewise(VectorOperators.XOR, Neighbors.UP).sub(1))
+                    .lanewise(VectorOperators.ASHR, 31);
+            fromAbove.and(validUp).or(lowest.lanewise(VectorOperators.AND_NOT, validUp))
+                    .max(fromBelow.and(validDown).or(lowest.lanewise(VectorOperators.AND_NOT, validDown)))
+                    .intoArray(best, j);
+            validUp.or(validDown).intoArray(has, j);
+        }
+    }
+
+    /** Adds the proposals made by the Cells left and right of each position
+     * to the BEST and HAS of offerVertical(). */
+    private static void offerHorizontal(byte[] level, int base, int[] proposals, 
+            int[] best, int[] has, int from, int to){
+        IntVector lowest = IntVector.broadcast(INTS, Integer.MIN_VALUE);
+        for(int j=from; j<to; j+=INTS.length()){
+            int k = base + j;
+            IntVector left = (IntVector) ByteVector.fromArray(LEVELS, level, k-1)
+                    .convertShape(VectorOperators.B2I, INTS, 0);
+            IntVector right = (IntVector) ByteVector.fromArray(LEVELS, level, k+1)
+                    .convertShape(VectorOperators.B2I, INTS, 0);
+            IntVector fromLeft = IntVector.fromArray(INTS, proposals, j-1);
+            IntVector fromRight = IntVector.fromArray(INTS, proposals, j+1);
+            IntVector validLeft = left.neg()
+                    .and(fromLeft.and(3).lanewise(VectorOperators.XOR, Neighbors.RIGHT).sub(1))
+                    .lanewise(VectorOperators.ASHR, 31);
+            IntVector validRight = right.neg()
+                    .and(fromRight.and(3).lanewise(VectorOperators.XOR, Neighbors.LEFT).sub(1))
+                    .lanewise(VectorOperators.ASHR, 31);
+            fromLeft.and(validLeft).or(lowest.lanewise(VectorOperators.AND_NOT, validLeft))
+                    .max(fromRight.and(validRight).or(lowest.lanewise(VectorOperators.AND_NOT, validRight)))
+                    .max(IntVector.fromArray(INTS, best, j))
+                    .intoArray(best, j);
+            validLeft.or(validRight).or(IntVector.fromArray(INTS, has, j)).intoArray(has, j);
+        }
+    }
+
+    /** Works out the parent of the daughter Cell placed into each of the 
+     * positions FROM to TO-1 of a row from the BEST proposal made to it, as
+     * Kernels.resolve() does. Stores the level of the parent into PARENTS,
+     * 0 if no Cell is placed there, and how far away it is into BEST. */
+    private static void choose(byte[] level, int base, int width, boolean top, 
+            boolean bottom, int[] best, int[] has, int[] parents, int from, int to){
+        // A proposal from above is only valid below the top row, so the row 
+        // read in its place is never picked; likewise for the bottom row.
+        int upper = top ? 0 : width;
+        int lower = bottom ? 0 : width;
+        for(int j=from; j<to; j+=INTS.length()){
+            int k = base + j;
+            IntVector direction = IntVector.fromArray(INTS, best, j).and(3);
+            IntVector valid = IntVector.fromArray(INTS, has, j);
+            // -1 in the lanes the direction of the proposal comes from.
+            IntVector fromTop = direction.lanewise(VectorOperators.XOR, Neighbors.DOWN).sub(1)
+                    .lanewise(VectorOperators.ASHR, 31).and(valid);
+            IntVector fromBottom = direction.lanewise(VectorOperators.XOR, Neighbors.UP).sub(1)
+                    .lanewise(VectorOperators.ASHR, 31).and(valid);
+            IntVector fromEast = direction.lanewise(VectorOperators.XOR, Neighbors.LEFT).sub(1)
+                    .lanewise(VectorOperators.ASHR, 31).and(valid);
+            IntVector fromWest = direction.lanewise(VectorOperators.XOR, Neighbors.RIGHT).sub(1)
+                    .lanewise(VectorOperators.ASHR, 31).and(valid);
+            ((IntVector) ByteVector.fromArray(LEVELS, level, k-upper)
+                    .convertShape(VectorOperators.B2I, INTS, 0)).and(fromTop)
+                    .or(((IntVector) ByteVector.fromArray(LEVELS, level, k+lower)
+                            .convertShape(VectorOperators.B2I, INTS, 0)).and(fromBottom))
+                    .or(((IntVector) ByteVector.fromArray(LEVELS, level, k+1)
+                            .convertShape(VectorOperators.B2I, INTS, 0)).and(fromEast))
+                    .or(((IntVector) ByteVector.fromArray(LEVELS, level, k-1)
+                            .convertShape(VectorOperators.B2I, INTS, 0)).and(fromWest))
+                    .intoArray(parents, j);
+            fromTop.and(-width).or(fromBottom.and(width)).or(fromEast.and(1))
+                    .or(fromWest.and(-1)).intoArray(best, j);
+        }
+    }
+
+    /** Stores into CHANGES the change of level of the daughter Cells whose
+     * parents are at the OFFSETS worked out by choose(), drawn as in 
+     * Kernels.resolve(). Both arrays are read and written up to as many 
+     * ints as INTS has lanes past TO. */
+    private static void draw(long seed, long tick, long first, int step, int[] offsets, 
+            int[] changes, int from, int to){
+        // As in ParallelEngine.mix(), with INDEX the index of the parent.
+        long base = seed + SplitMix64.GAMMA * (tick + 1) + ParallelEngine.MUTATION_STREAM;
+        for(int j=from; j<to; j+=LONGS.length()){
+            // Only the first lanes of an int vector are converted to longs 
+            // and back, as the others are not compiled to vector 
+            // instructions; the ints stored past them are overwritten by the 
+            // next iteration.
+            LongVector z = ((LongVector) IntVector.fromArray(INTS, offsets, j)
+                    .convertShape(VectorOperators.I2L, LONGS, 0))
+                    .add(IOTA).add(first + j).mul(0xBF58476D1CE4E5B9L).add(base);
+            z = z.lanewise(VectorOperators.XOR, z.lanewise(VectorOperators.LSHR, 30)).mul(0xBF58476D1CE4E5B9L);
+            z = z.lanewise(VectorOperators.XOR, z.lanewise(VectorOperators.LSHR, 27)).mul(0x94D049BB133111EBL);
+            z = z.lanewise(VectorOperators.XOR, z.lanewise(VectorOperators.LSHR, 31));
+            LongVector outcome = z.lanewise(VectorOperators.LSHR, 32).mul(3)
+                    .lanewise(VectorOperators.LSHR, 32);
+            // STEP, -STEP or 0 for the outcomes 0, 1 and 2.
+            ((IntVector) outcome.mul(-2*step).add(step)
+                    .and(outcome.lanewise(VectorOperators.ASHR, 1).sub(1))
+                    .convertShape(VectorOperators.L2I, INTS, 0)).intoArray(changes, j);
+        }
+    }
+
+    /** Places the daughter Cells of the PARENTS, changed by the CHANGES, 
+     * into positions FROM to TO-1 of a row, and counts them into COUNTS as
+     * Kernels.resolve() does. */
+    private static void place(byte[] level, byte[] nextLevel, int base, int[] parents, 
+            int[] changes, long[] counts, int from, int to){
+        IntVector born = IntVector.zero(INTS);
+        IntVector replaced = IntVector.zero(INTS);
+        for(int j=from; j<to; j+=INTS.length()){
+            int k = base + j;
+            IntVector current = (IntVector) ByteVector.fromArray(LEVELS, level, k)
+                    .convertShape(VectorOperators.B2I, INTS, 0);
+            IntVector parent = IntVector.fromArray(INTS, parents, j);
+            // A parent is a live Cell, so its level is positive.
+            IntVector has = parent.neg().lanewise(VectorOperators.ASHR, 31);
+            IntVector daughter = parent.add(IntVector.fromArray(INTS, changes, j))
+                    .max(1).min(Grid.LEVELS);
+            ((ByteVector) current.add(daughter.sub(current).and(has))
+                    .convertShape(VectorOperators.I2B, LEVELS, 0)).intoArray(nextLevel, k);
+            born = born.sub(has);
+            replaced = replaced.sub(has.and(current.neg().lanewise(VectorOperators.ASHR, 31)));
+        }
+        counts[0] += born.reduceLanes(VectorOperators.ADD);
+        counts[1] += replaced.reduceLanes(VectorOperators.ADD);
+    }
+
+}